@@ -0,0 +1,168 @@
+// File Name: AddressRules.java
+// Author: Steven Pham
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Address tags: tags records by their source or destination subnet (e.g. known scanners,
+ * partner VPCs, internal ranges), next to the port/protocol tag of the lookup table.
+ *
+ * The rules come from a csv file with a header line and one rule per line:
+ *      cidr,direction,tag
+ *      198.51.100.0/24,src,scanner
+ *      10.0.0.0/8,any,internal
+ *      2001:db8:1::/48,dst,partner
+ *
+ * The direction is "src" (matches the srcaddr field), "dst" (matches dstaddr) or "any"
+ * (either). IPv4 and IPv6 blocks can be mixed. The rules of each direction are kept in an
+ * AddressTrie, so a record costs two longest-prefix lookups whatever the number of rules.
+ *
+ * A record's address tag is the one of the longest source rule containing its srcaddr; if
+ * no source rule does, the longest destination rule containing its dstaddr. Records that
+ * match neither (or whose addresses are not addresses, like "-") get "Untagged".
+ */
+public final class AddressRules {
+
+    private final AddressTrie sourceRules = new AddressTrie();
+    private final AddressTrie destinationRules = new AddressTrie();
+    private final ArrayList<String> tagNames = new ArrayList<String>(); // Address tag id -> name
+    private final HashMap<String, Integer> tagIds = new HashMap<String, Integer>();
+
+    private AddressRules() {
+        tagNames.add(LookupTable.UNTAGGED_NAME);
+        tagIds.put(LookupTable.UNTAGGED_NAME, LookupTable.UNTAGGED);
+    }
+
+    /**
+     * Reads the rules of an address rule csv file.
+     *
+     * @param rulesFile - .csv file containing the address rules
+     * @return the rules
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a line is not a valid rule
+     */
+    public static AddressRules read(String rulesFile) throws IOException {
+        AddressRules rules = new AddressRules();
+        long[] address = new long[2];
+
+        BufferedReader br = new BufferedReader(new FileReader(rulesFile));
+        try {
+            String line;
+            br.readLine(); // Skip the header line
+
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split(",");
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("Address rule needs a CIDR block, a direction and a tag: " + line);
+                }
+
+                int length = AddressTrie.parseCidr(parts[0].trim(), address);
+                String direction = parts[1].trim().toLowerCase(Locale.ROOT);
+                if (!direction.equals("src") && !direction.equals("dst") && !direction.equals("any")) {
+                    throw new IllegalArgumentException("Address rule direction must be src, dst or any: " + line);
+                }
+                int tagId = rules.tagIdOf(parts[2].trim());
+
+                if (!direction.equals("dst")) {
+                    rules.sourceRules.put(address[0], address[1], length, tagId);
+                }
+                if (!direction.equals("src")) {
+                    rules.destinationRules.put(address[0], address[1], length, tagId);
+                }
+            }
+
+        } finally {
+            br.close();
+        }
+        return rules;
+    }
+
+    /**
+     * Creates rules that only name address tags, without any blocks. Used for counts that
+     * were not read from a flow log, such as merged snapshots.
+     *
+     * @param tagNames - Address tag id -> name, with LookupTable.UNTAGGED_NAME at index LookupTable.UNTAGGED
+     * @return the rules
+     * @throws IllegalArgumentException if the names do not start with Untagged or repeat a name
+     */
+    public static AddressRules ofNames(String[] tagNames) {
+        if (tagNames.length == 0 || !LookupTable.UNTAGGED_NAME.equals(tagNames[LookupTable.UNTAGGED])) {
+            throw new IllegalArgumentException("Address tag names must start with " + LookupTable.UNTAGGED_NAME);
+        }
+        AddressRules rules = new AddressRules();
+        for (int tagId = 1; tagId < tagNames.length; tagId++) {
+            if (rules.tagIdOf(tagNames[tagId]) != tagId) {
+                throw new IllegalArgumentException("Address tag " + tagNames[tagId] + " is named twice");
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Finds the address tag of the current record of a tokenizer.
+     *
+     * @param tokenizer - Tokenizer positioned on a record
+     * @param sourceColumn - Column of the srcaddr field
+     * @param destinationColumn - Column of the dstaddr field
+     * @param address - Scratch array of two longs for the parsed addresses
+     * @return the address tag id (LookupTable.UNTAGGED if no rule matches)
+     */
+    public int getTagId(FlowLogTokenizer tokenizer, int sourceColumn, int destinationColumn, long[] address) {
+        byte[] buffer = tokenizer.getBuffer();
+        if (sourceRules.size() > 0 && tokenizer.hasField(sourceColumn)
+                && AddressTrie.parseAddress(buffer, tokenizer.getFieldStart(sourceColumn), tokenizer.getFieldEnd(sourceColumn), address)) {
+            int tagId = sourceRules.lookup(address[0], address[1]);
+            if (tagId != AddressTrie.NO_VALUE) {
+                return tagId;
+            }
+        }
+        if (destinationRules.size() > 0 && tokenizer.hasField(destinationColumn)
+                && AddressTrie.parseAddress(buffer, tokenizer.getFieldStart(destinationColumn), tokenizer.getFieldEnd(destinationColumn), address)) {
+            int tagId = destinationRules.lookup(address[0], address[1]);
+            if (tagId != AddressTrie.NO_VALUE) {
+                return tagId;
+            }
+        }
+        return LookupTable.UNTAGGED;
+    }
+
+    /**
+     * @param tagId - Address tag id from getTagId
+     * @return the name of the address tag
+     */
+    public String getTagName(int tagId) {
+        return tagNames.get(tagId);
+    }
+
+    /**
+     * @return the number of address tags, including "Untagged"
+     */
+    public int getTagCount() {
+        return tagNames.size();
+    }
+
+    /**
+     * @return the number of rules, counting an "any" rule once per direction
+     */
+    public int getRuleCount() {
+        return sourceRules.size() + destinationRules.size();
+    }
+
+    private int tagIdOf(String tag) {
+        Integer tagId = tagIds.get(tag);
+        if (tagId == null) {
+            tagId = tagNames.size();
+            tagIds.put(tag, tagId);
+            tagNames.add(tag);
+        }
+        return tagId;
+    }
+}
@@ -0,0 +1,351 @@
+// File Name: AddressTrie.java
+// Author: Steven Pham
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Maps address prefixes (CIDR blocks) to values, and finds the value of the longest prefix
+ * that contains an address.
+ *
+ * Addresses are 128 bits, kept as two longs (the high and low halves). IPv4 addresses are
+ * stored as IPv4-mapped IPv6 addresses (::ffff:a.b.c.d), so an IPv4 /24 is a /120, and
+ * both kinds of rules live in the same trie.
+ *
+ * The trie is a path-compressed binary trie: a node only exists where a prefix ends or
+ * where two prefixes part ways, and each node holds its whole prefix. A lookup follows
+ * one bit per node, so it visits at most one node per distinct prefix length on the
+ * address's path (never more than 129) however many prefixes there are. Nodes are kept
+ * in parallel arrays rather than as objects.
+ */
+public final class AddressTrie {
+
+    /** Value of lookup when no prefix contains the address. */
+    public static final int NO_VALUE = -1;
+
+    private static final long IPV4_MAPPED = 0xFFFFL << 32; // Low half of ::ffff:0.0.0.0
+
+    private long[] prefixHigh = new long[16]; // Node -> prefix bits, masked to its length
+    private long[] prefixLow = new long[16];
+    private int[] lengths = new int[16]; // Node -> prefix length in bits
+    private int[] values = new int[16]; // Node -> value, NO_VALUE if no prefix ends here
+    private int[] zeros = new int[16]; // Node -> child for a 0 bit after the prefix, 0 for none
+    private int[] ones = new int[16]; // Node -> child for a 1 bit after the prefix, 0 for none
+    private int size = 1; // Node 0 is the root, the empty prefix
+    private int prefixCount;
+
+    public AddressTrie() {
+        values[0] = NO_VALUE;
+    }
+
+    /**
+     * Maps a prefix to a value, replacing the value of the same prefix if it was already added.
+     *
+     * @param high - High 64 bits of the address
+     * @param low - Low 64 bits of the address
+     * @param length - Prefix length in bits, from 0 to 128
+     * @param value - Value of the prefix (not negative)
+     */
+    public void put(long high, long low, int length, int value) {
+        high &= highMask(length);
+        low &= lowMask(length);
+        int node = 0;
+        while (true) {
+            if (lengths[node] == length) { // Same prefix
+                if (values[node] == NO_VALUE) {
+                    prefixCount++;
+                }
+                values[node] = value;
+                return;
+            }
+
+            boolean one = bitAt(high, low, lengths[node]);
+            int child = one ? ones[node] : zeros[node];
+            if (child == 0) { // Nothing below on that side yet
+                setChild(node, one, newNode(high, low, length, value));
+                return;
+            }
+
+            int common = commonPrefix(high, low, prefixHigh[child], prefixLow[child], Math.min(length, lengths[child]));
+            if (common == lengths[child]) { // The child's prefix contains the new one
+                node = child;
+                continue;
+            }
+
+            // The prefixes part ways (or the new one ends) within the child's prefix: split it
+            int split = newNode(high & highMask(common), low & lowMask(common), common, NO_VALUE);
+            setChild(split, bitAt(prefixHigh[child], prefixLow[child], common), child);
+            if (common == length) {
+                values[split] = value;
+                prefixCount++;
+            } else {
+                setChild(split, bitAt(high, low, common), newNode(high, low, length, value));
+            }
+            setChild(node, one, split);
+            return;
+        }
+    }
+
+    /**
+     * Finds the value of the longest prefix that contains an address.
+     *
+     * @param high - High 64 bits of the address
+     * @param low - Low 64 bits of the address
+     * @return the value, or NO_VALUE if no prefix contains the address
+     */
+    public int lookup(long high, long low) {
+        int best = NO_VALUE;
+        int node = 0;
+        while (true) {
+            int length = lengths[node];
+            if (commonPrefix(high, low, prefixHigh[node], prefixLow[node], length) < length) {
+                return best;
+            }
+            if (values[node] != NO_VALUE) {
+                best = values[node];
+            }
+            if (length == 128) {
+                return best;
+            }
+            node = bitAt(high, low, length) ? ones[node] : zeros[node];
+            if (node == 0) {
+                return best;
+            }
+        }
+    }
+
+    /**
+     * @return the number of prefixes added
+     */
+    public int size() {
+        return prefixCount;
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address straight from bytes, without creating a String.
+     * IPv6 addresses may use "::" and may end in a dotted IPv4 address.
+     *
+     * @param buffer - Buffer holding the address
+     * @param start - Index of the first byte of the address
+     * @param end - Index just past the last byte of the address
+     * @param address - Receives the high and low 64 bits (IPv4 addresses are mapped to IPv6)
+     * @return false if the bytes are not an address (e.g. "-")
+     */
+    public static boolean parseAddress(byte[] buffer, int start, int end, long[] address) {
+        long ipv4 = parseIPv4(buffer, start, end);
+        if (ipv4 >= 0) {
+            address[0] = 0;
+            address[1] = IPV4_MAPPED | ipv4;
+            return true;
+        }
+        return parseIPv6(buffer, start, end, address);
+    }
+
+    /**
+     * Parses a CIDR block such as "10.0.0.0/8" or "2001:db8::/32". An address without a
+     * prefix length is a single address (/32 or /128).
+     *
+     * @param cidr - CIDR block
+     * @param address - Receives the high and low 64 bits of the address
+     * @return the prefix length, in bits of the 128 bit (IPv4-mapped) address
+     * @throws IllegalArgumentException if the block is not valid
+     */
+    public static int parseCidr(String cidr, long[] address) {
+        int slash = cidr.indexOf('/');
+        byte[] bytes = ((slash < 0) ? cidr : cidr.substring(0, slash)).trim().getBytes(StandardCharsets.US_ASCII);
+        boolean ipv4 = parseIPv4(bytes, 0, bytes.length) >= 0;
+        if (!parseAddress(bytes, 0, bytes.length, address)) {
+            throw new IllegalArgumentException("Invalid address in CIDR block: " + cidr);
+        }
+
+        int maxLength = ipv4 ? 32 : 128;
+        int length = maxLength;
+        if (slash >= 0) {
+            try {
+                length = Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            if (length < 0 || length > maxLength) {
+                throw new IllegalArgumentException("Invalid prefix length in CIDR block: " + cidr);
+            }
+        }
+        return ipv4 ? length + 96 : length;
+    }
+
+    /**
+     * @return the IPv4 address as an unsigned 32 bit number, or -1 if the bytes are not one
+     */
+    private static long parseIPv4(byte[] buffer, int start, int end) {
+        long value = 0;
+        int dots = 0;
+        int octet = -1;
+        for (int i = start; i < end; i++) {
+            int c = buffer[i];
+            if (c >= '0' && c <= '9') {
+                octet = ((octet < 0) ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                value = (value << 8) | octet;
+                dots++;
+                octet = -1;
+            } else {
+                return -1;
+            }
+        }
+        if (octet < 0 || dots != 3) {
+            return -1;
+        }
+        return (value << 8) | octet;
+    }
+
+    private static boolean parseIPv6(byte[] buffer, int start, int end, long[] address) {
+        long high = 0; // Groups before "::" (or all of them), shifted in from the right
+        long low = 0;
+        long tailHigh = 0; // Groups after "::"
+        long tailLow = 0;
+        int groups = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+
+        int i = start;
+        if (end - start >= 2 && buffer[i] == ':' && buffer[i + 1] == ':') {
+            compressed = true;
+            i += 2;
+        }
+        while (i < end) {
+            int groupStart = i;
+            int group = 0;
+            while (i < end && i - groupStart < 4 && hexValue(buffer[i]) >= 0) {
+                group = (group << 4) | hexValue(buffer[i]);
+                i++;
+            }
+
+            int count = 1;
+            if (i < end && buffer[i] == '.') { // Dotted IPv4 address as the last 32 bits
+                long ipv4 = parseIPv4(buffer, groupStart, end);
+                if (ipv4 < 0) {
+                    return false;
+                }
+                group = (int) ipv4;
+                count = 2;
+                i = end;
+            } else if (i == groupStart) { // Empty group, e.g. ":::" or a leading ":"
+                return false;
+            }
+
+            long bits = (count == 2) ? (group & 0xFFFFFFFFL) : group;
+            int shift = 16 * count;
+            if (compressed) {
+                tailHigh = (tailHigh << shift) | (tailLow >>> (64 - shift));
+                tailLow = (tailLow << shift) | bits;
+                tailGroups += count;
+            } else {
+                high = (high << shift) | (low >>> (64 - shift));
+                low = (low << shift) | bits;
+                groups += count;
+            }
+            if (groups + tailGroups > 8) {
+                return false;
+            }
+
+            if (i == end) {
+                break;
+            }
+            if (buffer[i] != ':') {
+                return false;
+            }
+            i++;
+            if (i < end && buffer[i] == ':') {
+                if (compressed) {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            } else if (i == end) { // Trailing single ":"
+                return false;
+            }
+        }
+
+        if (compressed) {
+            if (groups + tailGroups > 7) {
+                return false;
+            }
+            for (int group = groups; group < 8; group++) { // Move the leading groups into place
+                high = (high << 16) | (low >>> 48);
+                low <<= 16;
+            }
+            high |= tailHigh;
+            low |= tailLow;
+        } else if (groups != 8) {
+            return false;
+        }
+        address[0] = high;
+        address[1] = low;
+        return true;
+    }
+
+    private static int hexValue(byte c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private int newNode(long high, long low, int length, int value) {
+        if (size == lengths.length) {
+            int capacity = size * 2;
+            prefixHigh = Arrays.copyOf(prefixHigh, capacity);
+            prefixLow = Arrays.copyOf(prefixLow, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            values = Arrays.copyOf(values, capacity);
+            zeros = Arrays.copyOf(zeros, capacity);
+            ones = Arrays.copyOf(ones, capacity);
+        }
+        prefixHigh[size] = high;
+        prefixLow[size] = low;
+        lengths[size] = length;
+        values[size] = value;
+        if (value != NO_VALUE) {
+            prefixCount++;
+        }
+        return size++;
+    }
+
+    private void setChild(int node, boolean one, int child) {
+        if (one) {
+            ones[node] = child;
+        } else {
+            zeros[node] = child;
+        }
+    }
+
+    /**
+     * @return the number of leading bits two addresses share, at most limit
+     */
+    private static int commonPrefix(long highA, long lowA, long highB, long lowB, int limit) {
+        long difference = highA ^ highB;
+        int common = (difference != 0) ? Long.numberOfLeadingZeros(difference) : 64 + Long.numberOfLeadingZeros(lowA ^ lowB);
+        return Math.min(common, limit);
+    }
+
+    private static boolean bitAt(long high, long low, int position) {
+        return (((position < 64) ? (high >>> (63 - position)) : (low >>> (127 - position))) & 1L) != 0;
+    }
+
+    private static long highMask(int length) {
+        return (length >= 64) ? -1L : (length == 0) ? 0 : -1L << (64 - length);
+    }
+
+    private static long lowMask(int length) {
+        return (length <= 64) ? 0 : (length == 128) ? -1L : -1L << (128 - length);
+    }
+}
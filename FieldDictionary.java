@@ -0,0 +1,136 @@
+// File Name: FieldDictionary.java
+// Author: Steven Pham
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Assigns small integer ids to the distinct values of a text field (such as an interface
+ * id or an action), straight from the bytes of a line.
+ *
+ * A value that was seen before is found by hashing and comparing its bytes, so looking it
+ * up never creates a String. The bytes of each new value are copied once into one growing
+ * array, and Strings are only created when the values are rendered.
+ */
+public final class FieldDictionary {
+
+    private static final int INITIAL_CAPACITY = 64; // Must be a power of two
+
+    private byte[] bytes = new byte[1024]; // Bytes of every value, one after another
+    private int bytesUsed;
+    private int[] starts = new int[INITIAL_CAPACITY / 2]; // Id -> offset in bytes
+    private int[] lengths = new int[INITIAL_CAPACITY / 2]; // Id -> length in bytes
+    private int[] hashes = new int[INITIAL_CAPACITY / 2]; // Id -> hash of the value
+    private int size;
+
+    private int[] index = new int[INITIAL_CAPACITY]; // Slot -> id + 1, 0 when the slot is empty
+    private int mask = INITIAL_CAPACITY - 1;
+
+    /**
+     * Finds the id of a value, adding the value if it is new.
+     *
+     * @param buffer - Buffer holding the value
+     * @param start - Index of the first byte of the value
+     * @param end - Index just past the last byte of the value
+     * @return the id of the value, from 0 in first-seen order
+     */
+    public int idOf(byte[] buffer, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+
+        int slot = spread(hash) & mask;
+        while (true) {
+            int entry = index[slot];
+            if (entry == 0) {
+                break;
+            }
+            int id = entry - 1;
+            if (hashes[id] == hash && equals(id, buffer, start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == starts.length) {
+            grow();
+            return idOf(buffer, start, end);
+        }
+        int length = end - start;
+        if (bytesUsed + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, bytesUsed + length));
+        }
+        System.arraycopy(buffer, start, bytes, bytesUsed, length);
+        starts[size] = bytesUsed;
+        lengths[size] = length;
+        hashes[size] = hash;
+        bytesUsed += length;
+        index[slot] = size + 1;
+        return size++;
+    }
+
+    /**
+     * Finds the id of a value given as a String, adding the value if it is new.
+     *
+     * @param value - Value
+     * @return the id of the value
+     */
+    public int idOf(String value) {
+        byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        return idOf(encoded, 0, encoded.length);
+    }
+
+    /**
+     * @param id - Id returned by idOf
+     * @return the value
+     */
+    public String get(int id) {
+        return new String(bytes, starts[id], lengths[id], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of distinct values
+     */
+    public int size() {
+        return size;
+    }
+
+    private boolean equals(int id, byte[] buffer, int start, int end) {
+        if (lengths[id] != end - start) {
+            return false;
+        }
+        int offset = starts[id];
+        for (int i = start; i < end; i++) {
+            if (bytes[offset++] != buffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Doubles the id arrays and rebuilds the index at twice the id capacity.
+     */
+    private void grow() {
+        int capacity = starts.length * 2;
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+
+        index = new int[capacity * 2];
+        mask = index.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = spread(hashes[id]) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = id + 1;
+        }
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9; // Fibonacci hashing, like LongCountMap
+        return h ^ (h >>> 16);
+    }
+}
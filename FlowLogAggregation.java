@@ -0,0 +1,229 @@
+// File Name: FlowLogAggregation.java
+// Author: Steven Pham
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Describes one extra aggregate computed while the flow log is read, next to the tag and
+ * port/protocol counts: a function over the records, grouped by one or more fields.
+ *
+ * An aggregation is written as "function by key,key...", for example:
+ *      count by tag,action         - ACCEPT/REJECT counts per tag
+ *      sum(bytes) by tag           - Bytes per tag
+ *      sum(packets) by interface-id - Packets per ENI
+ *      max(bytes) by dstport,protocol
+ *      distinct(srcaddr) by tag    - Approximate number of source addresses per tag
+ *      top(20) by srcaddr,dstaddr  - Approximate 20 busiest address pairs
+ *
+ * The exact functions are count, sum(field), min(field) and max(field), over a numeric
+ * field. Keys are any fields of the flow log format, plus "tag" for the tag from the
+ * lookup table.
+ *
+ * The exact functions keep one value per group, so their memory grows with the number of
+ * distinct keys. For high cardinality keys (such as addresses) there are two approximate
+ * functions with fixed memory:
+ *      distinct(field) - Distinct values of a field per group, with a HyperLogLog sketch
+ *                        of 2^precision bytes per group (see HyperLogLog for the error)
+ *      top(K)          - The K most frequent key combinations, with a Space-Saving summary
+ *                        of K entries in total (see SpaceSaving for the error)
+ *
+ * The exact functions can also be given a memory budget (see withSpill): once an
+ * aggregation holds that many groups, they are spilled to a sorted run on disk and merged
+ * back when the results are written (see FlowLogSpill), so exact results over any number
+ * of distinct keys only need a bounded amount of memory.
+ *
+ * Every aggregation is updated in the same pass over the flow log (see FlowLogAggregator),
+ * so adding one does not read the flow log again.
+ */
+public final class FlowLogAggregation {
+
+    /** Key name of the tag from the lookup table, rather than a field of the flow log. */
+    public static final String TAG = "tag";
+
+    public enum Function { COUNT, SUM, MIN, MAX, DISTINCT, TOP }
+
+    private static final Pattern SYNTAX = Pattern.compile(
+            "\\s*(count|sum|min|max|distinct|top)\\s*(?:\\(\\s*([A-Za-z0-9][A-Za-z0-9_-]*)?\\s*\\))?\\s+by\\s+(.+)", Pattern.CASE_INSENSITIVE);
+    private static final int MAX_TOP_CAPACITY = 1 << 20;
+    private static final Pattern FIELD_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_-]*");
+
+    private final Function function;
+    private final String valueField; // null for count and top
+    private final String[] keyFields;
+    private final int capacity; // K of top
+    private final int precision; // HyperLogLog precision of distinct
+    private final int spillGroups; // Groups held in memory before spilling, 0 for no limit
+    private final String spillDirectory; // Directory of the spilled runs, null for the temporary directory
+
+    private FlowLogAggregation(Function function, String valueField, String[] keyFields, int capacity, int precision,
+                               int spillGroups, String spillDirectory) {
+        this.function = function;
+        this.valueField = valueField;
+        this.keyFields = keyFields;
+        this.capacity = capacity;
+        this.precision = precision;
+        this.spillGroups = spillGroups;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Parses an aggregation, such as "sum(bytes) by tag".
+     *
+     * @param definition - Aggregation, see the class comment
+     * @return the aggregation
+     * @throws IllegalArgumentException if the aggregation is not valid
+     */
+    public static FlowLogAggregation parse(String definition) {
+        return parse(definition, HyperLogLog.DEFAULT_PRECISION);
+    }
+
+    /**
+     * Parses an aggregation, with the precision of its distinct sketches.
+     *
+     * @param definition - Aggregation, see the class comment
+     * @param precision - HyperLogLog precision of distinct, see HyperLogLog
+     * @return the aggregation
+     * @throws IllegalArgumentException if the aggregation is not valid
+     */
+    public static FlowLogAggregation parse(String definition, int precision) {
+        Matcher matcher = SYNTAX.matcher(definition);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid aggregation (expected e.g. \"sum(bytes) by tag\"): " + definition);
+        }
+
+        Function function = Function.valueOf(matcher.group(1).toUpperCase(Locale.ROOT));
+        String valueField = matcher.group(2);
+        int capacity = 0;
+        if (function == Function.COUNT && valueField != null) {
+            throw new IllegalArgumentException("count takes no field: " + definition);
+        }
+        if (function == Function.TOP) {
+            capacity = parseCapacity(valueField, definition);
+            valueField = null;
+        } else if (function != Function.COUNT && (valueField == null || !FIELD_NAME.matcher(valueField).matches())) {
+            throw new IllegalArgumentException(matcher.group(1) + " needs a field, e.g. " + matcher.group(1) + "(bytes): " + definition);
+        }
+        if (function == Function.DISTINCT && (precision < HyperLogLog.MIN_PRECISION || precision > HyperLogLog.MAX_PRECISION)) {
+            throw new IllegalArgumentException("Distinct precision must be from " + HyperLogLog.MIN_PRECISION + " to " + HyperLogLog.MAX_PRECISION + ": " + precision);
+        }
+
+        ArrayList<String> keyFields = new ArrayList<String>();
+        for (String key : matcher.group(3).trim().split("[\\s,]+")) {
+            if (!FIELD_NAME.matcher(key).matches()) {
+                throw new IllegalArgumentException("Invalid key field in aggregation: " + key);
+            }
+            if (keyFields.contains(key)) {
+                throw new IllegalArgumentException("Key field listed twice in aggregation: " + key);
+            }
+            keyFields.add(key);
+        }
+        return new FlowLogAggregation(function, valueField, keyFields.toArray(new String[0]), capacity, precision, 0, null);
+    }
+
+    /**
+     * Returns the same aggregation with a memory budget: once it holds spillGroups groups,
+     * they are spilled to disk (see FlowLogSpill). Only the exact functions spill, since
+     * top already has a fixed size and distinct keeps a sketch per group.
+     *
+     * @param spillGroups - Number of groups held in memory before spilling, 0 for no limit
+     * @param spillDirectory - Directory of the spilled runs, or null for the temporary directory
+     * @return the aggregation with the budget
+     */
+    public FlowLogAggregation withSpill(int spillGroups, String spillDirectory) {
+        if (spillGroups < 0) {
+            throw new IllegalArgumentException("Spill group count must not be negative: " + spillGroups);
+        }
+        return new FlowLogAggregation(function, valueField, keyFields, capacity, precision, spillGroups, spillDirectory);
+    }
+
+    private static int parseCapacity(String text, String definition) {
+        try {
+            int capacity = (text == null) ? -1 : Integer.parseInt(text);
+            if (capacity > 0 && capacity <= MAX_TOP_CAPACITY) {
+                return capacity;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("top needs a number of keys from 1 to " + MAX_TOP_CAPACITY + ", e.g. top(10): " + definition);
+    }
+
+    /**
+     * @return the function applied to the records of each group
+     */
+    public Function getFunction() {
+        return function;
+    }
+
+    /**
+     * @return the field the function is applied to, or null for count and top
+     */
+    public String getValueField() {
+        return valueField;
+    }
+
+    /**
+     * @return the number of key combinations kept by top
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the HyperLogLog precision of distinct
+     */
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return the number of groups held in memory before spilling, 0 for no limit
+     */
+    public int getSpillGroups() {
+        return spillGroups;
+    }
+
+    /**
+     * @return the directory of the spilled runs, or null for the temporary directory
+     */
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * @return true if the function is computed exactly (count, sum, min or max), and so can spill
+     */
+    public boolean isExact() {
+        return function != Function.DISTINCT && function != Function.TOP;
+    }
+
+    /**
+     * @return the fields the records are grouped by, in order
+     */
+    public String[] getKeyFields() {
+        return keyFields.clone();
+    }
+
+    /**
+     * @return the function as written, e.g. "sum(bytes)"
+     */
+    public String getFunctionName() {
+        String name = function.name().toLowerCase(Locale.ROOT);
+        if (function == Function.TOP) {
+            return name + "(" + capacity + ")";
+        }
+        return (valueField == null) ? name : name + "(" + valueField + ")";
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(getFunctionName()).append(" by ");
+        for (int i = 0; i < keyFields.length; i++) {
+            text.append(i == 0 ? "" : ",").append(keyFields[i]);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,497 @@
+// File Name: FlowLogAggregator.java
+// Author: Steven Pham
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Computes one FlowLogAggregation over the records of (part of) a flow log.
+ *
+ * Key values are turned into integers without creating Strings: the tag is its tag id,
+ * and the value of any other key field gets an id from a FieldDictionary. The ids of a
+ * record's keys are packed into one long (two ids side by side; with more keys the first
+ * ones are folded into the id of their combination first), and that long finds the
+ * group's running value in a LongCountMap. Groups keep the order they were first seen in.
+ *
+ * distinct keeps a HyperLogLog per group instead of a value, fed with a hash of the bytes of
+ * the value field. top does not keep groups at all: each record's keys are hashed into one
+ * fingerprint (the tag by its name, so fingerprints agree across lookup tables) for a
+ * SpaceSaving summary, and the key bytes are only copied when a key enters the summary.
+ *
+ * With a memory budget (see FlowLogAggregation.withSpill), an exact aggregate that reaches
+ * its number of groups renders them, spills them to a sorted run on disk and starts over
+ * with empty dictionaries and maps. The runs and the groups in memory are merged when the
+ * results are written (see FlowLogSpill), in key order rather than first-seen order.
+ *
+ * Like FlowLogCounts, each worker thread fills its own instance, and the instances are
+ * merged at the end.
+ */
+public final class FlowLogAggregator {
+
+    private final FlowLogAggregation aggregation;
+    private final LookupTable table;
+    private final FlowLogAggregation.Function function;
+    private final boolean[] tagKeys; // Key -> true if it is the tag
+    private final FieldDictionary[] dictionaries; // Key -> value ids, null for the tag
+
+    private final LongCountMap combinations = new LongCountMap(); // Packed ids of leading keys -> combination id
+    private final LongCountMap groups = new LongCountMap(); // Packed key ids -> value of the group
+    private final int spillGroups; // Groups in memory that trigger a spill, Integer.MAX_VALUE for never
+    private FlowLogSpill spill; // Runs spilled to disk, null until the first spill
+    private int[] groupKeys = new int[64]; // Group -> key ids, keyCount per group
+    private final ArrayList<HyperLogLog> sketches; // Group -> distinct values, for distinct
+    private final SpaceSaving topKeys; // Most frequent key combinations, for top
+    private final long[] tagHashes; // Tag id -> hash of the tag name, for top
+    private final byte[][] tagNames; // Tag id -> bytes of the tag name, for top
+    private byte[] label = new byte[128]; // Key bytes of the current record, for top
+
+    // Columns of the format being read, set by bind
+    private FlowLogFormat boundFormat;
+    private final int[] keyColumns;
+    private int valueColumn = -1;
+    private final int[] keyIds; // Key ids of the current record
+
+    /**
+     * @param aggregation - Aggregation to compute
+     * @param table - Lookup table of the records' tag ids
+     */
+    public FlowLogAggregator(FlowLogAggregation aggregation, LookupTable table) {
+        this.aggregation = aggregation;
+        this.table = table;
+        this.function = aggregation.getFunction();
+
+        String[] keyFields = aggregation.getKeyFields();
+        this.tagKeys = new boolean[keyFields.length];
+        this.dictionaries = new FieldDictionary[keyFields.length];
+        for (int key = 0; key < keyFields.length; key++) {
+            tagKeys[key] = keyFields[key].equals(FlowLogAggregation.TAG);
+            dictionaries[key] = tagKeys[key] ? null : new FieldDictionary();
+        }
+        this.keyColumns = new int[keyFields.length];
+        this.keyIds = new int[keyFields.length];
+        this.spillGroups = (aggregation.isExact() && aggregation.getSpillGroups() > 0) ? aggregation.getSpillGroups() : Integer.MAX_VALUE;
+
+        this.sketches = (function == FlowLogAggregation.Function.DISTINCT) ? new ArrayList<HyperLogLog>() : null;
+        if (function == FlowLogAggregation.Function.TOP) {
+            this.topKeys = new SpaceSaving(aggregation.getCapacity());
+            this.tagNames = new byte[table.getTagCount()][];
+            this.tagHashes = new long[tagNames.length];
+            for (int tagId = 0; tagId < tagNames.length; tagId++) {
+                tagNames[tagId] = table.getTagName(tagId).getBytes(StandardCharsets.UTF_8);
+                tagHashes[tagId] = hash(tagNames[tagId], 0, tagNames[tagId].length);
+            }
+        } else {
+            this.topKeys = null;
+            this.tagNames = null;
+            this.tagHashes = null;
+        }
+    }
+
+    /**
+     * Finds the columns of the key and value fields in the format of the records to come.
+     *
+     * @param format - Format of the flow log being read
+     * @throws IllegalArgumentException if the format lacks one of the fields
+     */
+    public void bind(FlowLogFormat format) {
+        if (format == boundFormat) {
+            return;
+        }
+        boundFormat = format;
+        String[] keyFields = aggregation.getKeyFields();
+        for (int key = 0; key < keyFields.length; key++) {
+            keyColumns[key] = tagKeys[key] ? -1 : format.project(keyFields[key])[0];
+        }
+        valueColumn = (aggregation.getValueField() == null) ? -1 : format.project(aggregation.getValueField())[0];
+    }
+
+    /**
+     * Adds the current record of a tokenizer. Records without a numeric value for the
+     * function (e.g. "-" in the bytes field of a NODATA record) are skipped.
+     *
+     * @param tokenizer - Tokenizer positioned on a record of the bound format
+     * @param tagId - Tag id of the record
+     */
+    public void add(FlowLogTokenizer tokenizer, int tagId) {
+        if (topKeys != null) {
+            addTop(tokenizer, tagId);
+            return;
+        }
+
+        long value = 1;
+        if (function == FlowLogAggregation.Function.DISTINCT) {
+            if (!tokenizer.hasField(valueColumn)) {
+                return;
+            }
+            value = hash(tokenizer.getBuffer(), tokenizer.getFieldStart(valueColumn), tokenizer.getFieldEnd(valueColumn));
+        } else if (valueColumn >= 0) {
+            value = tokenizer.parseLong(valueColumn);
+            if (value < 0) {
+                return;
+            }
+        }
+
+        byte[] buffer = tokenizer.getBuffer();
+        for (int key = 0; key < keyIds.length; key++) {
+            if (tagKeys[key]) {
+                keyIds[key] = tagId;
+            } else if (tokenizer.hasField(keyColumns[key])) {
+                keyIds[key] = dictionaries[key].idOf(buffer, tokenizer.getFieldStart(keyColumns[key]), tokenizer.getFieldEnd(keyColumns[key]));
+            } else {
+                return;
+            }
+        }
+        accumulate(keyIds, value);
+    }
+
+    /**
+     * Adds the groups of another instance of the same aggregation to this one, and takes
+     * over its spilled runs. The other instance must not be used afterwards.
+     *
+     * @param other - Aggregator of a later part of the flow log
+     * @param tagIdMap - Tag id in the other's lookup table -> tag id in this one's, or null if the tables are the same
+     */
+    public void merge(FlowLogAggregator other, int[] tagIdMap) {
+        merge(other, tagIdMap, true);
+    }
+
+    /**
+     * Adds the groups of another instance of the same aggregation to this one, like merge,
+     * but only reads its spilled runs in place: the other instance keeps its runs and can
+     * keep counting, and must not delete them while this one is used.
+     *
+     * @param other - Aggregator of another part of the flow log
+     * @param tagIdMap - Tag id in the other's lookup table -> tag id in this one's, or null if the tables are the same
+     */
+    public void mergeShared(FlowLogAggregator other, int[] tagIdMap) {
+        merge(other, tagIdMap, false);
+    }
+
+    private void merge(FlowLogAggregator other, int[] tagIdMap, boolean takeRuns) {
+        if (topKeys != null) {
+            topKeys.merge(other.topKeys);
+            return;
+        }
+        if (other.spill != null) {
+            try {
+                if (takeRuns) {
+                    spill().addRuns(other.spill);
+                } else {
+                    spill().shareRuns(other.spill);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        int[] ids = new int[keyIds.length];
+        for (int group = 0; group < other.groups.size(); group++) {
+            for (int key = 0; key < ids.length; key++) {
+                int id = other.groupKeys[group * ids.length + key];
+                if (tagKeys[key]) {
+                    ids[key] = (tagIdMap == null) ? id : tagIdMap[id];
+                } else {
+                    ids[key] = dictionaries[key].idOf(other.dictionaries[key].get(id));
+                }
+            }
+            if (sketches != null) {
+                sketchOf(groupOf(ids)).merge(other.sketches.get(group));
+            } else {
+                accumulate(ids, other.groups.countAt(group));
+            }
+        }
+    }
+
+    /**
+     * @return the aggregation computed by this aggregator
+     */
+    public FlowLogAggregation getAggregation() {
+        return aggregation;
+    }
+
+    /**
+     * @return the number of groups in memory (not counting spilled ones)
+     */
+    public int getGroupCount() {
+        return (topKeys != null) ? topKeys.size() : groups.size();
+    }
+
+    /**
+     * @return the number of runs spilled to disk
+     */
+    public int getSpilledRuns() {
+        return (spill == null) ? 0 : spill.getRunCount();
+    }
+
+    /**
+     * Renders the groups, in the order they were first seen (for top, from the most
+     * frequent to the least, and once spilled, in key order). The values of distinct and
+     * top are estimates. Spilled groups are all read back into the HashMap, so use
+     * writeResults to write the results of a large aggregate.
+     *
+     * @return a HashMap of "key,key..." -> value
+     */
+    public HashMap<String, Long> getResults() {
+        if (spill != null) {
+            final HashMap<String, Long> results = new LinkedHashMap<String, Long>();
+            mergeSpilled(new FlowLogSpill.Sink() {
+                public void accept(byte[] key, int keyLength, long value) {
+                    results.put(new String(key, 0, keyLength, StandardCharsets.UTF_8), value);
+                }
+            });
+            return results;
+        }
+        if (topKeys != null) {
+            HashMap<String, Long> results = new LinkedHashMap<String, Long>();
+            for (int slot : topKeys.slotsByCount()) {
+                results.put(topKeys.getLabel(slot), topKeys.getCount(slot));
+            }
+            return results;
+        }
+
+        HashMap<String, Long> results = new LinkedHashMap<String, Long>(); // Group ids are in first-seen order
+        for (int group = 0; group < groups.size(); group++) {
+            StringBuilder name = new StringBuilder();
+            for (int key = 0; key < keyIds.length; key++) {
+                int id = groupKeys[group * keyIds.length + key];
+                name.append(key == 0 ? "" : ",").append(tagKeys[key] ? table.getTagName(id) : dictionaries[key].get(id));
+            }
+            results.put(name.toString(), (sketches != null) ? sketches.get(group).estimate() : groups.countAt(group));
+        }
+        return results;
+    }
+
+    /**
+     * Writes the groups as "key,key...,value" lines, in the order of getResults. Spilled
+     * groups are merged as they are written, so only one group per run is held in memory.
+     *
+     * @param writer - Writer of the output file
+     * @throws IOException if the output or a spilled run fails
+     */
+    public void writeResults(final Writer writer) throws IOException {
+        if (spill != null) {
+            mergeSpilled(new FlowLogSpill.Sink() {
+                public void accept(byte[] key, int keyLength, long value) throws IOException {
+                    writer.write(new String(key, 0, keyLength, StandardCharsets.UTF_8) + "," + value + "\n");
+                }
+            });
+            return;
+        }
+        HashMap<String, Long> results = getResults();
+        for (String key : results.keySet()) {
+            writer.write(key + "," + results.get(key) + "\n");
+        }
+    }
+
+    /**
+     * Deletes the runs spilled to disk (or taken over by merge), once the results are no
+     * longer needed.
+     */
+    public void deleteSpilled() {
+        if (spill != null) {
+            spill.delete();
+        }
+    }
+
+    /**
+     * @return the header line of the rendered results, e.g. "tag,action,count"
+     */
+    public String getHeader() {
+        StringBuilder header = new StringBuilder();
+        for (String key : aggregation.getKeyFields()) {
+            header.append(key).append(",");
+        }
+        return header.append(aggregation.getFunctionName()).toString();
+    }
+
+    /**
+     * Applies a value to the group of the given key ids. For distinct the value is the hash
+     * of the field value.
+     */
+    private void accumulate(int[] ids, long value) {
+        int groupCount = groups.size();
+        int group = groupOf(ids);
+        if (sketches != null) {
+            sketchOf(group).add(value);
+            return;
+        }
+        if (group == groupCount) { // New group
+            groups.setCountAt(group, value);
+            if (group + 1 >= spillGroups) {
+                spillToDisk();
+            }
+            return;
+        }
+
+        long current = groups.countAt(group);
+        switch (function) {
+            case MIN:
+                groups.setCountAt(group, Math.min(current, value));
+                break;
+            case MAX:
+                groups.setCountAt(group, Math.max(current, value));
+                break;
+            default: // COUNT and SUM
+                groups.setCountAt(group, current + value);
+                break;
+        }
+    }
+
+    /**
+     * Finds the group of the given key ids, adding it if it is new.
+     */
+    private int groupOf(int[] ids) {
+        long packed = ids[0] & 0xFFFFFFFFL;
+        for (int key = 1; key < ids.length; key++) {
+            if (key > 1) { // Fold the leading keys into the id of their combination
+                packed = combinations.entryOf(packed);
+            }
+            packed = (packed << 32) | (ids[key] & 0xFFFFFFFFL);
+        }
+
+        int groupCount = groups.size();
+        int group = groups.entryOf(packed);
+        if (group == groupCount) { // New group
+            if ((group + 1) * ids.length > groupKeys.length) {
+                groupKeys = Arrays.copyOf(groupKeys, groupKeys.length * 2);
+            }
+            System.arraycopy(ids, 0, groupKeys, group * ids.length, ids.length);
+        }
+        return group;
+    }
+
+    /**
+     * Writes the groups in memory to a new sorted run, and starts over with empty
+     * dictionaries and maps, so that memory no longer grows with the number of groups.
+     */
+    private void spillToDisk() {
+        byte[][] keys = renderKeys();
+        long[] values = new long[keys.length];
+        for (int group = 0; group < values.length; group++) {
+            values[group] = groups.countAt(group);
+        }
+        try {
+            spill().addRun(keys, values, keys.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        groups.clear();
+        combinations.clear();
+        for (int key = 0; key < dictionaries.length; key++) {
+            if (dictionaries[key] != null) {
+                dictionaries[key] = new FieldDictionary();
+            }
+        }
+    }
+
+    /**
+     * Merges the spilled runs with the groups in memory, in key order.
+     */
+    private void mergeSpilled(FlowLogSpill.Sink sink) {
+        byte[][] keys = renderKeys();
+        long[] values = new long[keys.length];
+        for (int group = 0; group < values.length; group++) {
+            values[group] = groups.countAt(group);
+        }
+        try {
+            spill.merge(keys, values, keys.length, sink);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the "key,key..." bytes of every group in memory
+     */
+    private byte[][] renderKeys() {
+        byte[][] keys = new byte[groups.size()][];
+        StringBuilder name = new StringBuilder();
+        for (int group = 0; group < keys.length; group++) {
+            name.setLength(0);
+            for (int key = 0; key < keyIds.length; key++) {
+                int id = groupKeys[group * keyIds.length + key];
+                name.append(key == 0 ? "" : ",").append(tagKeys[key] ? table.getTagName(id) : dictionaries[key].get(id));
+            }
+            keys[group] = name.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return keys;
+    }
+
+    private FlowLogSpill spill() {
+        if (spill == null) {
+            spill = new FlowLogSpill(function, aggregation.getSpillDirectory());
+        }
+        return spill;
+    }
+
+    private HyperLogLog sketchOf(int group) {
+        if (group == sketches.size()) {
+            sketches.add(new HyperLogLog(aggregation.getPrecision()));
+        }
+        return sketches.get(group);
+    }
+
+    /**
+     * Counts the key combination of the current record in the top summary.
+     */
+    private void addTop(FlowLogTokenizer tokenizer, int tagId) {
+        byte[] buffer = tokenizer.getBuffer();
+        long fingerprint = 0;
+        for (int key = 0; key < keyColumns.length; key++) {
+            long keyHash;
+            if (tagKeys[key]) {
+                keyHash = tagHashes[tagId];
+            } else if (tokenizer.hasField(keyColumns[key])) {
+                keyHash = hash(buffer, tokenizer.getFieldStart(keyColumns[key]), tokenizer.getFieldEnd(keyColumns[key]));
+            } else {
+                return;
+            }
+            fingerprint = mix(fingerprint * 31 + keyHash);
+        }
+        if (topKeys.increment(fingerprint, 1)) {
+            return;
+        }
+
+        // New key combination: copy its bytes as "key,key..." for the output
+        int length = 0;
+        for (int key = 0; key < keyColumns.length; key++) {
+            byte[] source = tagKeys[key] ? tagNames[tagId] : buffer;
+            int start = tagKeys[key] ? 0 : tokenizer.getFieldStart(keyColumns[key]);
+            int end = tagKeys[key] ? source.length : tokenizer.getFieldEnd(keyColumns[key]);
+            if (length + (end - start) + 1 > label.length) {
+                label = Arrays.copyOf(label, Math.max(label.length * 2, length + (end - start) + 1));
+            }
+            if (key > 0) {
+                label[length++] = ',';
+            }
+            System.arraycopy(source, start, label, length, end - start);
+            length += end - start;
+        }
+        topKeys.offer(fingerprint, 1, label, length);
+    }
+
+    /**
+     * 64 bit hash of a byte range (FNV-1a, then mixed so that every bit of the result
+     * depends on every byte, as the sketches need).
+     */
+    private static long hash(byte[] buffer, int start, int end) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (buffer[i] & 0xFF)) * 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) { // Finalizer of MurmurHash3
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,228 @@
+// File Name: FlowLogBenchmark.java
+// Author: Steven Pham
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Throughput benchmarks for each stage of FlowLogParser, plus an end-to-end run.
+ *
+ * A synthetic flow log and lookup table are generated with FlowLogGenerator (deterministic
+ * for a given seed), then every stage is run for a number of warmup iterations followed by
+ * measured iterations. For each stage it reports the average and best time per operation,
+ * records/sec and MB/sec (for the stages that read the flow log), and the bytes allocated
+ * per operation and per second by the benchmarking thread. The worker threads of a run with
+ * --threads N are short-lived and not counted, so the allocation of the stages that read the
+ * flow log is reported as "n/a" when N > 1.
+ *
+ * Like the rest of the project, this needs no external libraries, so it is a small
+ * hand-written harness rather than JMH. Keep the JVM flags the same between runs that
+ * are compared.
+ *
+ * Usage: java FlowLogBenchmark [--protocols protocol-numbers-1.csv] [--dir bench-data]
+ *        [--size 100MB] [--seed N] [--warmup N] [--iterations N] [--threads N]
+ *        [--protocol-mix 6:80,17:15,1:5] [--port-cardinality N] [--hit-ratio R]
+ *        [--lookup-entries N] [--tags N]
+ */
+public class FlowLogBenchmark {
+
+    private final String protocolFile;
+    private final String lookupFile;
+    private final String flowLogFile;
+    private final String outputFile;
+    private final int threads;
+    private final int warmup;
+    private final int iterations;
+
+    private long records; // Records in the generated flow log
+    private long flowLogBytes;
+
+    /**
+     * A benchmarked operation.
+     */
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private FlowLogBenchmark(String protocolFile, String directory, int threads, int warmup, int iterations) {
+        this.protocolFile = protocolFile;
+        this.lookupFile = new File(directory, "bench-lookup.csv").getPath();
+        this.flowLogFile = new File(directory, "bench-flow-log.txt").getPath();
+        this.outputFile = new File(directory, "bench-output.txt").getPath();
+        this.threads = threads;
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Runs every stage and prints its results.
+     */
+    private void runAll() throws Exception {
+        final FlowLogParser prepared = new FlowLogParser();
+        prepared.prepareProtocolMappings(protocolFile);
+        prepared.prepareLookup(lookupFile);
+        final FlowLogCounts counts = prepared.countFlowLog(flowLogFile, threads);
+
+        System.out.println(String.format(Locale.ROOT, "%-24s %12s %12s %14s %10s %14s %14s",
+                "Stage", "avg ms/op", "best ms/op", "records/s", "MB/s", "alloc B/op", "alloc B/s"));
+
+        measure("prepareProtocolMappings", false, new Stage() {
+            public void run() {
+                new FlowLogParser().prepareProtocolMappings(protocolFile);
+            }
+        });
+
+        measure("prepareLookup", false, new Stage() {
+            public void run() {
+                FlowLogParser parser = new FlowLogParser();
+                parser.prepareLookup(lookupFile);
+            }
+        });
+
+        measure("compileLookup", false, new Stage() {
+            public void run() {
+                LookupTable.compile(prepared.getProtocolTable(), prepared.getLookupMap(), prepared.getLookupRanges());
+            }
+        });
+
+        measure("readFlowLog", true, new Stage() {
+            public void run() throws Exception {
+                prepared.countFlowLog(flowLogFile, threads);
+            }
+        });
+
+        measure("writeOutput", false, new Stage() {
+            public void run() {
+                prepared.writeOutput(counts, outputFile);
+            }
+        });
+
+        measure("endToEnd", true, new Stage() {
+            public void run() {
+                FlowLogParser parser = new FlowLogParser();
+                parser.prepareProtocolMappings(protocolFile);
+                parser.prepareLookup(lookupFile);
+                parser.readFlowLog(flowLogFile, outputFile, threads);
+            }
+        });
+
+        new File(outputFile).delete();
+    }
+
+    /**
+     * Runs a stage for the warmup and measured iterations, and prints its results.
+     *
+     * @param name - Name of the stage
+     * @param readsFlowLog - true if the stage reads the whole flow log, to report throughput
+     * @param stage - Operation to measure
+     */
+    private void measure(String name, boolean readsFlowLog, Stage stage) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            stage.run();
+        }
+
+        long total = 0;
+        long best = Long.MAX_VALUE;
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            stage.run();
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            best = Math.min(best, elapsed);
+        }
+        long allocatedAfter = allocatedBytes();
+
+        double averageSeconds = total / 1e9 / iterations;
+        String recordsPerSecond = readsFlowLog ? String.format(Locale.ROOT, "%.0f", records / averageSeconds) : "-";
+        String megabytesPerSecond = readsFlowLog ? String.format(Locale.ROOT, "%.1f", flowLogBytes / averageSeconds / (1 << 20)) : "-";
+
+        // The stages that read the flow log allocate on the worker threads when there are several
+        String allocation = "n/a";
+        String allocationPerSecond = "n/a";
+        if (allocatedBefore >= 0 && !(readsFlowLog && threads > 1)) {
+            long allocatedPerOperation = (allocatedAfter - allocatedBefore) / iterations;
+            allocation = String.valueOf(allocatedPerOperation);
+            allocationPerSecond = String.format(Locale.ROOT, "%.0f", allocatedPerOperation / averageSeconds);
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%-24s %12.3f %12.3f %14s %10s %14s %14s",
+                name, averageSeconds * 1e3, best / 1e6, recordsPerSecond, megabytesPerSecond, allocation, allocationPerSecond));
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if the JVM cannot tell.
+     *         Worker threads are not included (see measure).
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (hotspotBean.isThreadAllocatedMemorySupported() && hotspotBean.isThreadAllocatedMemoryEnabled()) {
+                return hotspotBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Main method that generates the benchmark data and runs the benchmarks.
+     *
+     * @param args - See the class comment
+     */
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option, got: " + args[i]);
+            }
+            options.put(args[i], args[i + 1]);
+        }
+
+        String protocolFile = option(options, "--protocols", "protocol-numbers-1.csv");
+        String directory = option(options, "--dir", System.getProperty("java.io.tmpdir"));
+        long size = FlowLogGenerator.parseSize(option(options, "--size", "100MB"));
+        long seed = Long.parseLong(option(options, "--seed", "42"));
+        int threads = Integer.parseInt(option(options, "--threads", "1"));
+        int warmup = Integer.parseInt(option(options, "--warmup", "2"));
+        int iterations = Integer.parseInt(option(options, "--iterations", "5"));
+
+        FlowLogBenchmark benchmark = new FlowLogBenchmark(protocolFile, directory, threads, warmup, Math.max(1, iterations));
+
+        FlowLogParser protocols = new FlowLogParser();
+        protocols.prepareProtocolMappings(protocolFile);
+        FlowLogGenerator generator = new FlowLogGenerator(protocols.getProtocolTable(), seed);
+        ArrayList<String> unknown = new ArrayList<String>();
+        for (String option : options.keySet()) {
+            if (!option.matches("--(protocols|dir|size|seed|threads|warmup|iterations)")
+                    && !generator.applyOption(option, options.get(option))) {
+                unknown.add(option);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options: " + unknown);
+        }
+
+        System.out.println("Generating " + size + " bytes of flow logs in " + directory + " (seed " + seed + ")...");
+        generator.writeLookupTable(benchmark.lookupFile);
+        benchmark.records = generator.writeFlowLog(benchmark.flowLogFile, size);
+        benchmark.flowLogBytes = new File(benchmark.flowLogFile).length();
+        System.out.println("Generated " + benchmark.records + " records. Threads: " + threads
+                + ", warmup: " + warmup + ", iterations: " + iterations + "\n");
+
+        try {
+            benchmark.runAll();
+        } finally {
+            new File(benchmark.flowLogFile).delete();
+            new File(benchmark.lookupFile).delete();
+        }
+    }
+
+    private static String option(HashMap<String, String> options, String name, String defaultValue) {
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+}
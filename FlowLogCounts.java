@@ -0,0 +1,411 @@
+// File Name: FlowLogCounts.java
+// Author: Steven Pham
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tag counts and port/protocol combination counts gathered from (part of) a flow log.
+ *
+ * Tag counts are a long[] indexed by tag id, and port/protocol counts are kept in a
+ * LongCountMap keyed by the packed (protocol, dst port) pair, so counting a record
+ * never boxes or allocates. Strings are only created when the counts are rendered.
+ *
+ * The counts can also carry extra aggregates (see FlowLogAggregation), which are updated
+ * in the same pass over the records and merged along with the counts. When address rules
+ * are used (see AddressRules), records are also counted per (address tag, tag) pair, and
+ * the counts keep the rules to name the address tags by.
+ *
+ * Each worker thread fills its own instance, and the instances are merged in file order
+ * at the end. Port/protocol combinations remember the order in which they were first
+ * seen, so a merged result is reported exactly like a single sequential pass.
+ */
+public final class FlowLogCounts {
+
+    private final LookupTable table;
+    private final long[] tagCounts; // Tag id -> count
+    private final LongCountMap portProtocolCounts = new LongCountMap(); // Packed protocol/port -> count
+    private final LongCountMap addressTagCounts = new LongCountMap(); // Packed address tag id/tag id -> count
+    private final AddressRules addressRules; // Names of the address tag ids, null if address tags are not counted
+    private final List<FlowLogAggregation> aggregations;
+    private final FlowLogAggregator[] aggregators; // One per aggregation, in the same order
+
+    /**
+     * Creates empty counts for records tagged with the given lookup table.
+     *
+     * @param table - Compiled lookup table the records are tagged with
+     */
+    public FlowLogCounts(LookupTable table) {
+        this(table, Collections.<FlowLogAggregation>emptyList());
+    }
+
+    /**
+     * Creates empty counts and aggregates for records tagged with the given lookup table.
+     *
+     * @param table - Compiled lookup table the records are tagged with
+     * @param aggregations - Extra aggregates to compute while counting
+     */
+    public FlowLogCounts(LookupTable table, List<FlowLogAggregation> aggregations) {
+        this(table, aggregations, null);
+    }
+
+    /**
+     * Creates empty counts and aggregates for records tagged with the given lookup table,
+     * which are also counted per address tag.
+     *
+     * @param table - Compiled lookup table the records are tagged with
+     * @param aggregations - Extra aggregates to compute while counting
+     * @param addressRules - Address rules the records are tagged with, or null if address tags are not counted
+     */
+    public FlowLogCounts(LookupTable table, List<FlowLogAggregation> aggregations, AddressRules addressRules) {
+        this.table = table;
+        this.addressRules = addressRules;
+        this.tagCounts = new long[table.getTagCount()];
+        this.aggregations = aggregations;
+        this.aggregators = new FlowLogAggregator[aggregations.size()];
+        for (int i = 0; i < aggregators.length; i++) {
+            aggregators[i] = new FlowLogAggregator(aggregations.get(i), table);
+        }
+    }
+
+    /**
+     * Counts one record.
+     *
+     * @param tagId - Tag id of the record, from the lookup table
+     * @param protocol - Protocol number of the record
+     * @param dstPort - Destination port of the record
+     */
+    public void add(int tagId, int protocol, int dstPort) {
+        tagCounts[tagId]++;
+        portProtocolCounts.increment(portProtocolKey(protocol, dstPort));
+    }
+
+    /**
+     * Counts the address tag of one record, together with its tag.
+     *
+     * @param addressTagId - Address tag id of the record, from AddressRules
+     * @param tagId - Tag id of the record, from the lookup table
+     */
+    public void addAddressTag(int addressTagId, int tagId) {
+        addressTagCounts.increment(((long) addressTagId << 32) | tagId);
+    }
+
+    /**
+     * Adds to the count of a tag, e.g. when loading counts from a snapshot.
+     *
+     * @param tagId - Tag id from the lookup table
+     * @param count - Number of records to add
+     */
+    public void addTagCount(int tagId, long count) {
+        tagCounts[tagId] += count;
+    }
+
+    /**
+     * Adds to the count of an address tag and tag pair, e.g. when loading counts from a snapshot.
+     *
+     * @param addressTagId - Address tag id from the address rules
+     * @param tagId - Tag id from the lookup table
+     * @param count - Number of records to add
+     */
+    public void addAddressTagCount(int addressTagId, int tagId, long count) {
+        addressTagCounts.add(((long) addressTagId << 32) | tagId, count);
+    }
+
+    /**
+     * Adds to the count of a port/protocol combination, e.g. when loading counts from a snapshot.
+     *
+     * @param protocol - Protocol number
+     * @param dstPort - Destination port
+     * @param count - Number of records to add
+     */
+    public void addPortProtocolCount(int protocol, int dstPort, long count) {
+        portProtocolCounts.add(portProtocolKey(protocol, dstPort), count);
+    }
+
+    /**
+     * Adds the counts of another instance to this one.
+     * Combinations that are new to this instance are appended in the other's order.
+     *
+     * @param other - Counts of a later part of the flow log, tagged with the same lookup table
+     */
+    public void merge(FlowLogCounts other) {
+        if (other.table != table) {
+            throw new IllegalArgumentException("Cannot merge counts of different lookup tables");
+        }
+        if (!other.aggregations.equals(aggregations)) {
+            throw new IllegalArgumentException("Cannot merge counts with different aggregations");
+        }
+        for (int tagId = 0; tagId < tagCounts.length; tagId++) {
+            tagCounts[tagId] += other.tagCounts[tagId];
+        }
+        portProtocolCounts.addAll(other.portProtocolCounts);
+        addressTagCounts.addAll(other.addressTagCounts);
+        for (int i = 0; i < aggregators.length; i++) {
+            aggregators[i].merge(other.aggregators[i], null);
+        }
+    }
+
+    /**
+     * Combines counts that may have been tagged with different lookup tables, such as
+     * counts read from snapshots or counted before and after the lookup table was reloaded.
+     * Tags and address tags are combined by name and port/protocol combinations by number.
+     * Tags and combinations keep the order in which they were first seen, instance by instance.
+     * A protocol number must have the same name in every part (or none), and every part
+     * must have the same extra aggregates. Aggregates spilled to disk are combined by
+     * reading the parts' runs in place, so the parts keep them and can go on counting (see
+     * fold to take them over instead).
+     *
+     * @param parts - Counts to combine, in order
+     * @return the combined counts, named by a table of the union of their tags and protocols
+     *         (or the only part itself, if there is just one)
+     * @throws IllegalArgumentException if the parts name the same protocol number differently,
+     *         or have different aggregations
+     */
+    public static FlowLogCounts combine(List<FlowLogCounts> parts) {
+        return combine(parts, false);
+    }
+
+    /**
+     * Combines counts like combine, for parts that are no longer needed: the combined
+     * counts take over the runs their aggregates spilled to disk, and delete them with
+     * their own. The parts must not be used afterwards.
+     *
+     * @param parts - Counts to combine, in order
+     * @return the combined counts (or the only part itself, if there is just one)
+     * @throws IllegalArgumentException if the parts name the same protocol number differently,
+     *         or have different aggregations
+     */
+    public static FlowLogCounts fold(List<FlowLogCounts> parts) {
+        return combine(parts, true);
+    }
+
+    private static FlowLogCounts combine(List<FlowLogCounts> parts, boolean takeRuns) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+
+        // Union of the tag and protocol names, in first-seen order
+        HashMap<String, Integer> tagIds = new HashMap<String, Integer>();
+        ArrayList<String> tagNames = new ArrayList<String>();
+        tagIds.put(LookupTable.UNTAGGED_NAME, LookupTable.UNTAGGED);
+        tagNames.add(LookupTable.UNTAGGED_NAME);
+        String[] protocolNames = new String[LookupTable.PROTOCOL_COUNT];
+        HashMap<String, Integer> addressTagIds = null; // Null unless a part counted address tags
+        ArrayList<String> addressTagNames = new ArrayList<String>();
+
+        for (FlowLogCounts part : parts) {
+            if (!part.aggregations.equals(parts.get(0).aggregations)) {
+                throw new IllegalArgumentException("Cannot combine counts with different aggregations: " 
+                        + parts.get(0).aggregations + " and " + part.aggregations);
+            }
+            for (int tagId = 0; tagId < part.table.getTagCount(); tagId++) {
+                String tag = part.table.getTagName(tagId);
+                if (!tagIds.containsKey(tag)) {
+                    tagIds.put(tag, tagNames.size());
+                    tagNames.add(tag);
+                }
+            }
+            for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+                String name = part.table.getProtocolName(protocol);
+                if (protocolNames[protocol] == null) {
+                    protocolNames[protocol] = name;
+                } else if (name != null && !name.equals(protocolNames[protocol])) {
+                    throw new IllegalArgumentException("Protocol " + protocol + " is named both " + protocolNames[protocol] 
+                            + " and " + name + ", the counts were read with different protocol tables");
+                }
+            }
+            if (part.addressRules != null) {
+                if (addressTagIds == null) {
+                    addressTagIds = new HashMap<String, Integer>();
+                }
+                for (int addressTagId = 0; addressTagId < part.addressRules.getTagCount(); addressTagId++) {
+                    String addressTag = part.addressRules.getTagName(addressTagId);
+                    if (!addressTagIds.containsKey(addressTag)) {
+                        addressTagIds.put(addressTag, addressTagNames.size());
+                        addressTagNames.add(addressTag);
+                    }
+                }
+            }
+        }
+
+        LookupTable combinedTable = LookupTable.ofNames(tagNames.toArray(new String[0]), protocolNames);
+        AddressRules combinedRules = (addressTagIds == null) ? null : AddressRules.ofNames(addressTagNames.toArray(new String[0]));
+        FlowLogCounts combined = new FlowLogCounts(combinedTable, parts.get(0).aggregations, combinedRules);
+        for (FlowLogCounts part : parts) {
+            int[] tagIdMap = new int[part.tagCounts.length]; // Part's tag id -> combined tag id
+            for (int tagId = 0; tagId < part.tagCounts.length; tagId++) {
+                tagIdMap[tagId] = tagIds.get(part.table.getTagName(tagId));
+                combined.tagCounts[tagIdMap[tagId]] += part.tagCounts[tagId];
+            }
+            combined.portProtocolCounts.addAll(part.portProtocolCounts);
+            for (int i = 0; i < part.addressTagCounts.size(); i++) {
+                long key = part.addressTagCounts.keyAt(i);
+                int addressTagId = addressTagIds.get(part.addressRules.getTagName((int) (key >>> 32)));
+                combined.addAddressTagCount(addressTagId, tagIdMap[(int) key], part.addressTagCounts.countAt(i));
+            }
+            for (int i = 0; i < combined.aggregators.length; i++) {
+                if (takeRuns) {
+                    combined.aggregators[i].merge(part.aggregators[i], tagIdMap);
+                } else {
+                    combined.aggregators[i].mergeShared(part.aggregators[i], tagIdMap);
+                }
+            }
+        }
+        return combined;
+    }
+
+    /**
+     * Deletes the runs the extra aggregates spilled to disk (or took over when merged),
+     * once the counts are no longer needed.
+     */
+    public void deleteSpilled() {
+        for (FlowLogAggregator aggregator : aggregators) {
+            aggregator.deleteSpilled();
+        }
+    }
+
+    /**
+     * @return the lookup table the counts are tagged with
+     */
+    public LookupTable getTable() {
+        return table;
+    }
+
+    /**
+     * @return the address rules naming the address tags, or null if address tags are not counted
+     */
+    public AddressRules getAddressRules() {
+        return addressRules;
+    }
+
+    /**
+     * @return the raw address tag counts, keyed by packed address tag id/tag id
+     */
+    public LongCountMap getAddressTagCountMap() {
+        return addressTagCounts;
+    }
+
+    /**
+     * @return the aggregators of the extra aggregates, in the order of their aggregations
+     */
+    public FlowLogAggregator[] getAggregators() {
+        return aggregators;
+    }
+
+    /**
+     * @return the extra aggregates computed with the counts
+     */
+    public List<FlowLogAggregation> getAggregations() {
+        return aggregations;
+    }
+
+    /**
+     * @param tagId - Tag id from the lookup table
+     * @return the number of records with that tag
+     */
+    public long getTagCount(int tagId) {
+        return tagCounts[tagId];
+    }
+
+    /**
+     * @param protocol - Protocol number
+     * @param dstPort - Destination port
+     * @return the number of records with that port/protocol combination
+     */
+    public long getPortProtocolCount(int protocol, int dstPort) {
+        return portProtocolCounts.get(portProtocolKey(protocol, dstPort));
+    }
+
+    /**
+     * @return the raw port/protocol counts, keyed by packed protocol/port (see portProtocolKey)
+     */
+    public LongCountMap getPortProtocolCountMap() {
+        return portProtocolCounts;
+    }
+
+    /**
+     * Renders the tag counts, including "Untagged". The iteration order of the HashMap is
+     * unspecified; the output has always listed the tags in that order.
+     *
+     * @return a HashMap of tag -> count
+     */
+    public HashMap<String, Long> getTagCounts() {
+        HashMap<String, Long> counts = new HashMap<String, Long>();
+        for (int tagId = 1; tagId < tagCounts.length; tagId++) {
+            counts.put(table.getTagName(tagId), tagCounts[tagId]);
+        }
+        counts.put(LookupTable.UNTAGGED_NAME, tagCounts[LookupTable.UNTAGGED]);
+        return counts;
+    }
+
+    /**
+     * Renders the port/protocol combination counts, in unspecified (HashMap) order. Protocol 
+     * numbers without a keyword are all reported as "null", so their counts are combined.
+     *
+     * @return a HashMap of "port,protocol" -> count
+     */
+    public HashMap<String, Long> getPortProtocolCounts() {
+        HashMap<String, Long> counts = new HashMap<String, Long>();
+        for (int i = 0; i < portProtocolCounts.size(); i++) {
+            long key = portProtocolCounts.keyAt(i);
+            String portProtocol = "" + portOf(key) + "," + table.getProtocolName(protocolOf(key));
+            Long count = counts.get(portProtocol);
+            counts.put(portProtocol, (count == null) ? portProtocolCounts.countAt(i) : count + portProtocolCounts.countAt(i));
+        }
+        return counts;
+    }
+
+    /**
+     * Renders the counts per address tag and tag, named by the counts' own address rules.
+     *
+     * @return a HashMap of "address tag,tag" -> count, or null if address tags are not counted
+     */
+    public HashMap<String, Long> getAddressTagCounts() {
+        return (addressRules == null) ? null : getAddressTagCounts(addressRules);
+    }
+
+    /**
+     * Renders the counts per address tag and tag, in unspecified (HashMap) order.
+     *
+     * @param rules - Address rules the records were tagged with
+     * @return a HashMap of "address tag,tag" -> count (empty if no address rules were used)
+     */
+    public HashMap<String, Long> getAddressTagCounts(AddressRules rules) {
+        HashMap<String, Long> counts = new HashMap<String, Long>();
+        for (int i = 0; i < addressTagCounts.size(); i++) {
+            long key = addressTagCounts.keyAt(i);
+            counts.put(rules.getTagName((int) (key >>> 32)) + "," + table.getTagName((int) key), addressTagCounts.countAt(i));
+        }
+        return counts;
+    }
+
+    /**
+     * Packs a protocol number and destination port into one key. Both halves are 32 bits
+     * wide, so out-of-range values from malformed records cannot collide with valid ones.
+     *
+     * @param protocol - Protocol number
+     * @param dstPort - Destination port
+     * @return the packed key
+     */
+    public static long portProtocolKey(int protocol, int dstPort) {
+        return ((long) protocol << 32) | (dstPort & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key - Key from portProtocolKey
+     * @return the protocol number
+     */
+    public static int protocolOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * @param key - Key from portProtocolKey
+     * @return the destination port
+     */
+    public static int portOf(long key) {
+        return (int) key;
+    }
+}
@@ -0,0 +1,195 @@
+// File Name: FlowLogFiles.java
+// Author: Steven Pham
+
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Resolves the flow log argument into the files to read, and opens them.
+ *
+ * The argument can be:
+ *      1) A single flow log file,
+ *      2) A directory, in which case every (non-hidden) file below it is read, or
+ *      3) A glob pattern such as "logs/2024/**.log.gz" (quote it so the shell does not expand it).
+ *
+ * Files are returned sorted by path, so the output does not depend on directory listing order.
+ * Gzip compressed files are recognized by their magic number and decompressed transparently.
+ *
+ * A glob only walks as many directory levels below its base as it has path elements, unless
+ * it contains "**". Symbolic links are followed, and a path that cannot be read (such as an
+ * unreadable directory or a link back up the tree) is skipped with a warning.
+ */
+public final class FlowLogFiles {
+
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private FlowLogFiles() {
+    }
+
+    /**
+     * @param flowLogs - A flow log file, a directory of flow logs, or a glob pattern
+     * @return the flow log files, sorted by path
+     * @throws FileNotFoundException if nothing matches
+     */
+    public static List<Path> resolve(String flowLogs) throws IOException {
+        final List<Path> files = new ArrayList<Path>();
+
+        if (isGlob(flowLogs)) {
+            final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + flowLogs);
+            walk(globBase(flowLogs), globDepth(flowLogs), new SkippingVisitor() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && matcher.matches(file)) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+        } else {
+            final Path path = Paths.get(flowLogs);
+            if (Files.isDirectory(path)) {
+                walk(path, Integer.MAX_VALUE, new SkippingVisitor() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                        return (!dir.equals(path) && isHidden(dir)) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (attributes.isRegularFile() && !isHidden(file)) {
+                            files.add(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } else if (Files.exists(path)) {
+                files.add(path);
+            }
+        }
+
+        if (files.isEmpty()) {
+            throw new FileNotFoundException("No flow log files found for: " + flowLogs);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Opens a flow log file, decompressing it if it is gzip compressed.
+     *
+     * @param file - Flow log file
+     * @return a stream of the (decompressed) flow log
+     */
+    public static InputStream open(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), STREAM_BUFFER_SIZE);
+        if (isGzip(in)) {
+            return new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    /**
+     * @param file - Flow log file
+     * @return true if the file starts with the gzip magic number
+     */
+    public static boolean isGzip(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 2);
+        try {
+            return isGzip(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isGzip(InputStream in) throws IOException {
+        in.mark(2);
+        boolean gzip = in.read() == GZIP_MAGIC_1 && in.read() == GZIP_MAGIC_2;
+        in.reset();
+        return gzip;
+    }
+
+    private static boolean isGlob(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            if ("*?[{".indexOf(path.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the directory made of the path elements before the first one with a glob character
+     */
+    private static Path globBase(String pattern) {
+        int firstGlob = 0;
+        while ("*?[{".indexOf(pattern.charAt(firstGlob)) < 0) {
+            firstGlob++;
+        }
+        int separator = pattern.lastIndexOf('/', firstGlob);
+        if (separator < 0) {
+            return Paths.get("");
+        }
+        return Paths.get(separator == 0 ? "/" : pattern.substring(0, separator));
+    }
+
+    /**
+     * @return the number of directory levels below globBase that the pattern can match files in
+     */
+    private static int globDepth(String pattern) {
+        if (pattern.contains("**")) {
+            return Integer.MAX_VALUE;
+        }
+        int firstGlob = 0;
+        while ("*?[{".indexOf(pattern.charAt(firstGlob)) < 0) {
+            firstGlob++;
+        }
+        int depth = 1;
+        for (int i = pattern.lastIndexOf('/', firstGlob) + 1; i < pattern.length(); i++) {
+            if (pattern.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    private static void walk(Path start, int maxDepth, SimpleFileVisitor<Path> visitor) throws IOException {
+        if (Files.isDirectory(start)) {
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), maxDepth, visitor);
+        }
+    }
+
+    /**
+     * Skips the paths that cannot be read, with a warning, instead of failing the whole walk.
+     */
+    private abstract static class SkippingVisitor extends SimpleFileVisitor<Path> {
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+            System.out.println("Skipping a path that cannot be read: " + e);
+            return FileVisitResult.CONTINUE;
+        }
+    }
+
+    private static boolean isHidden(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+}
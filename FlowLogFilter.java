@@ -0,0 +1,426 @@
+// File Name: FlowLogFilter.java
+// Author: Steven Pham
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A predicate over flow log records, such as
+ *      action = REJECT and start between 1620140600 and 1620144200
+ *      interface-id in (eni-0a1b2c3d, eni-4d3c2b1a) and not dstport < 1024
+ *
+ * Conditions compare one field of the flow log format with values:
+ *      field = value, field != value       - Equality (numbers are compared as numbers,
+ *                                            anything else as text, ignoring case)
+ *      field < n, <= n, > n, >= n          - Numeric comparisons
+ *      field between n and m               - Numeric range, inclusive
+ *      field in (a, b, ...)                - Any of the values
+ *      field not in (...), field not between n and m
+ * and are combined with "and", "or", "not" and parentheses ("and" binds tighter than "or").
+ * A field that is missing or not a number (e.g. "-" in a NODATA record) fails every
+ * condition except != and the "not" forms.
+ *
+ * The filter is evaluated on the raw bytes of each line, before the parser decodes any
+ * column of its own: values are compared in place, and numbers are parsed in place. The
+ * conditions of an "and" are checked in column order and stop at the first one that fails,
+ * and the tokenizer only locates columns up to the highest one asked for, so a rejected
+ * record usually costs a scan of its first few columns and nothing more.
+ *
+ * A parsed filter names fields; bind() resolves them to the columns of a format, and
+ * returns a new filter that can be shared by any number of threads.
+ */
+public final class FlowLogFilter {
+
+    private static final Pattern TOKEN = Pattern.compile("\\s*(<=|>=|!=|==|=|<|>|\\(|\\)|,|[^\\s()<>=!,]+)");
+    private static final Pattern NUMBER = Pattern.compile("[0-9]{1,18}");
+    private static final Pattern FIELD_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_-]*");
+
+    private final String expression;
+    private final Node root;
+
+    private FlowLogFilter(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * Parses a filter expression (see the class comment).
+     *
+     * @param expression - Filter expression
+     * @return the filter, not yet bound to a format
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static FlowLogFilter parse(String expression) {
+        ArrayList<String> tokens = new ArrayList<String>();
+        Matcher matcher = TOKEN.matcher(expression);
+        int position = 0;
+        while (position < expression.length() && matcher.find(position) && matcher.start() == position) {
+            tokens.add(matcher.group(1));
+            position = matcher.end();
+        }
+        if (expression.substring(position).trim().length() > 0) {
+            throw new IllegalArgumentException("Invalid filter near: " + expression.substring(position).trim());
+        }
+
+        Parser parser = new Parser(tokens, expression);
+        Node root = parser.parseOr();
+        if (parser.position < tokens.size()) {
+            throw new IllegalArgumentException("Unexpected \"" + tokens.get(parser.position) + "\" in filter: " + expression);
+        }
+        return new FlowLogFilter(expression, root);
+    }
+
+    /**
+     * Resolves the fields of the filter to the columns of a format.
+     *
+     * @param format - Format of the flow log to filter
+     * @return a filter for records of that format
+     * @throws IllegalArgumentException if the format lacks a field of the filter
+     */
+    public FlowLogFilter bind(FlowLogFormat format) {
+        return new FlowLogFilter(expression, root.bind(format));
+    }
+
+    /**
+     * Tests the current record of a tokenizer. The filter must have been bound to the
+     * record's format.
+     *
+     * @param tokenizer - Tokenizer positioned on a record
+     * @return true if the record passes the filter
+     */
+    public boolean matches(FlowLogTokenizer tokenizer) {
+        return root.matches(tokenizer);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    // - - - Expression tree - - -
+
+    private abstract static class Node {
+        abstract boolean matches(FlowLogTokenizer tokenizer);
+
+        abstract Node bind(FlowLogFormat format);
+
+        /** Highest column the node reads, so that cheaper conditions can go first. */
+        abstract int lastColumn();
+    }
+
+    private static final class And extends Node {
+        private final Node[] children;
+
+        And(Node[] children) {
+            this.children = children;
+        }
+
+        boolean matches(FlowLogTokenizer tokenizer) {
+            for (Node child : children) {
+                if (!child.matches(tokenizer)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Node bind(FlowLogFormat format) {
+            Node[] bound = new Node[children.length];
+            for (int i = 0; i < children.length; i++) {
+                bound[i] = children[i].bind(format);
+            }
+            // Leftmost columns first: the tokenizer never scans further than needed to reject
+            Arrays.sort(bound, new Comparator<Node>() {
+                public int compare(Node a, Node b) {
+                    return Integer.compare(a.lastColumn(), b.lastColumn());
+                }
+            });
+            return new And(bound);
+        }
+
+        int lastColumn() {
+            int last = -1;
+            for (Node child : children) {
+                last = Math.max(last, child.lastColumn());
+            }
+            return last;
+        }
+    }
+
+    private static final class Or extends Node {
+        private final Node[] children;
+
+        Or(Node[] children) {
+            this.children = children;
+        }
+
+        boolean matches(FlowLogTokenizer tokenizer) {
+            for (Node child : children) {
+                if (child.matches(tokenizer)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Node bind(FlowLogFormat format) {
+            Node[] bound = new Node[children.length];
+            for (int i = 0; i < children.length; i++) {
+                bound[i] = children[i].bind(format);
+            }
+            return new Or(bound);
+        }
+
+        int lastColumn() {
+            int last = -1;
+            for (Node child : children) {
+                last = Math.max(last, child.lastColumn());
+            }
+            return last;
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        boolean matches(FlowLogTokenizer tokenizer) {
+            return !child.matches(tokenizer);
+        }
+
+        Node bind(FlowLogFormat format) {
+            return new Not(child.bind(format));
+        }
+
+        int lastColumn() {
+            return child.lastColumn();
+        }
+    }
+
+    /**
+     * A condition on one field: its value is within one of a set of numeric ranges, or equal
+     * to one of a set of texts.
+     */
+    private static final class Condition extends Node {
+        private final String field;
+        private final int column; // -1 until bound
+        private final long[] lows; // Numeric ranges, inclusive
+        private final long[] highs;
+        private final byte[][] texts; // Text values, compared ignoring ASCII case
+
+        Condition(String field, int column, long[] lows, long[] highs, byte[][] texts) {
+            this.field = field;
+            this.column = column;
+            this.lows = lows;
+            this.highs = highs;
+            this.texts = texts;
+        }
+
+        boolean matches(FlowLogTokenizer tokenizer) {
+            if (lows.length > 0) {
+                long value = tokenizer.parseLong(column);
+                if (value >= 0) {
+                    for (int i = 0; i < lows.length; i++) {
+                        if (value >= lows[i] && value <= highs[i]) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            if (texts.length > 0 && tokenizer.hasField(column)) {
+                byte[] buffer = tokenizer.getBuffer();
+                int start = tokenizer.getFieldStart(column);
+                int length = tokenizer.getFieldEnd(column) - start;
+                for (byte[] text : texts) {
+                    if (text.length == length && equalsIgnoreCase(buffer, start, text)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        Node bind(FlowLogFormat format) {
+            return new Condition(field, format.project(field)[0], lows, highs, texts);
+        }
+
+        int lastColumn() {
+            return column;
+        }
+
+        private static boolean equalsIgnoreCase(byte[] buffer, int start, byte[] text) {
+            for (int i = 0; i < text.length; i++) {
+                byte a = buffer[start + i];
+                byte b = text[i];
+                if (a != b && toLower(a) != toLower(b)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int toLower(byte b) {
+            return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+        }
+    }
+
+    // - - - Parsing - - -
+
+    /**
+     * Recursive descent parser over the tokens of an expression:
+     *      or        := and ("or" and)*
+     *      and       := unary ("and" unary)*
+     *      unary     := "not" unary | "(" or ")" | condition
+     *      condition := field op value | field ["not"] "in" "(" value ("," value)* ")"
+     *                 | field ["not"] "between" number "and" number
+     */
+    private static final class Parser {
+        private final ArrayList<String> tokens;
+        private final String expression;
+        private int position;
+
+        Parser(ArrayList<String> tokens, String expression) {
+            this.tokens = tokens;
+            this.expression = expression;
+        }
+
+        Node parseOr() {
+            ArrayList<Node> children = new ArrayList<Node>();
+            children.add(parseAnd());
+            while (accept("or")) {
+                children.add(parseAnd());
+            }
+            return (children.size() == 1) ? children.get(0) : new Or(children.toArray(new Node[0]));
+        }
+
+        Node parseAnd() {
+            ArrayList<Node> children = new ArrayList<Node>();
+            children.add(parseUnary());
+            while (accept("and")) {
+                children.add(parseUnary());
+            }
+            return (children.size() == 1) ? children.get(0) : new And(children.toArray(new Node[0]));
+        }
+
+        Node parseUnary() {
+            if (accept("not")) {
+                return new Not(parseUnary());
+            }
+            if (accept("(")) {
+                Node inner = parseOr();
+                expect(")");
+                return inner;
+            }
+            return parseCondition();
+        }
+
+        Node parseCondition() {
+            String field = next("a field name");
+            if (!FIELD_NAME.matcher(field).matches()) {
+                throw new IllegalArgumentException("Invalid field \"" + field + "\" in filter: " + expression);
+            }
+
+            boolean negated = accept("not");
+            if (accept("in")) {
+                expect("(");
+                ArrayList<String> values = new ArrayList<String>();
+                values.add(next("a value"));
+                while (accept(",")) {
+                    values.add(next("a value"));
+                }
+                expect(")");
+                Node condition = condition(field, values);
+                return negated ? new Not(condition) : condition;
+            }
+            if (accept("between")) {
+                long low = number(next("a number"));
+                expect("and");
+                long high = number(next("a number"));
+                Node condition = range(field, low, high);
+                return negated ? new Not(condition) : condition;
+            }
+            if (negated) {
+                throw new IllegalArgumentException("Expected \"in\" or \"between\" after \"not\" in filter: " + expression);
+            }
+
+            String operator = next("an operator");
+            String value = next("a value");
+            if (operator.equals("=") || operator.equals("==")) {
+                return condition(field, Collections.singletonList(value));
+            } else if (operator.equals("!=")) {
+                return new Not(condition(field, Collections.singletonList(value)));
+            } else if (operator.equals("<")) {
+                return range(field, 0, number(value) - 1);
+            } else if (operator.equals("<=")) {
+                return range(field, 0, number(value));
+            } else if (operator.equals(">")) {
+                return range(field, number(value) + 1, Long.MAX_VALUE);
+            } else if (operator.equals(">=")) {
+                return range(field, number(value), Long.MAX_VALUE);
+            }
+            throw new IllegalArgumentException("Unknown operator \"" + operator + "\" in filter: " + expression);
+        }
+
+        /**
+         * A condition that matches any of the values: numbers as numbers, the rest as text.
+         */
+        private Node condition(String field, List<String> values) {
+            ArrayList<Long> numbers = new ArrayList<Long>();
+            ArrayList<byte[]> texts = new ArrayList<byte[]>();
+            for (String value : values) {
+                if (NUMBER.matcher(value).matches()) {
+                    numbers.add(Long.parseLong(value));
+                } else {
+                    texts.add(value.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            long[] lows = new long[numbers.size()];
+            for (int i = 0; i < lows.length; i++) {
+                lows[i] = numbers.get(i);
+            }
+            return new Condition(field, -1, lows, lows.clone(), texts.toArray(new byte[0][]));
+        }
+
+        private Node range(String field, long low, long high) {
+            return new Condition(field, -1, new long[] { low }, new long[] { high }, new byte[0][]);
+        }
+
+        private long number(String value) {
+            if (!NUMBER.matcher(value).matches()) {
+                throw new IllegalArgumentException("Expected a number instead of \"" + value + "\" in filter: " + expression);
+            }
+            return Long.parseLong(value);
+        }
+
+        private boolean accept(String keyword) {
+            if (position < tokens.size() && tokens.get(position).toLowerCase(Locale.ROOT).equals(keyword)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String keyword) {
+            if (!accept(keyword)) {
+                throw new IllegalArgumentException("Expected \"" + keyword + "\" in filter: " + expression);
+            }
+        }
+
+        private String next(String expected) {
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("Expected " + expected + " at the end of filter: " + expression);
+            }
+            return tokens.get(position++);
+        }
+    }
+}
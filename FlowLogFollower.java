@@ -0,0 +1,331 @@
+// File Name: FlowLogFollower.java
+// Author: Steven Pham
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a flow log that is still being written to, like "tail -f".
+ *
+ * New bytes are read from the last offset and added to one set of counts that lives for
+ * the whole run, so nothing is ever re-read except an unfinished last line. The output
+ * file is rewritten atomically every N seconds and/or every M records.
+ *
+ * The directory of the flow log is watched with a WatchService. When the file is rotated
+ * (replaced by a new file) the rest of the old file is read first, and the new file is
+ * then followed from its start. A file that shrinks (truncated in place) is also read
+ * again from its start.
+ *
+ * If the lookup table of the parser is reloaded (see LookupReloader), records read from
+ * then on are counted with the new table into a new set of counts, while the records
+ * read before keep the tags they were counted with: the counts of the old table are
+ * folded by tag name into one set of closed counts. The output combines the closed
+ * counts with the current ones.
+ *
+ * Memory stays flat: the read buffer is reused, and the counts are bounded by the number
+ * of tags and port/protocol combinations, not by the amount of data read or the number
+ * of reloads.
+ */
+public final class FlowLogFollower {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final long MAX_WAIT_MILLIS = 1000; // Poll even if no watch event arrives
+
+    private final FlowLogParser parser;
+    private final Path flowLogFile;
+    private final String outputFile;
+    private final long snapshotIntervalMillis;
+    private final long snapshotRecords;
+
+    private FlowLogCounts closedCounts; // Counts of every lookup table used before the current one, null if none
+    private FlowLogCounts counts; // Counts of the current lookup table
+    private ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    private final FlowLogTokenizer tokenizer = new FlowLogTokenizer(chunk.duplicate(), 0);
+
+    private FileChannel channel;
+    private Object fileKey; // Identifies the open file, to detect rotation
+    private long offset; // Offset of the first byte not yet counted
+    private FlowLogFormat format; // Format of the open file, known once its first line is read
+
+    private FlowLogWindows windows; // Time windows to count into instead, or null
+
+    private long recordsSinceSnapshot;
+    private long lastSnapshotTime;
+    private volatile boolean running = true;
+
+    /**
+     * @param parser - Parser whose protocol and lookup tables have been prepared
+     * @param flowLogFile - Path of the flow log to follow
+     * @param outputFile - Name of the output file to rewrite with each snapshot
+     * @param snapshotSeconds - Seconds between snapshots (0 to only snapshot by record count)
+     * @param snapshotRecords - Records between snapshots (0 to only snapshot by time)
+     */
+    public FlowLogFollower(FlowLogParser parser, String flowLogFile, String outputFile,
+                           long snapshotSeconds, long snapshotRecords) {
+        this.parser = parser;
+        this.flowLogFile = Paths.get(flowLogFile).toAbsolutePath();
+        this.outputFile = outputFile;
+        this.snapshotIntervalMillis = TimeUnit.SECONDS.toMillis(snapshotSeconds);
+        this.snapshotRecords = snapshotRecords;
+        tokenizer.setName(this.flowLogFile.toString());
+        this.counts = parser.newCounts(parser.getCompiledLookup());
+    }
+
+    /**
+     * Follows the flow log until stop() is called, then reads what is left of it
+     * and writes a final snapshot.
+     *
+     * @throws IOException if the flow log cannot be read or the output cannot be written
+     * @throws InterruptedException if the thread is interrupted while waiting for new data
+     */
+    public void run() throws IOException, InterruptedException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        flowLogFile.getParent().register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        lastSnapshotTime = System.currentTimeMillis();
+
+        try {
+            while (running) {
+                poll();
+
+                WatchKey key = watcher.poll(waitMillis(), TimeUnit.MILLISECONDS);
+                if (key != null) { // Any change in the directory triggers a read, so events are not inspected
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (IOException e) {
+            closeChannel();
+            throw e;
+        } finally {
+            watcher.close();
+        }
+
+        finish();
+    }
+
+    /**
+     * Reads whatever the flow log has gained since the last call (following a rotation or
+     * truncation), and writes a snapshot if one is due. run() calls this in a loop.
+     *
+     * @throws IOException if the flow log cannot be read or the output cannot be written
+     */
+    void poll() throws IOException {
+        checkRotation();
+        if (channel != null) {
+            readAvailable(false);
+        }
+        if (isSnapshotDue()) {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Reads what is left of the flow log, including an unterminated last line (like a batch
+     * run, it counts once following stops), closes it and writes a final snapshot. Then
+     * deletes the runs that aggregates spilled to disk.
+     *
+     * @throws IOException if the flow log cannot be read or the output cannot be written
+     */
+    void finish() throws IOException {
+        try {
+            if (channel != null) {
+                readAvailable(true);
+            }
+        } finally {
+            closeChannel();
+        }
+
+        if (windows != null) {
+            windows.closeAll();
+        }
+        try {
+            writeSnapshot();
+        } finally {
+            for (FlowLogCounts generation : Arrays.asList(closedCounts, counts)) {
+                if (generation != null) {
+                    generation.deleteSpilled();
+                }
+            }
+        }
+    }
+
+    /**
+     * Asks run() to write a final snapshot and return. Safe to call from any thread.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Counts the records into time windows, which are written as they close, instead of
+     * rewriting one output file with the counts so far. Must be called before run().
+     *
+     * @param windows - Time windows to count into
+     */
+    public void setWindows(FlowLogWindows windows) {
+        this.windows = windows;
+    }
+
+    /**
+     * @return the counts gathered so far, combined over every lookup table used. If they
+     *         had to be combined, their aggregates may spill runs of their own, which the
+     *         caller deletes with deleteSpilled. Only safe to read from the following thread.
+     */
+    public FlowLogCounts getCounts() {
+        if (closedCounts == null) {
+            return counts;
+        }
+        return FlowLogCounts.combine(Arrays.asList(closedCounts, counts));
+    }
+
+    /**
+     * Opens the flow log if it is not open yet, and switches to the new file if the
+     * path now points to a different file than the one being read.
+     */
+    private void checkRotation() throws IOException {
+        Object currentKey;
+        try {
+            currentKey = Files.readAttributes(flowLogFile, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) { // Between the rotation and the creation of the new file
+            return;
+        }
+
+        if (channel != null && currentKey != null && !currentKey.equals(fileKey)) {
+            readAvailable(true); // Finish the rotated file, including an unterminated last line
+            channel.close();
+            channel = null;
+        }
+
+        if (channel == null) {
+            channel = FileChannel.open(flowLogFile, StandardOpenOption.READ);
+            fileKey = currentKey;
+            offset = 0;
+            format = null;
+        } else if (channel.size() < offset) { // Truncated in place
+            offset = 0;
+            format = null;
+        }
+    }
+
+    /**
+     * Counts every complete line between the last offset and the end of the file.
+     *
+     * @param finalRead - true if the file will not grow anymore, so a last line without
+     *                    a terminator is complete
+     */
+    private void readAvailable(boolean finalRead) throws IOException {
+        while (true) {
+            chunk.clear();
+            int read = channel.read(chunk, offset);
+            if (read <= 0) {
+                return;
+            }
+            chunk.flip();
+            boolean endOfFile = offset + read >= channel.size();
+
+            // Only count up to the last line terminator, the rest may still be written.
+            // A '\r' at the very end waits as well, since a '\n' may still follow it.
+            int end = chunk.limit();
+            if (!finalRead || !endOfFile) {
+                while (end > 0) {
+                    byte b = chunk.get(end - 1);
+                    if (b == '\n' || (b == '\r' && end < chunk.limit())) {
+                        break;
+                    }
+                    end--;
+                }
+            }
+            if (end == 0) {
+                if (read == chunk.capacity()) { // A single line is larger than the chunk
+                    chunk = ByteBuffer.allocateDirect(chunk.capacity() * 2);
+                    continue;
+                }
+                return;
+            }
+
+            chunk.limit(end);
+            tokenizer.reset(chunk, offset);
+            if (format == null) { // First line of the file, which may be a header
+                format = parser.readFormat(tokenizer);
+            }
+            LookupTable table = parser.getCompiledLookup();
+            if (table != counts.getTable()) { // Reloaded, the records from here on get the new tags
+                closedCounts = (closedCounts == null) ? counts : FlowLogCounts.fold(Arrays.asList(closedCounts, counts));
+                counts = parser.newCounts(table);
+            }
+            recordsSinceSnapshot += parser.countRecords(tokenizer, format, table, counts, windows);
+            offset += end;
+
+            if (isSnapshotDue()) {
+                writeSnapshot();
+            }
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private boolean isSnapshotDue() {
+        if (snapshotRecords > 0 && recordsSinceSnapshot >= snapshotRecords) {
+            return true;
+        }
+        return snapshotIntervalMillis > 0 && System.currentTimeMillis() - lastSnapshotTime >= snapshotIntervalMillis;
+    }
+
+    private long waitMillis() {
+        if (snapshotIntervalMillis <= 0) {
+            return MAX_WAIT_MILLIS;
+        }
+        long untilSnapshot = lastSnapshotTime + snapshotIntervalMillis - System.currentTimeMillis();
+        return Math.max(1, Math.min(MAX_WAIT_MILLIS, untilSnapshot));
+    }
+
+    /**
+     * Writes the current counts to a temporary file and moves it over the output file,
+     * so readers never see a partially written output. If the temporary file cannot be
+     * written completely, it is deleted and the last output file is left as it was.
+     */
+    private void writeSnapshot() throws IOException {
+        if (windows != null) { // Each window is written when it closes
+            recordsSinceSnapshot = 0;
+            lastSnapshotTime = System.currentTimeMillis();
+            return;
+        }
+        Path output = Paths.get(outputFile).toAbsolutePath();
+        Path temporary = output.resolveSibling(output.getFileName() + ".tmp");
+        FlowLogCounts snapshot = getCounts();
+        try {
+            parser.writeCounts(snapshot, temporary.toString());
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        } finally {
+            if (snapshot != counts) { // Combined for this snapshot: delete the runs it spilled itself
+                snapshot.deleteSpilled();
+            }
+        }
+        Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        recordsSinceSnapshot = 0;
+        lastSnapshotTime = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,184 @@
+// File Name: FlowLogFormat.java
+// Author: Steven Pham
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Describes the columns of a flow log: the default (version 2) layout, or a custom
+ * format (versions 3 to 5 add fields such as pkt-srcaddr, tcp-flags or flow-direction,
+ * and fields can be reordered).
+ *
+ * A format is given either as a header line at the start of a flow log file (the field
+ * names separated by spaces, as written by AWS), or as a field list on the command line.
+ * The field list can be in the AWS "${field}" syntax or plain names separated by spaces
+ * or commas, e.g. "${version} ${srcaddr} ${dstport} ${protocol}".
+ *
+ * project() turns the fields the parser needs into a projection plan: the column of each
+ * needed field. The tokenizer only locates columns up to the highest one in the plan, and
+ * only the planned columns are decoded, so wide custom records cost little more than v2.
+ */
+public final class FlowLogFormat {
+
+    public static final String[] V2_FIELDS = {
+        "version", "account-id", "interface-id", "srcaddr", "dstaddr", "srcport", "dstport",
+        "protocol", "packets", "bytes", "start", "end", "action", "log-status"
+    };
+
+    /** The default (version 2) format. */
+    public static final FlowLogFormat DEFAULT = new FlowLogFormat(V2_FIELDS);
+
+    private final String[] fields; // Column -> field name
+    private final HashMap<String, Integer> columns = new HashMap<String, Integer>(); // Field name -> column
+
+    private FlowLogFormat(String[] fields) {
+        this.fields = fields;
+        for (int column = 0; column < fields.length; column++) {
+            if (columns.put(fields[column], column) != null) {
+                throw new IllegalArgumentException("Field listed twice in flow log format: " + fields[column]);
+            }
+        }
+    }
+
+    /**
+     * Parses a field list, such as "${version} ${dstport} ${protocol}" or "version,dstport,protocol".
+     *
+     * @param definition - Field list
+     * @return the format
+     * @throws IllegalArgumentException if the list is empty or has an invalid field name
+     */
+    public static FlowLogFormat parse(String definition) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (String token : definition.trim().split("[\\s,]+")) {
+            String name = token;
+            if (name.startsWith("${") && name.endsWith("}")) {
+                name = name.substring(2, name.length() - 1);
+            }
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (!isFieldName(name)) {
+                throw new IllegalArgumentException("Invalid field in flow log format: " + token);
+            }
+            names.add(name);
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("Flow log format has no fields: " + definition);
+        }
+        return new FlowLogFormat(names.toArray(new String[0]));
+    }
+
+    /**
+     * Reads the current line of a tokenizer as a header line, if it is one.
+     * A header line is a list of field names, so its first byte is a letter, whereas a
+     * record always starts with a number. A line is only taken as a header if it is a
+     * valid field list that has the dstport and protocol fields every record is counted
+     * by; anything else (e.g. a stray line of text) is left to be read as a record, so
+     * it is skipped as malformed instead of failing the whole flow log.
+     *
+     * @param tokenizer - Tokenizer positioned on the first line of a flow log
+     * @return the format of the header, or null if the line is not a header
+     */
+    public static FlowLogFormat fromHeader(FlowLogTokenizer tokenizer) {
+        int start = tokenizer.getLineStart();
+        int end = tokenizer.getLineEnd();
+        byte[] buffer = tokenizer.getBuffer();
+        if (start == end || !isLetter(buffer[start])) {
+            return null;
+        }
+
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) (buffer[i] & 0xFF);
+        }
+        FlowLogFormat header;
+        try {
+            header = parse(new String(chars));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (header.getColumn("dstport") < 0 || header.getColumn("protocol") < 0) {
+            return null;
+        }
+        return header;
+    }
+
+    /**
+     * Builds the projection plan for the given fields.
+     *
+     * @param neededFields - Names of the fields to read
+     * @return the column of each field, in the same order
+     * @throws IllegalArgumentException if a field is not part of this format
+     */
+    public int[] project(String... neededFields) {
+        int[] plan = new int[neededFields.length];
+        for (int i = 0; i < neededFields.length; i++) {
+            plan[i] = getColumn(neededFields[i]);
+            if (plan[i] < 0) {
+                throw new IllegalArgumentException("Flow log format has no " + neededFields[i] + " field: " + this);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @param field - Field name
+     * @return the column of the field, or -1 if the format does not have it
+     */
+    public int getColumn(String field) {
+        Integer column = columns.get(field);
+        return (column == null) ? -1 : column;
+    }
+
+    /**
+     * @param column - Column index
+     * @return the name of the field in that column
+     */
+    public String getField(int column) {
+        return fields[column];
+    }
+
+    /**
+     * @return the number of columns
+     */
+    public int getColumnCount() {
+        return fields.length;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof FlowLogFormat) && Arrays.equals(fields, ((FlowLogFormat) other).fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (String field : fields) {
+            text.append(text.length() == 0 ? "" : " ").append(field);
+        }
+        return text.toString();
+    }
+
+    private static boolean isFieldName(String name) {
+        if (!isLetter((byte) name.charAt(0))) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c == '-' || c == '_' || (c >= '0' && c <= '9') || isLetter((byte) c))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLetter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+}
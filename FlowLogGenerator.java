@@ -0,0 +1,342 @@
+// File Name: FlowLogGenerator.java
+// Author: Steven Pham
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Generates synthetic version 2 flow logs and matching lookup tables for benchmarking.
+ *
+ * The output only depends on the seed and the settings, so two runs with the same
+ * arguments produce identical files. The settings are:
+ * - Protocol mix: protocol numbers and their relative weights (e.g. "6:80,17:15,1:5")
+ * - Port cardinality: how many distinct destination ports the untagged records use
+ * - Tag hit ratio: fraction of records whose port/protocol is in the lookup table
+ * - Lookup entries / tags: size of the lookup table (the README allows up to 10000 entries)
+ *
+ * Usage: java FlowLogGenerator <protocolFile> <flowLogFile> <lookupFile> [--size 100MB] [--seed N]
+ *        [--protocol-mix 6:80,17:15,1:5] [--port-cardinality N] [--hit-ratio R]
+ *        [--lookup-entries N] [--tags N]
+ */
+public class FlowLogGenerator {
+
+    public static final int MAX_LOOKUP_ENTRIES = 10000;
+
+    private static final String[] ACTIONS = { "ACCEPT", "REJECT" };
+
+    private final HashMap<Integer, String> protocolTable;
+    private final long seed;
+
+    // Settings, with their defaults
+    private int[] protocols = { 6, 17, 1 };
+    private int[] protocolWeights = { 80, 15, 5 };
+    private int portCardinality = 5000;
+    private double hitRatio = 0.3;
+    private int lookupEntries = 1000;
+    private int tagCount = 50;
+
+    // Lookup table, built on first use
+    private int[] lookupPorts;
+    private int[] lookupProtocols;
+    private boolean[][] tagged; // Protocol index -> port -> in the lookup table
+    private int[][] untaggedPorts; // Protocol index -> port pool without lookup entries
+
+    /**
+     * @param protocolTable - Protocol number to keyword mappings, used to name the lookup protocols
+     * @param seed - Seed of the random generator
+     */
+    public FlowLogGenerator(HashMap<Integer, String> protocolTable, long seed) {
+        this.protocolTable = protocolTable;
+        this.seed = seed;
+    }
+
+    /**
+     * @param mix - Comma separated "protocolNumber:weight" pairs, e.g. "6:80,17:15,1:5"
+     */
+    public void setProtocolMix(String mix) {
+        String[] parts = mix.split(",");
+        int[] newProtocols = new int[parts.length];
+        int[] newWeights = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String[] pair = parts[i].trim().split(":");
+            newProtocols[i] = Integer.parseInt(pair[0].trim());
+            newWeights[i] = (pair.length > 1) ? Integer.parseInt(pair[1].trim()) : 1;
+            if (newProtocols[i] < 0 || newProtocols[i] > 255 || newWeights[i] <= 0) {
+                throw new IllegalArgumentException("Invalid protocol mix entry: " + parts[i]);
+            }
+        }
+        protocols = newProtocols;
+        protocolWeights = newWeights;
+        lookupPorts = null;
+    }
+
+    /**
+     * @param portCardinality - Number of distinct destination ports used by untagged records
+     */
+    public void setPortCardinality(int portCardinality) {
+        this.portCardinality = Math.max(1, Math.min(portCardinality, LookupTable.PORT_COUNT));
+        lookupPorts = null;
+    }
+
+    /**
+     * @param hitRatio - Fraction (0 to 1) of records whose port/protocol is in the lookup table
+     */
+    public void setHitRatio(double hitRatio) {
+        this.hitRatio = Math.max(0, Math.min(hitRatio, 1));
+    }
+
+    /**
+     * @param lookupEntries - Number of lookup table rows, up to MAX_LOOKUP_ENTRIES
+     * @param tagCount - Number of distinct tags used by the rows
+     */
+    public void setLookupSize(int lookupEntries, int tagCount) {
+        this.lookupEntries = Math.max(1, Math.min(lookupEntries, MAX_LOOKUP_ENTRIES));
+        this.tagCount = Math.max(1, tagCount);
+        lookupPorts = null;
+    }
+
+    /**
+     * Writes the lookup table csv. Only protocols of the mix that have a keyword get rows.
+     *
+     * @param lookupFile - Path of the csv to write
+     */
+    public void writeLookupTable(String lookupFile) throws IOException {
+        buildLookup();
+        BufferedWriter writer = new BufferedWriter(new FileWriter(lookupFile));
+        writer.write("dstport,protocol,tag\n");
+        for (int i = 0; i < lookupPorts.length; i++) {
+            writer.write(lookupPorts[i] + "," + protocolTable.get(protocols[lookupProtocols[i]]) + ",tag_" + (i % tagCount) + "\n");
+        }
+        writer.close();
+    }
+
+    /**
+     * Writes flow log records until the file reaches the requested size.
+     *
+     * @param flowLogFile - Path of the flow log to write
+     * @param sizeBytes - Approximate size of the file, in bytes
+     * @return the number of records written
+     */
+    public long writeFlowLog(String flowLogFile, long sizeBytes) throws IOException {
+        buildLookup();
+        Random random = new Random(seed);
+        int totalWeight = 0;
+        for (int weight : protocolWeights) {
+            totalWeight += weight;
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(flowLogFile), 1 << 20);
+        StringBuilder line = new StringBuilder(160);
+        long written = 0;
+        long records = 0;
+        long start = 1620140761L;
+
+        while (written < sizeBytes) {
+            int protocolIndex;
+            int dstPort;
+            if (lookupPorts.length > 0 && random.nextDouble() < hitRatio) {
+                int entry = random.nextInt(lookupPorts.length);
+                protocolIndex = lookupProtocols[entry];
+                dstPort = lookupPorts[entry];
+            } else {
+                protocolIndex = pickProtocol(random, totalWeight);
+                int[] pool = untaggedPorts[protocolIndex];
+                dstPort = pool[random.nextInt(pool.length)];
+            }
+
+            line.setLength(0);
+            line.append("2 123456789012 eni-").append(Integer.toHexString(0x10000000 | random.nextInt(0x1000000)))
+                .append(' ').append(address(random)).append(' ').append(address(random))
+                .append(' ').append(random.nextInt(LookupTable.PORT_COUNT))
+                .append(' ').append(dstPort)
+                .append(' ').append(protocols[protocolIndex])
+                .append(' ').append(1 + random.nextInt(100))
+                .append(' ').append(40 + random.nextInt(100000))
+                .append(' ').append(start + records / 1000)
+                .append(' ').append(start + records / 1000 + 60)
+                .append(' ').append(ACTIONS[random.nextInt(4) == 0 ? 1 : 0])
+                .append(" OK\n");
+
+            for (int i = 0; i < line.length(); i++) {
+                out.write(line.charAt(i));
+            }
+            written += line.length();
+            records++;
+        }
+
+        out.close();
+        return records;
+    }
+
+    private int pickProtocol(Random random, int totalWeight) {
+        int pick = random.nextInt(totalWeight);
+        for (int i = 0; i < protocolWeights.length; i++) {
+            pick -= protocolWeights[i];
+            if (pick < 0) {
+                return i;
+            }
+        }
+        return protocolWeights.length - 1;
+    }
+
+    private static String address(Random random) {
+        return (10 + random.nextInt(200)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + (1 + random.nextInt(254));
+    }
+
+    /**
+     * Picks the lookup rows (distinct port/protocol pairs, spread over the protocols by weight)
+     * and, per protocol, a pool of ports that are not in the lookup table.
+     */
+    private void buildLookup() {
+        if (lookupPorts != null) {
+            return;
+        }
+        Random random = new Random(seed ^ 0x5DEECE66DL);
+        tagged = new boolean[protocols.length][LookupTable.PORT_COUNT];
+
+        ArrayList<Integer> keyed = new ArrayList<Integer>(); // Protocols of the mix that have a keyword
+        int keyedWeight = 0;
+        for (int i = 0; i < protocols.length; i++) {
+            if (protocolTable.get(protocols[i]) != null) {
+                keyed.add(i);
+                keyedWeight += protocolWeights[i];
+            }
+        }
+
+        int entries = keyed.isEmpty() ? 0 : lookupEntries;
+        lookupPorts = new int[entries];
+        lookupProtocols = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            int pick = random.nextInt(keyedWeight);
+            int protocolIndex = keyed.get(keyed.size() - 1);
+            for (int index : keyed) {
+                pick -= protocolWeights[index];
+                if (pick < 0) {
+                    protocolIndex = index;
+                    break;
+                }
+            }
+
+            int port = random.nextInt(LookupTable.PORT_COUNT);
+            while (tagged[protocolIndex][port]) {
+                port = (port + 1) % LookupTable.PORT_COUNT;
+            }
+            tagged[protocolIndex][port] = true;
+            lookupPorts[i] = port;
+            lookupProtocols[i] = protocolIndex;
+        }
+
+        int[] pool = new int[portCardinality];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = random.nextInt(LookupTable.PORT_COUNT);
+        }
+        untaggedPorts = new int[protocols.length][];
+        for (int p = 0; p < protocols.length; p++) {
+            int count = 0;
+            int[] ports = new int[pool.length];
+            for (int port : pool) {
+                if (!tagged[p][port]) {
+                    ports[count++] = port;
+                }
+            }
+            if (count == 0) { // Every pool port is tagged, fall back to the first untagged port
+                int port = 0;
+                while (port < LookupTable.PORT_COUNT - 1 && tagged[p][port]) {
+                    port++;
+                }
+                ports[count++] = port;
+            }
+            untaggedPorts[p] = Arrays.copyOf(ports, count);
+        }
+    }
+
+    /**
+     * Parses a size such as "512KB", "100MB" or "20GB" (plain numbers are bytes).
+     *
+     * @param size - Size string
+     * @return the size in bytes
+     */
+    public static long parseSize(String size) {
+        String upper = size.trim().toUpperCase();
+        long multiplier = 1;
+        if (upper.endsWith("KB")) {
+            multiplier = 1L << 10;
+        } else if (upper.endsWith("MB")) {
+            multiplier = 1L << 20;
+        } else if (upper.endsWith("GB")) {
+            multiplier = 1L << 30;
+        }
+        String digits = (multiplier == 1) ? upper : upper.substring(0, upper.length() - 2);
+        return (long) (Double.parseDouble(digits.trim()) * multiplier);
+    }
+
+    /**
+     * Applies a generator option from the command line.
+     *
+     * @param option - Option name, including the leading "--"
+     * @param value - Option value
+     * @return false if the option is not a generator option
+     */
+    public boolean applyOption(String option, String value) {
+        if (option.equals("--protocol-mix")) {
+            setProtocolMix(value);
+        } else if (option.equals("--port-cardinality")) {
+            setPortCardinality(Integer.parseInt(value));
+        } else if (option.equals("--hit-ratio")) {
+            setHitRatio(Double.parseDouble(value));
+        } else if (option.equals("--lookup-entries")) {
+            setLookupSize(Integer.parseInt(value), tagCount);
+        } else if (option.equals("--tags")) {
+            setLookupSize(lookupEntries, Integer.parseInt(value));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Main method that writes a synthetic flow log and lookup table.
+     *
+     * @param args - See the class comment
+     */
+    public static void main(String[] args) throws IOException {
+        ArrayList<String> paths = new ArrayList<String>();
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i], args[++i]);
+            } else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() != 3) {
+            System.out.println("Usage: java FlowLogGenerator <protocolFile> <flowLogFile> <lookupFile> [--size 100MB] [--seed N]");
+            System.out.println("       [--protocol-mix 6:80,17:15,1:5] [--port-cardinality N] [--hit-ratio R] [--lookup-entries N] [--tags N]");
+            return;
+        }
+
+        FlowLogParser parser = new FlowLogParser();
+        parser.prepareProtocolMappings(paths.get(0));
+        long seed = options.containsKey("--seed") ? Long.parseLong(options.get("--seed")) : 42;
+        long size = options.containsKey("--size") ? parseSize(options.get("--size")) : parseSize("100MB");
+
+        FlowLogGenerator generator = new FlowLogGenerator(parser.getProtocolTable(), seed);
+        for (String option : options.keySet()) {
+            if (!option.equals("--seed") && !option.equals("--size") && !generator.applyOption(option, options.get(option))) {
+                throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+
+        generator.writeLookupTable(paths.get(2));
+        long records = generator.writeFlowLog(paths.get(1), size);
+        System.out.println("Wrote " + records + " records to " + paths.get(1) + " and the lookup table to " + paths.get(2));
+    }
+}
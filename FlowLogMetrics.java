@@ -0,0 +1,284 @@
+// File Name: FlowLogMetrics.java
+// Author: Steven Pham
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics of a FlowLogParser: how much was read, how fast, how much of it was
+ * untagged, unknown or malformed, and where the time went.
+ *
+ * The counters are LongAdders, which are striped per thread, and the record loop only
+ * adds to them once per batch (a file, a segment or a chunk, and every FLUSH_INTERVAL
+ * lines of a long one) from its own local counters, so metrics never become a point of
+ * contention between worker threads, and still move while a large file is read.
+ *
+ * The time spent tokenizing, looking up and aggregating is not measured for every record,
+ * which would cost more than the work itself. One record in SAMPLE_INTERVAL is timed, and
+ * the totals are estimated from those samples.
+ *
+ * The metrics can be watched live through JMX (see register) and written as a JSON
+ * summary at the end of a run (see writeJson).
+ */
+public final class FlowLogMetrics implements FlowLogMetricsMBean {
+
+    public static final String OBJECT_NAME = "FlowLogParser:type=Metrics";
+
+    /** One record in this many is timed. Must be a power of two. */
+    public static final int SAMPLE_INTERVAL = 256;
+    public static final int SAMPLE_MASK = SAMPLE_INTERVAL - 1;
+
+    /** The record loop adds its local counters to the metrics at least once in this many lines. */
+    public static final int FLUSH_INTERVAL = 64 * 1024;
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder untagged = new LongAdder();
+    private final LongAdder unknownProtocol = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder tokenizeSampleNanos = new LongAdder();
+    private final LongAdder lookupSampleNanos = new LongAdder();
+    private final LongAdder aggregateSampleNanos = new LongAdder();
+
+    private final LongAdder lookupLoads = new LongAdder();
+    private final LongAdder lookupLoadNanos = new LongAdder();
+    private final LongAdder lookupCacheHits = new LongAdder();
+    private final LongAdder outputWrites = new LongAdder();
+    private final LongAdder outputWriteNanos = new LongAdder();
+
+    private volatile long startNanos = System.nanoTime();
+
+    /**
+     * Adds the totals of one batch of records, counted by one thread.
+     *
+     * @param batchRecords - Records counted
+     * @param batchBytes - Bytes read, including line terminators
+     * @param batchUntagged - Records that resolved to "Untagged"
+     * @param batchUnknownProtocol - Records whose protocol number has no keyword
+     * @param batchMalformed - Lines that could not be read as a record
+     * @param batchFiltered - Records dropped by the filter (not included in batchRecords)
+     */
+    public void addBatch(long batchRecords, long batchBytes, long batchUntagged, long batchUnknownProtocol, long batchMalformed,
+                         long batchFiltered) {
+        records.add(batchRecords);
+        bytes.add(batchBytes);
+        untagged.add(batchUntagged);
+        unknownProtocol.add(batchUnknownProtocol);
+        malformed.add(batchMalformed);
+        filtered.add(batchFiltered);
+    }
+
+    /**
+     * Adds the timings of the sampled records of one batch.
+     *
+     * @param batchSamples - Records that were timed
+     * @param tokenizeNanos - Time spent finding and parsing their fields
+     * @param lookupNanos - Time spent resolving their tags
+     * @param aggregateNanos - Time spent adding them to the counts
+     */
+    public void addSamples(long batchSamples, long tokenizeNanos, long lookupNanos, long aggregateNanos) {
+        samples.add(batchSamples);
+        tokenizeSampleNanos.add(tokenizeNanos);
+        lookupSampleNanos.add(lookupNanos);
+        aggregateSampleNanos.add(aggregateNanos);
+    }
+
+    /**
+     * @param nanos - Time taken to read (and, when reloading, compile) a lookup table
+     */
+    public void addLookupLoad(long nanos) {
+        lookupLoads.increment();
+        lookupLoadNanos.add(nanos);
+    }
+
+    /**
+     * Counts a lookup table loaded from its cache instead of its csv files (see LookupCache).
+     */
+    public void addLookupCacheHit() {
+        lookupCacheHits.increment();
+    }
+
+    /**
+     * @param nanos - Time taken to compile a lookup table that was loaded earlier
+     */
+    public void addLookupCompile(long nanos) {
+        lookupLoadNanos.add(nanos);
+    }
+
+    /**
+     * @param nanos - Time taken to write an output file
+     */
+    public void addOutputWrite(long nanos) {
+        outputWrites.increment();
+        outputWriteNanos.add(nanos);
+    }
+
+    public long getRecordsRead() {
+        return records.sum();
+    }
+
+    public long getBytesRead() {
+        return bytes.sum();
+    }
+
+    public double getRecordsPerSecond() {
+        return perSecond(records.sum());
+    }
+
+    public double getBytesPerSecond() {
+        return perSecond(bytes.sum());
+    }
+
+    public long getUntaggedRecords() {
+        return untagged.sum();
+    }
+
+    public double getUntaggedRatio() {
+        long total = records.sum();
+        return (total == 0) ? 0 : (double) untagged.sum() / total;
+    }
+
+    public long getUnknownProtocolRecords() {
+        return unknownProtocol.sum();
+    }
+
+    public long getMalformedLines() {
+        return malformed.sum();
+    }
+
+    public long getFilteredRecords() {
+        return filtered.sum();
+    }
+
+    public long getTokenizeMillis() {
+        return estimateMillis(tokenizeSampleNanos);
+    }
+
+    public long getLookupMillis() {
+        return estimateMillis(lookupSampleNanos);
+    }
+
+    public long getAggregateMillis() {
+        return estimateMillis(aggregateSampleNanos);
+    }
+
+    public long getLookupLoads() {
+        return lookupLoads.sum();
+    }
+
+    public long getLookupLoadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lookupLoadNanos.sum());
+    }
+
+    public long getLookupCacheHits() {
+        return lookupCacheHits.sum();
+    }
+
+    public long getOutputWrites() {
+        return outputWrites.sum();
+    }
+
+    public long getOutputWriteMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(outputWriteNanos.sum());
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Clears every metric and restarts the clock used for the per-second rates.
+     */
+    public void reset() {
+        LongAdder[] adders = { records, bytes, untagged, unknownProtocol, malformed, filtered, samples,
+            tokenizeSampleNanos, lookupSampleNanos, aggregateSampleNanos,
+            lookupLoads, lookupLoadNanos, lookupCacheHits, outputWrites, outputWriteNanos };
+        for (LongAdder adder : adders) {
+            adder.reset();
+        }
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, under OBJECT_NAME.
+     * A previously registered instance is replaced.
+     *
+     * @throws JMException if the MBean cannot be registered
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    /**
+     * Writes a JSON summary of the metrics.
+     *
+     * @param jsonFile - Path of the JSON file
+     */
+    public void writeJson(String jsonFile) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(jsonFile));
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return the metrics as a JSON object
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format(Locale.ROOT, "  \"elapsedMillis\": %d,\n", getElapsedMillis()));
+        json.append(String.format(Locale.ROOT, "  \"recordsRead\": %d,\n", getRecordsRead()));
+        json.append(String.format(Locale.ROOT, "  \"bytesRead\": %d,\n", getBytesRead()));
+        json.append(String.format(Locale.ROOT, "  \"recordsPerSecond\": %.1f,\n", getRecordsPerSecond()));
+        json.append(String.format(Locale.ROOT, "  \"bytesPerSecond\": %.1f,\n", getBytesPerSecond()));
+        json.append(String.format(Locale.ROOT, "  \"untaggedRecords\": %d,\n", getUntaggedRecords()));
+        json.append(String.format(Locale.ROOT, "  \"untaggedRatio\": %.6f,\n", getUntaggedRatio()));
+        json.append(String.format(Locale.ROOT, "  \"unknownProtocolRecords\": %d,\n", getUnknownProtocolRecords()));
+        json.append(String.format(Locale.ROOT, "  \"malformedLines\": %d,\n", getMalformedLines()));
+        json.append(String.format(Locale.ROOT, "  \"filteredRecords\": %d,\n", getFilteredRecords()));
+        json.append(String.format(Locale.ROOT, "  \"sampledRecords\": %d,\n", samples.sum()));
+        json.append(String.format(Locale.ROOT, "  \"tokenizeMillis\": %d,\n", getTokenizeMillis()));
+        json.append(String.format(Locale.ROOT, "  \"lookupMillis\": %d,\n", getLookupMillis()));
+        json.append(String.format(Locale.ROOT, "  \"aggregateMillis\": %d,\n", getAggregateMillis()));
+        json.append(String.format(Locale.ROOT, "  \"lookupLoads\": %d,\n", getLookupLoads()));
+        json.append(String.format(Locale.ROOT, "  \"lookupLoadMillis\": %d,\n", getLookupLoadMillis()));
+        json.append(String.format(Locale.ROOT, "  \"lookupCacheHits\": %d,\n", getLookupCacheHits()));
+        json.append(String.format(Locale.ROOT, "  \"outputWrites\": %d,\n", getOutputWrites()));
+        json.append(String.format(Locale.ROOT, "  \"outputWriteMillis\": %d\n", getOutputWriteMillis()));
+        return json.append("}\n").toString();
+    }
+
+    private double perSecond(long total) {
+        long elapsed = System.nanoTime() - startNanos;
+        return (elapsed <= 0) ? 0 : total * 1e9 / elapsed;
+    }
+
+    /**
+     * Scales the time of the sampled records up to all records.
+     */
+    private long estimateMillis(LongAdder sampleNanos) {
+        long sampled = samples.sum();
+        if (sampled == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis((long) ((double) sampleNanos.sum() * records.sum() / sampled));
+    }
+}
@@ -0,0 +1,47 @@
+// File Name: FlowLogMetricsMBean.java
+// Author: Steven Pham
+
+/**
+ * Management interface of FlowLogMetrics, as shown in JConsole / VisualVM under
+ * "FlowLogParser:type=Metrics".
+ */
+public interface FlowLogMetricsMBean {
+
+    long getRecordsRead();
+
+    long getBytesRead();
+
+    double getRecordsPerSecond();
+
+    double getBytesPerSecond();
+
+    long getUntaggedRecords();
+
+    double getUntaggedRatio();
+
+    long getUnknownProtocolRecords();
+
+    long getMalformedLines();
+
+    long getFilteredRecords();
+
+    long getTokenizeMillis();
+
+    long getLookupMillis();
+
+    long getAggregateMillis();
+
+    long getLookupLoads();
+
+    long getLookupLoadMillis();
+
+    long getLookupCacheHits();
+
+    long getOutputWrites();
+
+    long getOutputWriteMillis();
+
+    long getElapsedMillis();
+
+    void reset();
+}
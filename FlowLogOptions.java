@@ -0,0 +1,275 @@
+// File Name: FlowLogOptions.java
+// Author: Steven Pham
+
+import java.util.ArrayList;
+
+/**
+ * Command line arguments of FlowLogParser.
+ *
+ * Options start with "--" and may appear anywhere on the command line. Everything
+ * else is kept, in order, as a positional argument (the file paths).
+ */
+public final class FlowLogOptions {
+
+    private final ArrayList<String> arguments = new ArrayList<String>();
+    private int threads = 1;
+    private boolean follow;
+    private long snapshotSeconds = 10;
+    private long snapshotRecords;
+    private FlowLogFormat format;
+    private String snapshotFile;
+    private long reloadSeconds = 1;
+    private String metricsJsonFile;
+    private long windowSeconds;
+    private long latenessSeconds;
+    private final ArrayList<FlowLogAggregation> aggregations = new ArrayList<FlowLogAggregation>();
+    private int distinctPrecision = HyperLogLog.DEFAULT_PRECISION;
+    private int spillGroups;
+    private String spillDirectory;
+    private String addressRulesFile;
+    private FlowLogFilter filter;
+    private boolean lookupCache = true;
+    private String quarantineFile;
+    private long errorBudget = Long.MAX_VALUE;
+    private String lookupCacheFile;
+
+    /**
+     * Parses the command line.
+     *
+     * @param args - Arguments given to main
+     * @return the parsed options
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    public static FlowLogOptions parse(String[] args) {
+        FlowLogOptions options = new FlowLogOptions();
+        ArrayList<String> aggregateDefinitions = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                options.arguments.add(arg);
+                continue;
+            }
+
+            if (arg.equals("--threads")) {
+                options.threads = parsePositiveInt(arg, value(args, ++i, arg));
+            } else if (arg.equals("--follow")) {
+                options.follow = true;
+            } else if (arg.equals("--snapshot-seconds")) {
+                options.snapshotSeconds = parseNonNegativeLong(arg, value(args, ++i, arg));
+            } else if (arg.equals("--snapshot-records")) {
+                options.snapshotRecords = parseNonNegativeLong(arg, value(args, ++i, arg));
+            } else if (arg.equals("--format")) {
+                options.format = FlowLogFormat.parse(value(args, ++i, arg));
+            } else if (arg.equals("--reload-seconds")) {
+                options.reloadSeconds = parseNonNegativeLong(arg, value(args, ++i, arg));
+            } else if (arg.equals("--window")) {
+                options.windowSeconds = parsePositiveInt(arg, value(args, ++i, arg));
+            } else if (arg.equals("--lateness")) {
+                options.latenessSeconds = parseNonNegativeLong(arg, value(args, ++i, arg));
+            } else if (arg.equals("--aggregate")) {
+                aggregateDefinitions.add(value(args, ++i, arg));
+            } else if (arg.equals("--distinct-precision")) {
+                options.distinctPrecision = parsePositiveInt(arg, value(args, ++i, arg));
+            } else if (arg.equals("--spill-groups")) {
+                options.spillGroups = parsePositiveInt(arg, value(args, ++i, arg));
+            } else if (arg.equals("--spill-dir")) {
+                options.spillDirectory = value(args, ++i, arg);
+            } else if (arg.equals("--filter")) {
+                options.filter = FlowLogFilter.parse(value(args, ++i, arg));
+            } else if (arg.equals("--quarantine")) {
+                options.quarantineFile = value(args, ++i, arg);
+            } else if (arg.equals("--error-budget")) {
+                options.errorBudget = parseNonNegativeLong(arg, value(args, ++i, arg));
+            } else if (arg.equals("--lookup-cache")) {
+                options.lookupCacheFile = value(args, ++i, arg);
+            } else if (arg.equals("--no-lookup-cache")) {
+                options.lookupCache = false;
+            } else if (arg.equals("--address-rules")) {
+                options.addressRulesFile = value(args, ++i, arg);
+            } else if (arg.equals("--metrics-json")) {
+                options.metricsJsonFile = value(args, ++i, arg);
+            } else if (arg.equals("--snapshot")) {
+                options.snapshotFile = value(args, ++i, arg);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        // Parsed last, so that --distinct-precision applies wherever it appears
+        for (String definition : aggregateDefinitions) {
+            options.aggregations.add(FlowLogAggregation.parse(definition, options.distinctPrecision)
+                    .withSpill(options.spillGroups, options.spillDirectory));
+        }
+
+        // A snapshot only holds the counts, so it would silently drop the aggregates
+        if (options.snapshotFile != null && !options.aggregations.isEmpty()) {
+            throw new IllegalArgumentException("Option --snapshot cannot be used with --aggregate: snapshots do not hold the extra aggregates");
+        }
+        // Only a single pass over the flow logs writes a snapshot
+        if (options.snapshotFile != null && (options.follow || options.windowSeconds > 0)) {
+            throw new IllegalArgumentException("Option --snapshot cannot be used with " + (options.follow ? "--follow" : "--window")
+                    + ": snapshots are only written by a single pass over the flow logs");
+        }
+
+        return options;
+    }
+
+    /**
+     * @return the positional arguments (file paths), in order
+     */
+    public ArrayList<String> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * @return the number of worker threads used to read the flow log (1 reads it sequentially)
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return true if the flow log should be followed as it grows, instead of read once
+     */
+    public boolean isFollow() {
+        return follow;
+    }
+
+    /**
+     * @return the seconds between output snapshots when following (0 disables time based snapshots)
+     */
+    public long getSnapshotSeconds() {
+        return snapshotSeconds;
+    }
+
+    /**
+     * @return the records between output snapshots when following (0 disables record based snapshots)
+     */
+    public long getSnapshotRecords() {
+        return snapshotRecords;
+    }
+
+    /**
+     * @return the format of flow logs without a header line, or null for the default (version 2)
+     */
+    public FlowLogFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the seconds between checks of the lookup table for changes when following (0 disables reloading)
+     */
+    public long getReloadSeconds() {
+        return reloadSeconds;
+    }
+
+    /**
+     * @return the path of the binary snapshot to write, or null for none
+     */
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * @return the length of the time windows, in seconds (0 when not windowed)
+     */
+    public long getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    /**
+     * @return how long after its end a time window still accepts records, in seconds
+     */
+    public long getLatenessSeconds() {
+        return latenessSeconds;
+    }
+
+    /**
+     * @return the extra aggregates to compute, in the order they were given
+     */
+    public ArrayList<FlowLogAggregation> getAggregations() {
+        return aggregations;
+    }
+
+    /**
+     * @return the filter of the records to count (see FlowLogFilter), or null to count every record
+     */
+    public FlowLogFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the path of the file to write malformed lines to, or null to only count them
+     */
+    public String getQuarantineFile() {
+        return quarantineFile;
+    }
+
+    /**
+     * @return the number of malformed records allowed before reading stops (Long.MAX_VALUE if unlimited)
+     */
+    public long getErrorBudget() {
+        return errorBudget;
+    }
+
+    /**
+     * @return false if the compiled lookup table must not be cached (see LookupCache)
+     */
+    public boolean isLookupCache() {
+        return lookupCache;
+    }
+
+    /**
+     * @param lookupFile - Path of the lookup table csv
+     * @return the path of the lookup cache, by default next to the lookup table csv
+     */
+    public String getLookupCacheFile(String lookupFile) {
+        return (lookupCacheFile != null) ? lookupCacheFile : lookupFile + ".cache";
+    }
+
+    /**
+     * @return the path of the address rule csv (see AddressRules), or null for none
+     */
+    public String getAddressRulesFile() {
+        return addressRulesFile;
+    }
+
+    /**
+     * @return the path of the JSON metrics summary to write at the end of the run, or null for none
+     */
+    public String getMetricsJsonFile() {
+        return metricsJsonFile;
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for option: " + option);
+        }
+        return args[index];
+    }
+
+    private static int parsePositiveInt(String option, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Option " + option + " expects a positive integer, got: " + value);
+    }
+
+    private static long parseNonNegativeLong(String option, String value) {
+        try {
+            long number = Long.parseLong(value);
+            if (number >= 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Option " + option + " expects a non-negative integer, got: " + value);
+    }
+}
@@ -1,16 +1,63 @@
 // File Name: FlowLogParser.java
 // Author: Steven Pham
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class FlowLogParser {
+
+    // Fields used to count a record, in the order of the projection plan
+    private static final String[] COUNTED_FIELDS = { "dstport", "protocol" };
+
+    // A single memory mapping can hold at most 2 GB, so larger files get more segments
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    // How long Ctrl+C waits for the follow mode to write its final snapshot
+    private static final long FINAL_SNAPSHOT_TIMEOUT_MILLIS = 10000;
+
+    // Files counted or waiting to be merged at a time, per worker thread
+    private static final int MAX_PENDING_FILES_PER_THREAD = 2;
     
     private HashMap<Integer, String> protocolTable = new HashMap<Integer, String>(); // Protocol Number -> Keyword
-    private HashMap<String, HashMap<Integer, String>> lookupMap = new HashMap<>(); // Keyword -> (Dest port, tag)
+    private volatile HashMap<String, HashMap<Integer, String>> lookupMap = new HashMap<>(); // Keyword -> (Dest port, tag)
+    private volatile ArrayList<LookupTable.PortRange> lookupRanges = new ArrayList<>(); // Port range and wildcard rows
+    private volatile LookupTable compiledLookup; // Built from the maps and ranges above on first use, replaced by reloadLookup
+    private volatile String cachedLookupFile; // Lookup csv of a table loaded from the cache, not yet read into the maps above
+    private final FlowLogMetrics metrics = new FlowLogMetrics();
+    private FlowLogFormat format = FlowLogFormat.DEFAULT; // Format of flow logs without a header line
+    private final ArrayList<FlowLogAggregation> aggregations = new ArrayList<FlowLogAggregation>(); // Extra aggregates
+    private AddressRules addressRules; // Address tags by subnet, null if not used
+    private FlowLogFilter filter; // Records to count, null for all
+    private FlowLogQuarantine quarantine; // Where malformed lines are written, null if they are only counted
+    private long errorBudget = Long.MAX_VALUE; // Malformed records allowed before reading stops
+    private final AtomicLong malformedRecords = new AtomicLong(); // Malformed records so far, against the error budget
     
     /**
      * Fills a HashMap for protocol number to keyword translation from a csv file.
@@ -28,6 +75,8 @@ public class FlowLogParser {
      */
     public void prepareProtocolMappings(String protocolFile) {
         
+        readCachedLookup(); // Recompiled below, so the lookup rows are needed
+
         try {
             BufferedReader br = new BufferedReader(new FileReader(protocolFile));
             String line;
@@ -57,6 +106,7 @@ public class FlowLogParser {
             }
 
             br.close();
+            compiledLookup = null; // Recompile with the new mappings
 
         } catch (Exception e) {
             System.out.println("A problem has occurred preparing the protocol mappings: " + e);
@@ -73,16 +123,168 @@ public class FlowLogParser {
      * - The first line of csv includes header data, and is skipped. 
      * - Lookup tables has up to 10000 mapping.
      * - Each subsequent line contains, in this order:
-     *      1.) Integer (dst port)
-     *      2.) String (protocol keyword)
+     *      1.) Integer (dst port), range of ports ("start-end") or "*" for any port
+     *      2.) String (protocol keyword) or "*" for any protocol
      *      3.) String (tag)
+     * - Exact ports go in the HashMap. Ranges and wildcards are kept as rules, and are not
+     *   expanded: they are compiled straight into the LookupTable, where an exact port 
+     *   wins over a range, and a range over a wildcard.
      * 
      * @param lookupTable - .csv file containing the lookup table info
      */
     public void prepareLookup(String lookupTable) {
 
         try {
-            BufferedReader br = new BufferedReader(new FileReader(lookupTable));
+            readCachedLookup(); // The new rows are added to those of the cached table
+            long start = System.nanoTime();
+            readLookup(lookupTable, lookupMap, lookupRanges);
+            compiledLookup = null; // Recompile with the new mappings
+            metrics.addLookupLoad(System.nanoTime() - start);
+
+        } catch (Exception e) {
+            System.out.println("A problem has occurred preparing the lookup mappings: " + e);
+        }
+
+    }
+
+    /**
+     * Prepares the protocol mappings and the lookup table like prepareProtocolMappings and
+     * prepareLookup, through a binary cache of the compiled table (see LookupCache).
+     * 
+     * If the cache file was compiled from the same versions of both csv files, the table is
+     * loaded from it and the csv files are not parsed at all. The protocol HashMap is then
+     * refilled from the table (protocol numbers 0-255), and the lookup csv is only read into
+     * the lookup HashMap and ranges once they are needed: by their getters, or by a later
+     * prepareProtocolMappings or prepareLookup that recompiles the table. Counting flow logs
+     * only needs the compiled table. Otherwise the csv files are read and compiled as usual, 
+     * and the cache is rebuilt for the next run.
+     * 
+     * @param protocolFile - Path to .csv file containing protocol number -> keyword translation
+     * @param lookupTable - .csv file containing the lookup table info
+     * @param cacheFile - Path of the cache file
+     * @return true if the table was loaded from the cache
+     */
+    public boolean prepareCachedLookup(String protocolFile, String lookupTable, String cacheFile) {
+        long start = System.nanoTime();
+        LookupCache cache;
+        try {
+            cache = LookupCache.forSources(protocolFile, lookupTable);
+        } catch (Exception e) { // The csv files will report the problem themselves
+            cache = null;
+        }
+
+        LookupTable table = (cache == null) ? null : cache.load(cacheFile);
+        if (table != null) {
+            protocolTable.clear();
+            for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+                if (table.getProtocolName(protocol) != null) {
+                    protocolTable.put(protocol, table.getProtocolName(protocol));
+                }
+            }
+            lookupRanges = new ArrayList<>();
+            lookupMap = new HashMap<>();
+            cachedLookupFile = lookupTable;
+            compiledLookup = table;
+            metrics.addLookupLoad(System.nanoTime() - start);
+            metrics.addLookupCacheHit();
+            return true;
+        }
+
+        prepareProtocolMappings(protocolFile);
+        prepareLookup(lookupTable);
+        if (cache != null) {
+            try {
+                cache.write(cacheFile, getCompiledLookup());
+            } catch (Exception e) {
+                System.out.println("A problem has occurred writing the lookup cache: " + e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the lookup mappings with the current content of a lookup table csv file, 
+     * while flow logs may be counted on other threads.
+     * 
+     * The new mappings are read and compiled into a new LookupTable first, and only then 
+     * published with a single volatile write. Counting never waits for a reload: records 
+     * are tagged with whichever table was current when their batch started. If the file 
+     * cannot be read, the current mappings are kept.
+     * 
+     * @param lookupTable - .csv file containing the lookup table info
+     * @return the newly published table
+     * @throws Exception if the file cannot be read or has a malformed line
+     */
+    public LookupTable reloadLookup(String lookupTable) throws Exception {
+        long start = System.nanoTime();
+        HashMap<String, HashMap<Integer, String>> newLookupMap = new HashMap<>();
+        ArrayList<LookupTable.PortRange> newLookupRanges = new ArrayList<>();
+        readLookup(lookupTable, newLookupMap, newLookupRanges);
+        LookupTable table = LookupTable.compile(protocolTable, newLookupMap, newLookupRanges);
+
+        cachedLookupFile = null;
+        lookupRanges = newLookupRanges;
+        lookupMap = newLookupMap;
+        compiledLookup = table;
+        metrics.addLookupLoad(System.nanoTime() - start);
+        return table;
+    }
+
+    /**
+     * Reads the lookup csv of a table loaded by prepareCachedLookup into the lookup HashMap 
+     * and ranges, the first time they are needed. The compiled table is kept, as it was 
+     * compiled from the same csv.
+     */
+    private void readCachedLookup() {
+        String lookupTable = cachedLookupFile;
+        if (lookupTable == null) {
+            return;
+        }
+        cachedLookupFile = null;
+        try {
+            readLookup(lookupTable, lookupMap, lookupRanges);
+        } catch (Exception e) {
+            System.out.println("A problem has occurred preparing the lookup mappings: " + e);
+        }
+    }
+
+    /**
+     * Loads the address rules used to tag records by subnet as well (see AddressRules), 
+     * which are counted per address tag and tag in the output.
+     * 
+     * @param rulesFile - .csv file containing the address rules (cidr,direction,tag)
+     */
+    public void prepareAddressRules(String rulesFile) {
+
+        try {
+            addressRules = AddressRules.read(rulesFile);
+
+        } catch (Exception e) {
+            System.out.println("A problem has occurred preparing the address rules: " + e);
+        }
+
+    }
+
+    /**
+     * Getter method for the address rules
+     * @return addressRules, or null if none were prepared
+     */
+    public AddressRules getAddressRules() {
+        return addressRules;
+    }
+
+    /**
+     * Reads the mappings of a lookup table csv file (see prepareLookup) into a HashMap,
+     * and its port range and wildcard rows into a list.
+     * 
+     * @param lookupTable - .csv file containing the lookup table info
+     * @param lookupMap - HashMap to add the exact mappings to (Keyword -> (Dest port, tag))
+     * @param lookupRanges - List to add the range and wildcard rows to, in file order
+     */
+    private static void readLookup(String lookupTable, HashMap<String, HashMap<Integer, String>> lookupMap,
+                                   List<LookupTable.PortRange> lookupRanges) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(lookupTable));
+        try {
             String line;
             br.readLine(); // Skip the header line
             
@@ -90,9 +292,26 @@ public class FlowLogParser {
                 String[] parts = line.split(",");
                 
                 String protocol = parts[1].trim();
-                int dstPort = Integer.parseInt(parts[0].trim());
+                String port = parts[0].trim();
                 String tag = parts[2].trim();
 
+                if (port.equals("*")) { // Any port
+                    lookupRanges.add(new LookupTable.PortRange(protocol, 0, LookupTable.PORT_COUNT - 1, tag));
+                    continue;
+                }
+                if (port.indexOf('-') > 0) { // Range of ports
+                    int first = Integer.parseInt(port.substring(0, port.indexOf('-')).trim());
+                    int last = Integer.parseInt(port.substring(port.indexOf('-') + 1).trim());
+                    lookupRanges.add(new LookupTable.PortRange(protocol, first, last, tag));
+                    continue;
+                }
+
+                int dstPort = Integer.parseInt(port);
+                if (protocol.equals(LookupTable.PortRange.ANY_PROTOCOL)) { // One port of any protocol
+                    lookupRanges.add(new LookupTable.PortRange(protocol, dstPort, dstPort, tag));
+                    continue;
+                }
+
                 if (!lookupMap.containsKey(protocol)) { // If not a key yet, add a new HashMap.
                     lookupMap.put(protocol, new HashMap<Integer, String>());
                 } 
@@ -100,12 +319,9 @@ public class FlowLogParser {
                 lookupMap.get(protocol).put(dstPort, tag);
             }
 
+        } finally {
             br.close();
-
-        } catch (Exception e) {
-            System.out.println("A problem has occurred preparing the lookup mappings: " + e);
         }
-
     }
 
 
@@ -114,63 +330,713 @@ public class FlowLogParser {
      * and the port/protocol combination counts.
      * 
      * Assumptions: 
-     * - There is no header lines.
-     * - Logs are of the default (version 2) format only. 
-     * - Files are only up to 10 MB in size.
+     * - Logs start with a header line naming their fields, or are of the format set with 
+     *   setFormat (the default version 2 format unless changed).
      * 
      * @param flowLogFile - .txt file containing the flow logs
+     * @param outputFile - Name of the output file to write out to
      */
     public void readFlowLog(String flowLogFile, String outputFile) {
+        readFlowLog(flowLogFile, outputFile, 1);
+    }
+
+    /**
+     * Processes one or more flow logs using the given number of worker threads, and generates 
+     * an output file containing the tag counts and the port/protocol combination counts.
+     * 
+     * The flow log argument can be a file, a directory or a glob pattern (see FlowLogFiles),
+     * and gzip compressed files are decompressed transparently. All files are counted into 
+     * one combined result:
+     * - Several files are counted concurrently, one file per worker, and merged in path order.
+     *   Only a few files per worker are counted ahead of the merge, to bound memory.
+     * - A single uncompressed file with more than one thread is memory-mapped and split into 
+     *   newline-aligned segments, each counted by its own worker and merged in file order.
+     * Either way, the output is the same as a sequential run over the files in path order.
+     * 
+     * @param flowLogFile - Flow log file, directory of flow logs, or glob pattern
+     * @param outputFile - Name of the output file to write out to
+     * @param threads - Number of worker threads (1 reads everything sequentially)
+     */
+    public void readFlowLog(String flowLogFile, String outputFile, int threads) {
+        readFlowLog(flowLogFile, outputFile, threads, null);
+    }
+
+    /**
+     * Processes one or more flow logs like readFlowLog above, and also saves the counts as a
+     * binary snapshot, which can later be merged with the snapshots of other flow logs.
+     * 
+     * @param flowLogFile - Flow log file, directory of flow logs, or glob pattern
+     * @param outputFile - Name of the output file to write out to
+     * @param threads - Number of worker threads (1 reads everything sequentially)
+     * @param snapshotFile - Path of the snapshot file to write, or null for none
+     */
+    public void readFlowLog(String flowLogFile, String outputFile, int threads, String snapshotFile) {
         
-        // Create temporary data structures to later write into a file. 
-        HashMap<String, Integer> tagCounts = new HashMap<String, Integer>();
-        HashMap<String, Integer> portProtocolCounts = new HashMap<String, Integer>();
+        try {
+            FlowLogCounts counts = countFlowLog(flowLogFile, threads);
+            try {
+                writeOutput(counts, outputFile);
+                if (snapshotFile != null) {
+                    FlowLogSnapshot.write(counts, snapshotFile);
+                }
+            } finally {
+                counts.deleteSpilled();
+            }
+
+        } catch (Exception e) {
+            System.out.println("A problem has occurred reading the flow logs: " + e);
+        } 
+
+    }
 
-        // Populate the first temporary structure
-        for (String protocol : lookupMap.keySet()) {
-            for (Integer dstPort : lookupMap.get(protocol).keySet()) {
-                tagCounts.put(lookupMap.get(protocol).get(dstPort), 0);
+    /**
+     * Processes one or more flow logs in a single pass, and generates one output file per 
+     * tumbling time window of the given length, based on the start time of each record. 
+     * Each file is written as soon as its window closes, and is named after the output file
+     * with the window's start time (see windowOutputFile). Files are read in path order, 
+     * one at a time, since windows close as the records move forward in time.
+     * 
+     * @param flowLogFile - Flow log file, directory of flow logs, or glob pattern
+     * @param outputFile - Name of the output file that the window output files are named after
+     * @param windowSeconds - Length of each window, in seconds (e.g. 60 or 300)
+     * @param latenessSeconds - How long after its end a window still accepts out-of-order records
+     * @return the windows, to report how many were written and how many records were too late
+     */
+    public FlowLogWindows readFlowLogWindows(String flowLogFile, String outputFile, long windowSeconds, long latenessSeconds) {
+        FlowLogWindows windows = newWindows(outputFile, windowSeconds, latenessSeconds);
+
+        try {
+            LookupTable table = getCompiledLookup();
+            for (Path file : FlowLogFiles.resolve(flowLogFile)) {
+                FlowLogTokenizer tokenizer = new FlowLogTokenizer(FlowLogFiles.open(file));
+                tokenizer.setName(file.toString());
+                try {
+                    countRecords(tokenizer, readFormat(tokenizer), table, newCounts(table), windows);
+                } finally {
+                    tokenizer.close();
+                }
             }
+            windows.closeAll();
+
+        } catch (Exception e) {
+            System.out.println("A problem has occurred reading the flow logs: " + e);
         }
-        tagCounts.put("Untagged", 0);
 
+        return windows;
+    }
+
+    /**
+     * Creates time windows that write each window to its own output file as it closes.
+     * 
+     * @param outputFile - Name of the output file that the window output files are named after
+     * @param windowSeconds - Length of each window, in seconds
+     * @param latenessSeconds - How long after its end a window still accepts out-of-order records
+     * @return the windows
+     */
+    FlowLogWindows newWindows(final String outputFile, long windowSeconds, long latenessSeconds) {
+        return new FlowLogWindows(this, windowSeconds, latenessSeconds, new FlowLogWindows.Sink() {
+            public void windowClosed(long windowStart, long windowEnd, FlowLogCounts counts) {
+                writeOutput(counts, windowOutputFile(outputFile, windowStart));
+                counts.deleteSpilled();
+            }
+        });
+    }
+
+    /**
+     * Names the output file of a time window, by adding the window's start time (in epoch 
+     * seconds) before the extension, e.g. "output.txt" -> "output-1620140760.txt".
+     * 
+     * @param outputFile - Name of the output file
+     * @param windowStart - Start of the window, in epoch seconds
+     * @return the name of the window's output file
+     */
+    public static String windowOutputFile(String outputFile, long windowStart) {
+        int dot = outputFile.lastIndexOf('.');
+        int separator = Math.max(outputFile.lastIndexOf('/'), outputFile.lastIndexOf('\\'));
+        if (dot <= separator + 1) { // No extension
+            return outputFile + "-" + windowStart;
+        }
+        return outputFile.substring(0, dot) + "-" + windowStart + outputFile.substring(dot);
+    }
+
+    /**
+     * Merges snapshots written by readFlowLog (e.g. on several hosts, each over its own share
+     * of the flow logs) and generates the same output file as one run over all of the logs.
+     * No protocol or lookup tables are needed: the snapshots carry the tag and protocol names.
+     * 
+     * @param snapshotFiles - Snapshot files, in the order of the flow logs they were counted from
+     * @param outputFile - Name of the output file to write out to
+     */
+    public void mergeSnapshots(List<String> snapshotFiles, String outputFile) {
 
         try {
-            BufferedReader br = new BufferedReader(new FileReader(flowLogFile));
-            String line;
+            writeOutput(FlowLogSnapshot.merge(snapshotFiles), outputFile);
 
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(" ");
-                
-                // Tag Count portion
-                String protocol = protocolTable.get(Integer.parseInt(parts[7]));
-                int dstport = Integer.parseInt(parts[6]);
-                String tag = lookupMap.get(protocol).get(dstport);
-                
-                if ((protocol != null) && (tag != null) ) { 
-                    tagCounts.put(tag, tagCounts.get(tag) + 1);
+        } catch (Exception e) {
+            System.out.println("A problem has occurred merging the snapshots: " + e);
+        }
+
+    }
+
+    /**
+     * Counts one or more flow logs without writing any output. See readFlowLog for the 
+     * accepted flow log arguments and how threads are used.
+     * 
+     * @param flowLogFile - Flow log file, directory of flow logs, or glob pattern
+     * @param threads - Number of worker threads (1 reads everything sequentially)
+     * @return the combined counts of all flow logs
+     * @throws Exception if a flow log cannot be read or has a malformed line
+     */
+    public FlowLogCounts countFlowLog(String flowLogFile, int threads) throws Exception {
+        return countFlowLogs(FlowLogFiles.resolve(flowLogFile), getCompiledLookup(), threads);
+    }
+
+    /**
+     * Counts the records of every flow log file into one combined result.
+     * 
+     * @param files - Flow log files, in the order their counts are merged
+     * @param table - Compiled lookup table
+     * @param threads - Number of worker threads
+     * @return the combined counts of all files
+     */
+    private FlowLogCounts countFlowLogs(List<Path> files, final LookupTable table, int threads) throws Exception {
+        if (files.size() == 1) {
+            Path file = files.get(0);
+            if (threads > 1 && !FlowLogFiles.isGzip(file)) {
+                return countRecordsInParallel(file.toString(), table, threads);
+            }
+            return countFile(file, table);
+        }
 
-                } else { // Not part of lookup table
-                    tagCounts.put("Untagged", tagCounts.get("Untagged") + 1);
+        FlowLogCounts counts = newCounts(table);
+        if (threads <= 1) {
+            try {
+                for (Path file : files) {
+                    counts.merge(countFile(file, table));
                 }
+            } catch (Exception e) {
+                counts.deleteSpilled();
+                throw e;
+            }
+            return counts;
+        }
 
-                // Port + Protocol Count porton
-                String portProtocol = "" + dstport + "," + protocol;
-                if (portProtocolCounts.containsKey(portProtocol)) {
-                    portProtocolCounts.put(portProtocol, portProtocolCounts.get(portProtocol) + 1);
-                } else {
-                    portProtocolCounts.put(portProtocol, 1);
+        // Files are submitted as earlier ones are merged, so the counts of thousands of files
+        // never pile up on the heap waiting for their turn to be merged
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        ArrayDeque<Future<FlowLogCounts>> pending = new ArrayDeque<Future<FlowLogCounts>>();
+        try {
+            int maxPending = threads * MAX_PENDING_FILES_PER_THREAD;
+            for (final Path file : files) {
+                if (pending.size() == maxPending) {
+                    counts.merge(await(pending.poll()));
                 }
+                pending.add(executor.submit(new Callable<FlowLogCounts>() {
+                    public FlowLogCounts call() throws IOException {
+                        return countFile(file, table);
+                    }
+                }));
+            }
 
+            while (!pending.isEmpty()) {
+                counts.merge(await(pending.poll()));
             }
+            return counts;
 
-            br.close();
-            writeOutput(tagCounts, portProtocolCounts, outputFile);
+        } catch (Exception e) {
+            discard(executor, pending, counts);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Counts the records of one (possibly gzip compressed) flow log file.
+     * 
+     * @param file - Flow log file
+     * @param table - Compiled lookup table
+     * @return the counts of the file
+     */
+    private FlowLogCounts countFile(Path file, LookupTable table) throws IOException {
+        FlowLogTokenizer tokenizer = new FlowLogTokenizer(FlowLogFiles.open(file));
+        tokenizer.setName(file.toString());
+        try {
+            return countRecords(tokenizer, readFormat(tokenizer), table);
+        } finally {
+            tokenizer.close();
+        }
+    }
+
+    /**
+     * Determines the format of a flow log from its first line. If that line is a header,
+     * it is consumed and describes the format. Otherwise the line is left to be read as a 
+     * record, and the format set with setFormat (version 2 by default) is used.
+     * 
+     * @param tokenizer - Tokenizer positioned before the first line of a flow log
+     * @return the format of the flow log
+     */
+    FlowLogFormat readFormat(FlowLogTokenizer tokenizer) throws IOException {
+        if (tokenizer.nextLine()) {
+            FlowLogFormat header = FlowLogFormat.fromHeader(tokenizer);
+            if (header != null) {
+                return header;
+            }
+            tokenizer.unreadLine();
+        }
+        return format;
+    }
+
+    /**
+     * Counts the tag and port/protocol combination of every record read by the tokenizer.
+     * 
+     * @param tokenizer - Tokenizer positioned before the first record
+     * @param recordFormat - Format of the records
+     * @param table - Compiled lookup table
+     * @return the counts of the records
+     */
+    private FlowLogCounts countRecords(FlowLogTokenizer tokenizer, FlowLogFormat recordFormat, LookupTable table) throws IOException {
+        FlowLogCounts counts = newCounts(table);
+        try {
+            countRecords(tokenizer, recordFormat, table, counts);
+        } catch (IOException | RuntimeException e) {
+            counts.deleteSpilled();
+            throw e;
+        }
+        return counts;
+    }
+
+    /**
+     * Adds the tag and port/protocol combination of every record read by the tokenizer
+     * to existing counts, and updates their extra aggregates. Only the dstport and protocol
+     * columns of the format, and the columns the aggregates need, are decoded.
+     * 
+     * @param tokenizer - Tokenizer positioned before the first record
+     * @param recordFormat - Format of the records
+     * @param table - Compiled lookup table
+     * @param counts - Counts to add the records to
+     * @return the number of records read
+     */
+    long countRecords(FlowLogTokenizer tokenizer, FlowLogFormat recordFormat, LookupTable table, FlowLogCounts counts) throws IOException {
+        return countRecords(tokenizer, recordFormat, table, counts, null);
+    }
+
+    /**
+     * Counts every record read by the tokenizer, like countRecords above. If windows are
+     * given, each record is added to the counts of its time window (by its start field)
+     * instead, and records for windows that already closed are skipped.
+     * 
+     * @param tokenizer - Tokenizer positioned before the first record
+     * @param recordFormat - Format of the records
+     * @param table - Compiled lookup table
+     * @param counts - Counts to add the records to, when not windowed
+     * @param windows - Time windows to add the records to, or null
+     * @return the number of records read
+     */
+    long countRecords(FlowLogTokenizer tokenizer, FlowLogFormat recordFormat, LookupTable table, FlowLogCounts counts, 
+                      FlowLogWindows windows) throws IOException {
+        RecordCounter counter = new RecordCounter(counts, windows, addressRules != null);
+        return visitRecords(tokenizer, recordFormat, table, windows != null, counter);
+    }
+
+    /**
+     * Streams the records of a flow log to a visitor, so the parser can be embedded in other
+     * programs. The records are tagged with the lookup table, filtered, and checked like
+     * the records of readFlowLog: malformed lines are skipped (and quarantined, against the
+     * error budget) and never reach the visitor. The first line is read as a header if it
+     * is one, otherwise the format set with setFormat is used.
+     * 
+     * The visitor is passed the same FlowRecord for every record (see FlowRecord), so 
+     * reading costs no allocation per record. The stream is read to its end but not closed.
+     * 
+     * @param in - Stream of a flow log (not gzip compressed)
+     * @param name - Name of the flow log, used in messages and the quarantine file
+     * @param visitor - Receives each record
+     * @return the number of records passed to the visitor
+     * @throws IOException if the stream cannot be read, the error budget is exceeded, or the visitor throws
+     */
+    public long readRecords(InputStream in, String name, FlowRecord.Visitor visitor) throws IOException {
+        FlowLogTokenizer tokenizer = new FlowLogTokenizer(in);
+        tokenizer.setName(name);
+        return visitRecords(tokenizer, readFormat(tokenizer), getCompiledLookup(), false, visitor);
+    }
+
+    /**
+     * Streams the records of a flow log read from a channel to a visitor, like readRecords above.
+     * 
+     * @param channel - Channel of a flow log (not gzip compressed)
+     * @param name - Name of the flow log, used in messages and the quarantine file
+     * @param visitor - Receives each record
+     * @return the number of records passed to the visitor
+     * @throws IOException if the channel cannot be read, the error budget is exceeded, or the visitor throws
+     */
+    public long readRecords(ReadableByteChannel channel, String name, FlowRecord.Visitor visitor) throws IOException {
+        return readRecords(Channels.newInputStream(channel), name, visitor);
+    }
+
+    /**
+     * Passes every valid record read by the tokenizer to a visitor. This is the loop behind
+     * both counting and readRecords. Only the dstport and protocol columns (and the start
+     * column, if windowed) are decoded up front; the visitor decodes whatever else it needs.
+     * 
+     * @param tokenizer - Tokenizer positioned before the first record
+     * @param recordFormat - Format of the records
+     * @param table - Compiled lookup table
+     * @param windowed - Whether records without a valid start field are malformed
+     * @param visitor - Receives each record
+     * @return the number of records passed to the visitor
+     */
+    private long visitRecords(FlowLogTokenizer tokenizer, FlowLogFormat recordFormat, LookupTable table, boolean windowed,
+                              FlowRecord.Visitor visitor) throws IOException {
+        int[] plan = recordFormat.project(COUNTED_FIELDS);
+        int dstPortColumn = plan[0];
+        int protocolColumn = plan[1];
+        int startColumn = windowed ? recordFormat.project("start")[0] : -1;
+        FlowLogFilter recordFilter = (filter == null) ? null : filter.bind(recordFormat);
+        FlowRecord record = new FlowRecord(tokenizer, recordFormat, table, addressRules);
+        long records = 0;
+
+        // Metrics of this batch, added to the shared metrics every FLUSH_INTERVAL lines and at the end
+        long startOffset = tokenizer.getOffset();
+        long flushedRecords = 0;
+        long lines = 0;
+        long untagged = 0;
+        long unknownProtocol = 0;
+        long malformed = 0;
+        long filtered = 0;
+        long samples = 0;
+        long tokenizeNanos = 0;
+        long lookupNanos = 0;
+        long aggregateNanos = 0;
+
+        try {
+            while (true) {
+                boolean sampled = (records & FlowLogMetrics.SAMPLE_MASK) == FlowLogMetrics.SAMPLE_MASK;
+                long sampleStart = sampled ? System.nanoTime() : 0;
+
+                if (!tokenizer.nextLine()) {
+                    break;
+                }
+                if (++lines == FlowLogMetrics.FLUSH_INTERVAL) { // Let the metrics move during a long batch
+                    long lineOffset = tokenizer.getLineOffset();
+                    metrics.addBatch(records - flushedRecords, lineOffset - startOffset, untagged, unknownProtocol, malformed, filtered);
+                    metrics.addSamples(samples, tokenizeNanos, lookupNanos, aggregateNanos);
+                    flushedRecords = records;
+                    startOffset = lineOffset;
+                    lines = 0;
+                    untagged = 0;
+                    unknownProtocol = 0;
+                    malformed = 0;
+                    filtered = 0;
+                    samples = 0;
+                    tokenizeNanos = 0;
+                    lookupNanos = 0;
+                    aggregateNanos = 0;
+                }
+                if (tokenizer.getLineStart() == tokenizer.getLineEnd()) { // Blank line, not a record
+                    continue;
+                }
+                if (recordFilter != null && !recordFilter.matches(tokenizer)) { // Dropped before any other column is read
+                    filtered++;
+                    continue;
+                }
+                // Fields that are missing or not numbers parse as -1, so bad lines never throw
+                int protocolNumber = tokenizer.parseInt(protocolColumn);
+                int dstport = tokenizer.parseInt(dstPortColumn);
+                long start = windowed ? tokenizer.parseLong(startColumn) : 0;
+                if (protocolNumber < 0 || dstport < 0 || start < 0) {
+                    malformed++;
+                    if (protocolNumber < 0) {
+                        reject(tokenizer, protocolColumn, "protocol");
+                    } else if (dstport < 0) {
+                        reject(tokenizer, dstPortColumn, "dstport");
+                    } else {
+                        reject(tokenizer, startColumn, "start");
+                    }
+                    continue;
+                }
+                long tokenized = sampled ? System.nanoTime() : 0;
+
+                // Protocols or ports outside of the lookup table resolve to "Untagged".
+                int tagId = table.getTagId(protocolNumber, dstport);
+                long looked = sampled ? System.nanoTime() : 0;
+
+                records++;
+                record.set(protocolNumber, dstport, tagId);
+                visitor.visit(record);
+
+                if (tagId == LookupTable.UNTAGGED) {
+                    untagged++;
+                }
+                if (table.getProtocolName(protocolNumber) == null) {
+                    unknownProtocol++;
+                }
+                if (sampled) {
+                    long aggregated = System.nanoTime();
+                    samples++;
+                    tokenizeNanos += tokenized - sampleStart;
+                    lookupNanos += looked - tokenized;
+                    aggregateNanos += aggregated - looked;
+                }
+            }
+
+        } finally {
+            metrics.addBatch(records - flushedRecords, tokenizer.getOffset() - startOffset, untagged, unknownProtocol, malformed, filtered);
+            metrics.addSamples(samples, tokenizeNanos, lookupNanos, aggregateNanos);
+        }
+
+        return records;
+    }
+
+    /**
+     * Visitor that adds each record's tag and port/protocol combination to counts, and
+     * updates their extra aggregates. If windows are given, each record is added to the
+     * counts of its time window instead, and records for windows that already closed are skipped.
+     */
+    private static final class RecordCounter implements FlowRecord.Visitor {
+        private final FlowLogWindows windows;
+        private final boolean addressTags;
+        private FlowLogCounts counts;
+        private FlowLogAggregator[] aggregators;
+        private FlowLogFormat boundFormat; // Format the aggregators are bound to
+
+        RecordCounter(FlowLogCounts counts, FlowLogWindows windows, boolean addressTags) {
+            this.counts = counts;
+            this.windows = windows;
+            this.addressTags = addressTags;
+            this.aggregators = counts.getAggregators();
+        }
+
+        public void visit(FlowRecord record) {
+            if (windows != null) {
+                FlowLogCounts windowCounts = windows.countsFor(record.start(), record.getTable());
+                if (windowCounts == null) { // Too late for its window
+                    return;
+                }
+                if (windowCounts != counts) {
+                    counts = windowCounts;
+                    aggregators = counts.getAggregators();
+                    boundFormat = null;
+                }
+            }
+            if (boundFormat != record.getFormat()) {
+                boundFormat = record.getFormat();
+                for (FlowLogAggregator aggregator : aggregators) {
+                    aggregator.bind(boundFormat);
+                }
+            }
+
+            int tagId = record.tagId();
+            counts.add(tagId, record.protocol(), record.dstPort());
+            if (addressTags) {
+                counts.addAddressTag(record.addressTagId(), tagId);
+            }
+            for (int i = 0; i < aggregators.length; i++) {
+                aggregators[i].add(record.getTokenizer(), tagId);
+            }
+        }
+    }
+
+    /**
+     * Deals with a line that cannot be counted because one of its fields is missing or is
+     * not a number (e.g. "-" in NODATA records): quarantines it if a quarantine is set, and
+     * stops reading once there are more malformed records than the error budget allows.
+     * 
+     * @param tokenizer - Tokenizer positioned on the line
+     * @param column - Column of the field that cannot be read
+     * @param field - Name of that field
+     * @throws IOException if the error budget is exceeded, or the line cannot be quarantined
+     */
+    private void reject(FlowLogTokenizer tokenizer, int column, String field) throws IOException {
+        String reason = (tokenizer.hasField(column) ? "invalid " : "missing ") + field;
+        FlowLogQuarantine lines = quarantine;
+        if (lines != null) {
+            lines.add(tokenizer, reason);
+        }
+        if (malformedRecords.incrementAndGet() > errorBudget) {
+            throw new IOException("Error budget of " + errorBudget + " malformed records exceeded, at byte " 
+                    + tokenizer.getLineOffset() + " of " + tokenizer.getName() + " (" + reason + ")");
+        }
+    }
+
+    /**
+     * Memory-maps the flow log, splits it into newline-aligned segments and counts each 
+     * segment on a pool of worker threads. The per-segment counts are merged in file order.
+     * 
+     * @param flowLogFile - .txt file containing the flow logs
+     * @param table - Compiled lookup table
+     * @param threads - Number of worker threads
+     * @return the merged counts of the whole file
+     */
+    private FlowLogCounts countRecordsInParallel(String flowLogFile, final LookupTable table, int threads) throws Exception {
+        FileChannel channel = FileChannel.open(Paths.get(flowLogFile), StandardOpenOption.READ);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<FlowLogCounts>> results = new ArrayList<Future<FlowLogCounts>>();
+        FlowLogCounts counts = newCounts(table);
+
+        try {
+            long[] boundaries = findSegmentBoundaries(channel, threads);
+            FlowLogFormat fileFormat = null;
+
+            for (int i = 0; i + 1 < boundaries.length; i++) {
+                long start = boundaries[i];
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, boundaries[i + 1] - start);
+                final FlowLogTokenizer tokenizer = new FlowLogTokenizer(segment, start);
+                tokenizer.setName(flowLogFile);
+                if (i == 0) { // Only the first segment can start with a header line
+                    fileFormat = readFormat(tokenizer);
+                }
+
+                final FlowLogFormat segmentFormat = fileFormat;
+                results.add(executor.submit(new Callable<FlowLogCounts>() {
+                    public FlowLogCounts call() throws IOException {
+                        return countRecords(tokenizer, segmentFormat, table);
+                    }
+                }));
+            }
+
+            for (Future<FlowLogCounts> result : results) {
+                counts.merge(await(result));
+            }
+            return counts;
 
         } catch (Exception e) {
-            System.out.println("A problem has occurred reading the flow logs: " + e);
-        } 
+            discard(executor, results, counts);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+            channel.close();
+        }
+    }
+
+    /**
+     * Deletes the spilled runs of counts that will not be returned after a worker failed:
+     * the counts merged so far, and the results of the other workers once they are done.
+     * Spill runs are only deleted explicitly (see FlowLogSpill), so none are left behind.
+     * 
+     * @param executor - Pool of the workers, which is stopped
+     * @param results - Results of the workers that were not merged
+     * @param merged - Counts merged so far
+     */
+    private static void discard(ExecutorService executor, Collection<Future<FlowLogCounts>> results, FlowLogCounts merged) {
+        merged.deleteSpilled();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (Future<FlowLogCounts> result : results) {
+            if (result.isDone() && !result.isCancelled()) {
+                try {
+                    result.get().deleteSpilled();
+                } catch (Exception e) { // The worker failed, and deleted its own runs
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a worker's result, reporting the worker's own problem rather than the wrapper.
+     */
+    private static <T> T await(Future<T> result) throws Exception {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Splits a file into segments that each start at the beginning of a line.
+     * There is at least one segment per thread (if the file has enough lines), and no
+     * segment is larger than what a single memory mapping can hold.
+     * 
+     * @param channel - Channel of the flow log file
+     * @param threads - Number of worker threads
+     * @return the segment start offsets, followed by the file size
+     */
+    private static long[] findSegmentBoundaries(FileChannel channel, int threads) throws IOException {
+        long size = channel.size();
+        long segmentCount = Math.max(threads, (size + MAX_SEGMENT_SIZE - 1) / MAX_SEGMENT_SIZE);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
 
+        ArrayList<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(0L);
+        long previous = 0;
+
+        for (long i = 1; i < segmentCount; i++) {
+            // Segments end right after a '\n', which also keeps "\r\n" terminators whole.
+            long boundary = nextLineStart(channel, Math.max(previous, size * i / segmentCount), size, probe);
+            if (boundary >= size) {
+                break;
+            }
+            if (boundary > previous) {
+                boundaries.add(boundary);
+                previous = boundary;
+            }
+        }
+        boundaries.add(size);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return the offset just past the first '\n' at or after position, or size if there is none
+     */
+    private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer probe) throws IOException {
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Writes into a file the counts gathered from a flow log, followed by their extra aggregates.
+     * 
+     * @param counts - Tag and port/protocol combination counts
+     * @param outputFile - Name of the output file to write out to
+     */
+    public void writeOutput(FlowLogCounts counts, String outputFile) {
+        try {
+            writeCounts(counts, outputFile);
+        } catch (Exception e) {
+            System.out.println("A problem has occurred while writing the output file: " + e);
+        }
+    }
+
+    /**
+     * Writes into a file the counts gathered from a flow log, like writeOutput, but lets a
+     * failure through, for callers that must not use a partially written file.
+     * 
+     * @param counts - Tag and port/protocol combination counts
+     * @param outputFile - Name of the output file to write out to
+     * @throws IOException if the file cannot be written completely
+     */
+    void writeCounts(FlowLogCounts counts, String outputFile) throws IOException {
+        long start = System.nanoTime();
+        HashMap<String, Long> addressTagCounts = counts.getAddressTagCounts();
+        try {
+            writeOutputFile(counts.getTagCounts(), counts.getPortProtocolCounts(), addressTagCounts, counts.getAggregators(), outputFile);
+        } catch (UncheckedIOException e) { // A spilled run of an aggregate could not be read
+            throw e.getCause();
+        }
+        metrics.addOutputWrite(System.nanoTime() - start);
     }
 
     /**
@@ -180,9 +1046,20 @@ public class FlowLogParser {
      * @param portProtocolCounts - HashMap containing the port/protocol combination counts
      * @param outputFile - Name of the output file to write out to
      */
-    public void writeOutput(HashMap<String, Integer> tagCounts, HashMap<String, Integer> portProtocolCounts, String outputFile) {
+    public void writeOutput(HashMap<String, ? extends Number> tagCounts, HashMap<String, ? extends Number> portProtocolCounts, String outputFile) {
+        long start = System.nanoTime();
+        try {
+            writeOutputFile(tagCounts, portProtocolCounts, null, new FlowLogAggregator[0], outputFile);
+        } catch (Exception e) {
+            System.out.println("A problem has occurred while writing the output file: " + e);
+        }
+        metrics.addOutputWrite(System.nanoTime() - start);
+    }
+
+    private void writeOutputFile(HashMap<String, ? extends Number> tagCounts, HashMap<String, ? extends Number> portProtocolCounts, 
+                                 HashMap<String, Long> addressTagCounts, FlowLogAggregator[] aggregators, String outputFile) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile)); 
         try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile)); 
             writer.write("Tag Counts:\n");
             writer.write("Tag,Count\n");
 
@@ -198,12 +1075,149 @@ public class FlowLogParser {
                 writer.write(portProtocol + "," + portProtocolCounts.get(portProtocol) + "\n");
             }
 
+            // Address tags, combined with the port/protocol tags
+            if (addressTagCounts != null) {
+                writer.write("\nAddress Tag Counts:\n");
+                writer.write("Address Tag,Tag,Count\n");
+
+                for (String addressTag : addressTagCounts.keySet()) {
+                    writer.write(addressTag + "," + addressTagCounts.get(addressTag) + "\n");
+                }
+            }
+
+            // Extra aggregates, one section each
+            for (FlowLogAggregator aggregator : aggregators) {
+                writer.write("\n" + aggregator.getAggregation() + ":\n");
+                writer.write(aggregator.getHeader() + "\n");
+
+                aggregator.writeResults(writer);
+            }
+
+        } finally {
             writer.close();
+        }
+    }
 
-        } catch (Exception e) {
-            System.out.println("A problem has occurred while writing the output file: " + e);
+    /**
+     * Returns the compiled lookup table, compiling the protocol and lookup HashMaps on first use.
+     * @return compiledLookup
+     */
+    public LookupTable getCompiledLookup() {
+        LookupTable table = compiledLookup;
+        if (table == null) {
+            readCachedLookup();
+            long start = System.nanoTime();
+            table = LookupTable.compile(protocolTable, lookupMap, lookupRanges);
+            compiledLookup = table;
+            metrics.addLookupCompile(System.nanoTime() - start);
         }
+        return table;
+    }
 
+    /**
+     * Getter method for the runtime metrics of this parser
+     * @return metrics
+     */
+    public FlowLogMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the format of flow logs that do not start with a header line.
+     * Flow logs with a header line are always read with the format of their header.
+     * @param format - Flow log format, version 2 by default
+     */
+    public void setFormat(FlowLogFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Sets where the lines that cannot be counted (malformed records) are written. They are
+     * always skipped and counted in the metrics, whether or not they are quarantined.
+     * 
+     * @param quarantine - Quarantine to write malformed lines to, or null to only count them
+     */
+    public void setQuarantine(FlowLogQuarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Getter method for the quarantine of malformed lines
+     * @return quarantine, or null if malformed lines are only counted
+     */
+    public FlowLogQuarantine getQuarantine() {
+        return quarantine;
+    }
+
+    /**
+     * Sets how many malformed records may be skipped before reading stops with an error
+     * (and no output is written). The budget covers every flow log read by this parser.
+     * 
+     * @param errorBudget - Number of malformed records allowed (0 stops at the first one)
+     */
+    public void setErrorBudget(long errorBudget) {
+        this.errorBudget = errorBudget;
+    }
+
+    /**
+     * Getter method for the error budget
+     * @return the number of malformed records allowed (Long.MAX_VALUE if unlimited)
+     */
+    public long getErrorBudget() {
+        return errorBudget;
+    }
+
+    /**
+     * Sets a filter (see FlowLogFilter), so that only the records that pass it are counted.
+     * The filter is checked on the raw bytes of each line before anything else is decoded.
+     * 
+     * @param filter - Filter of the records to count, or null to count every record
+     */
+    public void setFilter(FlowLogFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Getter method for the filter of the records to count
+     * @return filter, or null if every record is counted
+     */
+    public FlowLogFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Adds an extra aggregate to compute while reading flow logs, such as "sum(bytes) by tag".
+     * Every aggregate is computed in the same pass over the flow logs, and is written to the 
+     * output file after the port/protocol combination counts.
+     * @param aggregation - Aggregation to compute
+     */
+    public void addAggregation(FlowLogAggregation aggregation) {
+        aggregations.add(aggregation);
+    }
+
+    /**
+     * Getter method for the extra aggregates computed while reading flow logs
+     * @return aggregations
+     */
+    public List<FlowLogAggregation> getAggregations() {
+        return aggregations;
+    }
+
+    /**
+     * Creates empty counts, with this parser's extra aggregates and address rules, for records tagged with a table.
+     * @param table - Compiled lookup table
+     * @return the counts
+     */
+    FlowLogCounts newCounts(LookupTable table) {
+        return new FlowLogCounts(table, aggregations, addressRules);
+    }
+
+    /**
+     * Getter method for the format of flow logs without a header line
+     * @return format
+     */
+    public FlowLogFormat getFormat() {
+        return format;
     }
 
     /**
@@ -219,8 +1233,18 @@ public class FlowLogParser {
      * @return lookupMap
      */
     public HashMap<String, HashMap<Integer, String>> getLookupMap() {
+        readCachedLookup();
         return lookupMap;
     }
+
+    /**
+     * Getter method for the port range and wildcard rows of the lookup table
+     * @return lookupRanges
+     */
+    public List<LookupTable.PortRange> getLookupRanges() {
+        readCachedLookup();
+        return lookupRanges;
+    }
     
 
 
@@ -231,25 +1255,56 @@ public class FlowLogParser {
      * Expects the following arguments:
      *  1) Protocol mapping CSV
      *  2) Lookup table CSV
-     *  3) Flow log file
+     *  3) Flow log file, directory of flow logs, or glob pattern (may be gzip compressed)
      *  4) (Optional) Output file path (defaults to "output.txt")
      * 
+     * Options (see FlowLogOptions) may be given anywhere on the command line:
+     *  --threads N - Read the flow log(s) with N worker threads
+     *  --follow - Keep reading the flow log as it grows (with --snapshot-seconds / --snapshot-records),
+     *             reloading the lookup table when it changes (every --reload-seconds)
+     *  --format FIELDS - Field list of flow logs without a header line (default: version 2)
+     *  --window SECONDS - Write one output file per tumbling time window (with --lateness SECONDS)
+     *  --aggregate SPEC - Also compute an aggregate (see FlowLogAggregation), may be repeated
+     *  --distinct-precision P - HyperLogLog precision of distinct aggregates (see HyperLogLog)
+     *  --address-rules FILE - Also tag records by subnet (see AddressRules)
+     *  --spill-groups N - Spill exact aggregates to disk past N groups in memory (see FlowLogSpill)
+     *  --spill-dir DIR - Directory of the spilled runs (default: the temporary directory)
+     *  --filter EXPRESSION - Only count the records that pass a filter (see FlowLogFilter)
+     *  --quarantine FILE - Write the malformed lines that are skipped to a file (see FlowLogQuarantine)
+     *  --error-budget N - Stop with an error after N malformed records (default: never)
+     *  --lookup-cache FILE - Cache of the compiled lookup table (default: <lookupTable>.cache, see LookupCache)
+     *  --no-lookup-cache - Always read the protocol and lookup csv files
+     *  --snapshot FILE - Also save the counts as a binary snapshot (not with --aggregate, --follow or --window)
+     *  --metrics-json FILE - Write the run's metrics (see FlowLogMetrics) as JSON at the end
+     * 
+     * Snapshots are merged with: merge <outputFile> <snapshot1> [snapshot2 ...]
+     * 
      * @param args - String arguments containing file paths
      */
     public static void main(String[] args) {
-        if (args.length < 3 || args.length > 4) {
-            System.out.println("Jar Usage: java -jar FlowLogParser.jar <protocolFile> <lookupTable> <flowLogFile> [outputFile]");
-            System.out.println("Example: java -jar FlowLogParser.jar protocol.csv lookup.csv log.txt custom-output.txt\n");
+        FlowLogOptions options;
+        try {
+            options = FlowLogOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage() + "\n");
+            options = null;
+        }
 
-            System.out.println("Direct Java File Usage: java FlowLogParser.java <protocolFile> <lookupTable> <flowLogFile> [outputFile]");
-            System.out.println("Example: java FlowLogParser.java protocol.csv lookup.csv log.txt custom-output.txt");
+        if (options != null && options.getArguments().size() >= 3 && options.getArguments().get(0).equals("merge")) {
+            mergeSnapshots(options.getArguments());
+            return;
+        }
+
+        if (options == null || options.getArguments().size() < 3 || options.getArguments().size() > 4) {
+            printUsage();
             return;
         }
     
-        String protocolFile = args[0];
-        String lookupFile = args[1];
-        String flowLogFile = args[2];
-        String outputFile = (args.length == 4) ? args[3] : "output.txt";
+        ArrayList<String> paths = options.getArguments();
+        String protocolFile = paths.get(0);
+        String lookupFile = paths.get(1);
+        String flowLogFile = paths.get(2);
+        String outputFile = (paths.size() == 4) ? paths.get(3) : "output.txt";
     
         System.out.println("Starting FlowLogParser...\n");
         System.out.println("Using the file paths:");
@@ -258,15 +1313,219 @@ public class FlowLogParser {
         System.out.println(" - Flow log file: " + flowLogFile);
         System.out.println(" - Output file: " + outputFile + "\n");
     
+        FlowLogParser parser = new FlowLogParser();
         try {
-            FlowLogParser parser = new FlowLogParser();
-            parser.prepareProtocolMappings(protocolFile);
-            parser.prepareLookup(lookupFile);
-            parser.readFlowLog(flowLogFile, outputFile);
-            System.out.println("Flow log parsing completed. Output written to: " + outputFile + "\n");
+            parser.getMetrics().register();
+        } catch (Exception e) {
+            System.out.println("A problem has occurred registering the metrics MBean: " + e);
+        }
+
+        try {
+            if (options.isLookupCache()) {
+                parser.prepareCachedLookup(protocolFile, lookupFile, options.getLookupCacheFile(lookupFile));
+            } else {
+                parser.prepareProtocolMappings(protocolFile);
+                parser.prepareLookup(lookupFile);
+            }
+            if (options.getAddressRulesFile() != null) {
+                parser.prepareAddressRules(options.getAddressRulesFile());
+            }
+            if (options.getFormat() != null) {
+                parser.setFormat(options.getFormat());
+            }
+            parser.setFilter(options.getFilter());
+            parser.setErrorBudget(options.getErrorBudget());
+            if (options.getQuarantineFile() != null) {
+                parser.setQuarantine(new FlowLogQuarantine(options.getQuarantineFile()));
+            }
+            for (FlowLogAggregation aggregation : options.getAggregations()) {
+                parser.addAggregation(aggregation);
+            }
+
+            if (options.isFollow()) {
+                followFlowLog(parser, lookupFile, flowLogFile, outputFile, options);
+            } else if (options.getWindowSeconds() > 0) {
+                FlowLogWindows windows = parser.readFlowLogWindows(flowLogFile, outputFile, options.getWindowSeconds(), options.getLatenessSeconds());
+                printWindows(windows, outputFile);
+            } else {
+                parser.readFlowLog(flowLogFile, outputFile, options.getThreads(), options.getSnapshotFile());
+                System.out.println("Flow log parsing completed. Output written to: " + outputFile + "\n");
+                if (options.getSnapshotFile() != null) {
+                    System.out.println("Snapshot written to: " + options.getSnapshotFile() + "\n");
+                }
+            }
 
         } catch (Exception e) {
             System.err.println("A problem occurred while parsing: " + e.getMessage());
         }
+
+        FlowLogQuarantine quarantine = parser.getQuarantine();
+        if (quarantine != null) {
+            try {
+                quarantine.close();
+                System.out.println(quarantine.getLines() + " malformed line(s) written to: " + quarantine.getQuarantineFile() + "\n");
+            } catch (Exception e) {
+                System.out.println("A problem has occurred writing the quarantine file: " + e);
+            }
+        }
+        printSummary(parser.getMetrics(), options.getMetricsJsonFile());
+    }
+
+    /**
+     * Prints how many time windows were written, and how many records came too late for theirs.
+     * 
+     * @param windows - Windows of the run
+     * @param outputFile - Name of the output file that the window output files are named after
+     */
+    private static void printWindows(FlowLogWindows windows, String outputFile) {
+        System.out.println("Wrote " + windows.getClosedWindows() + " time window(s), to files named after " 
+                + outputFile + " with the start time of each window");
+        System.out.println("Records too late for their window: " + windows.getLateRecords() + "\n");
+    }
+
+    /**
+     * Prints a short summary of the run, and writes the full metrics as JSON if requested.
+     * 
+     * @param metrics - Metrics of the run
+     * @param metricsJsonFile - Path of the JSON file to write, or null for none
+     */
+    private static void printSummary(FlowLogMetrics metrics, String metricsJsonFile) {
+        String filtered = (metrics.getFilteredRecords() > 0) ? ", " + metrics.getFilteredRecords() + " filtered out" : "";
+        System.out.println(String.format(Locale.ROOT, "Read %d records (%d bytes) in %d ms: %.0f records/s, %.1f MB/s, %.1f%% untagged, %d unknown protocol, %d malformed%s\n",
+                metrics.getRecordsRead(), metrics.getBytesRead(), metrics.getElapsedMillis(), metrics.getRecordsPerSecond(), 
+                metrics.getBytesPerSecond() / (1 << 20), metrics.getUntaggedRatio() * 100, metrics.getUnknownProtocolRecords(), metrics.getMalformedLines(),
+                filtered));
+
+        if (metricsJsonFile != null) {
+            try {
+                metrics.writeJson(metricsJsonFile);
+                System.out.println("Metrics written to: " + metricsJsonFile + "\n");
+            } catch (IOException e) {
+                System.out.println("A problem has occurred writing the metrics: " + e);
+            }
+        }
+    }
+
+    /**
+     * Runs the merge command: "merge <outputFile> <snapshot1> [snapshot2 ...]".
+     * 
+     * @param arguments - Positional arguments, starting with "merge"
+     */
+    private static void mergeSnapshots(ArrayList<String> arguments) {
+        String outputFile = arguments.get(1);
+        List<String> snapshotFiles = arguments.subList(2, arguments.size());
+
+        System.out.println("Merging " + snapshotFiles.size() + " snapshot(s) into: " + outputFile + "\n");
+        new FlowLogParser().mergeSnapshots(snapshotFiles, outputFile);
+        System.out.println("Merge completed. Output written to: " + outputFile + "\n");
+    }
+
+    /**
+     * Follows a growing flow log until the JVM is asked to shut down (e.g. with Ctrl+C),
+     * rewriting the output file with the counts so far after every snapshot interval.
+     * 
+     * The lookup table file is reloaded whenever it changes (unless --reload-seconds is 0).
+     * 
+     * @param parser - Parser whose protocol and lookup tables have been prepared
+     * @param lookupFile - Path of the lookup table the parser was prepared with
+     * @param flowLogFile - Path of the flow log to follow
+     * @param outputFile - Name of the output file to rewrite
+     * @param options - Snapshot and reload interval options
+     */
+    private static void followFlowLog(FlowLogParser parser, String lookupFile, String flowLogFile, String outputFile, 
+                                      FlowLogOptions options) throws Exception {
+        if (!Files.isRegularFile(Paths.get(flowLogFile))) {
+            throw new IllegalArgumentException("--follow needs a single flow log file: " + flowLogFile);
+        }
+        final FlowLogFollower follower = new FlowLogFollower(parser, flowLogFile, outputFile, 
+                options.getSnapshotSeconds(), options.getSnapshotRecords());
+        FlowLogWindows windows = null;
+        if (options.getWindowSeconds() > 0) {
+            windows = parser.newWindows(outputFile, options.getWindowSeconds(), options.getLatenessSeconds());
+            follower.setWindows(windows);
+        }
+        final Thread followingThread = Thread.currentThread();
+
+        // Let the follower write its final snapshot before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                follower.stop();
+                try {
+                    followingThread.join(FINAL_SNAPSHOT_TIMEOUT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        LookupReloader reloader = null;
+        if (options.getReloadSeconds() > 0) {
+            reloader = new LookupReloader(parser, lookupFile, options.getReloadSeconds());
+            reloader.start();
+        }
+
+        System.out.println("Following the flow log. Press Ctrl+C to stop.\n");
+        try {
+            follower.run();
+        } finally {
+            if (reloader != null) {
+                reloader.stop();
+            }
+        }
+        System.out.println("Stopped following. Output written to: " + outputFile + "\n");
+        if (windows != null) {
+            printWindows(windows, outputFile);
+        }
+        if (reloader != null && reloader.getReloadCount() > 0) {
+            System.out.println("Lookup table reloaded " + reloader.getReloadCount() + " time(s), last reload took "
+                    + TimeUnit.NANOSECONDS.toMillis(reloader.getLastReloadNanos()) + " ms\n");
+        }
+    }
+
+    /**
+     * Prints how to run the program.
+     */
+    private static void printUsage() {
+        System.out.println("Jar Usage: java -jar FlowLogParser.jar [options] <protocolFile> <lookupTable> <flowLogFile> [outputFile]");
+        System.out.println("Example: java -jar FlowLogParser.jar protocol.csv lookup.csv log.txt custom-output.txt\n");
+
+        System.out.println("Direct Java File Usage: java FlowLogParser.java [options] <protocolFile> <lookupTable> <flowLogFile> [outputFile]");
+        System.out.println("Example: java FlowLogParser.java protocol.csv lookup.csv log.txt custom-output.txt\n");
+
+        System.out.println("<flowLogFile> can also be a directory, or a quoted glob such as \"logs/**.log.gz\".");
+        System.out.println("Gzip compressed flow logs are decompressed automatically.\n");
+
+        System.out.println("Merge Usage: java -jar FlowLogParser.jar merge <outputFile> <snapshot1> [snapshot2 ...]");
+        System.out.println("Merges snapshots saved with --snapshot into one output file.\n");
+
+        System.out.println("Options:");
+        System.out.println("  --threads N            Read the flow log(s) with N worker threads (default: 1)");
+        System.out.println("  --follow               Keep reading the flow log as it grows, until stopped with Ctrl+C");
+        System.out.println("  --snapshot-seconds N   When following, rewrite the output every N seconds (default: 10, 0 = off)");
+        System.out.println("  --snapshot-records M   When following, rewrite the output every M records (default: 0 = off)");
+        System.out.println("  --reload-seconds N     When following, check the lookup table for changes every N seconds (default: 1, 0 = off)");
+        System.out.println("  --format FIELDS        Fields of flow logs without a header line, e.g. \"${version} ${dstport} ${protocol}\"");
+        System.out.println("                         (default: the version 2 fields; header lines always take precedence)");
+        System.out.println("  --window SECONDS       Write the counts of each tumbling time window (by record start time) to its own");
+        System.out.println("                         output file as soon as the window closes, e.g. --window 60 for one per minute");
+        System.out.println("  --lateness SECONDS     With --window, how long after its end a window still accepts records (default: 0)");
+        System.out.println("  --aggregate SPEC       Also compute an aggregate in the same pass, e.g. \"sum(bytes) by tag\" or");
+        System.out.println("                         \"count by tag,action\" (count, sum, min or max; may be given more than once)");
+        System.out.println("                         Approximate, in fixed memory: \"distinct(srcaddr) by tag\" or \"top(20) by srcaddr,dstaddr\"");
+        System.out.println("  --distinct-precision P HyperLogLog precision of distinct aggregates, " + HyperLogLog.MIN_PRECISION + " to " + HyperLogLog.MAX_PRECISION
+                + " (default: " + HyperLogLog.DEFAULT_PRECISION + ", 2^P bytes per group)");
+        System.out.println("  --address-rules FILE   Also tag records by source/destination subnet, from a csv of cidr,direction,tag");
+        System.out.println("                         (direction is src, dst or any), counted per address tag and tag");
+        System.out.println("  --spill-groups N       Keep at most N groups of each exact aggregate in memory, spilling the rest to disk");
+        System.out.println("  --spill-dir DIR        Directory of the spilled aggregate runs (default: the temporary directory)");
+        System.out.println("  --filter EXPRESSION    Only count the records that pass a filter, e.g. \"action = REJECT\" or");
+        System.out.println("                         \"start between 1620140600 and 1620144200 and dstport in (22, 3389)\"");
+        System.out.println("  --quarantine FILE      Write the malformed lines that are skipped, with their byte offsets, to a file");
+        System.out.println("  --error-budget N       Stop with an error (and no output) after N malformed lines (default: never)");
+        System.out.println("  --lookup-cache FILE    Cache of the compiled protocol and lookup tables, rebuilt when the csv files change");
+        System.out.println("                         (default: the lookup table path + \".cache\")");
+        System.out.println("  --no-lookup-cache      Always read and compile the protocol and lookup csv files");
+        System.out.println("  --metrics-json FILE    Write the metrics of the run (also available over JMX) as JSON at the end");
+        System.out.println("  --snapshot FILE        Also save the counts as a binary snapshot, to be merged later (not with --aggregate, --follow or --window)");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,159 @@
+// File Name: FlowLogQuarantine.java
+// Author: Steven Pham
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the lines that could not be counted (malformed records) to a quarantine file, so
+ * they can be looked at or replayed later, without slowing down the threads reading logs.
+ *
+ * Each quarantined line is written as one line of tab separated values:
+ *      source    byte offset of the line    reason    the line itself
+ *
+ * A line is copied out of the tokenizer's buffer and handed to a background thread
+ * through a bounded queue, which writes it through a buffer. Readers only wait if the
+ * writer falls more than QUEUE_CAPACITY lines behind. close() writes everything queued.
+ * Several threads may quarantine lines at the same time, in which case the lines of a
+ * file are not necessarily in file order (the byte offsets tell where each line was).
+ */
+public final class FlowLogQuarantine implements Closeable {
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final byte[] TAB = { '\t' };
+    private static final byte[] NEWLINE = { '\n' };
+    private static final byte[][] END = new byte[0][]; // Queued by close()
+
+    private final String quarantineFile;
+    private final OutputStream out;
+    private final BlockingQueue<byte[][]> queue = new ArrayBlockingQueue<byte[][]>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private final AtomicLong lines = new AtomicLong();
+    private volatile IOException failure; // First write failure, reported to the readers
+    private boolean closed;
+
+    /**
+     * Creates (or replaces) the quarantine file and starts its writer thread.
+     *
+     * @param quarantineFile - Path of the quarantine file
+     * @throws IOException if the file cannot be created
+     */
+    public FlowLogQuarantine(String quarantineFile) throws IOException {
+        this.quarantineFile = quarantineFile;
+        this.out = new BufferedOutputStream(new FileOutputStream(quarantineFile), 64 * 1024);
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                writeQueued();
+            }
+        }, "FlowLogQuarantine");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Quarantines the current line of a tokenizer.
+     *
+     * @param tokenizer - Tokenizer positioned on the line
+     * @param reason - Why the line could not be counted
+     * @throws IOException if the quarantine file could not be written, or the thread is interrupted
+     */
+    public void add(FlowLogTokenizer tokenizer, String reason) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        String source = (tokenizer.getName() == null) ? "-" : tokenizer.getName();
+        byte[] line = Arrays.copyOfRange(tokenizer.getBuffer(), tokenizer.getLineStart(), tokenizer.getLineEnd());
+        byte[][] entry = {
+            source.getBytes(StandardCharsets.UTF_8), TAB,
+            Long.toString(tokenizer.getLineOffset()).getBytes(StandardCharsets.US_ASCII), TAB,
+            reason.getBytes(StandardCharsets.UTF_8), TAB,
+            line, NEWLINE
+        };
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while quarantining a line");
+        }
+        lines.incrementAndGet();
+    }
+
+    /**
+     * @return the path of the quarantine file
+     */
+    public String getQuarantineFile() {
+        return quarantineFile;
+    }
+
+    /**
+     * @return the number of lines quarantined so far
+     */
+    public long getLines() {
+        return lines.get();
+    }
+
+    /**
+     * Writes every queued line, stops the writer thread and closes the file.
+     *
+     * @throws IOException if a line could not be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the quarantine file");
+        } finally {
+            out.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeQueued() {
+        try {
+            while (true) {
+                byte[][] entry = queue.take();
+                if (entry == END) {
+                    break;
+                }
+                if (failure != null) { // Keep taking lines so readers never wait on a failed writer
+                    continue;
+                }
+                try {
+                    for (byte[] part : entry) {
+                        out.write(part);
+                    }
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            out.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+// File Name: FlowLogSnapshot.java
+// Author: Steven Pham
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact, versioned binary snapshots of aggregate counts, so that counts gathered on
+ * many hosts (each over a shard of the logs) can be merged without re-reading raw logs.
+ *
+ * Layout (big-endian, "varint" = unsigned LEB128):
+ *      int      magic "FLPS"
+ *      short    format version
+ *      varint   number of tags, then per tag id: UTF name, varint count (tag id 0 is "Untagged")
+ *      varint   number of named protocols, then per protocol: varint number, UTF keyword
+ *      varint   number of address tags (0 if address tags were not counted), then per
+ *               address tag id: UTF name (address tag id 0 is "Untagged")
+ *      varint   number of port/protocol combinations, in first-seen order, then per
+ *               combination: varint protocol number, varint dst port, varint count
+ *      varint   number of (address tag, tag) pairs, in first-seen order, then per pair:
+ *               varint address tag id, varint tag id, varint count
+ *      int      CRC32 of everything before it
+ *
+ * Version 1 snapshots, which have neither address tag section, can still be read.
+ *
+ * Merging combines tags and address tags by name, and port/protocol combinations by
+ * number. Tags and combinations keep the order they were first seen in, snapshot by
+ * snapshot, so merging the snapshots of consecutive shards reports the same output as
+ * one run over all of them.
+ */
+public final class FlowLogSnapshot {
+
+    private static final int MAGIC = 0x464C5053; // "FLPS"
+    private static final short VERSION = 2;
+    private static final short FIRST_VERSION = 1; // Oldest version that can still be read
+
+    private FlowLogSnapshot() {
+    }
+
+    /**
+     * Writes counts to a snapshot file.
+     *
+     * @param counts - Counts to write
+     * @param snapshotFile - Path of the snapshot file
+     */
+    public static void write(FlowLogCounts counts, String snapshotFile) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(snapshotFile)), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        LookupTable table = counts.getTable();
+
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+
+        writeVarLong(out, table.getTagCount());
+        for (int tagId = 0; tagId < table.getTagCount(); tagId++) {
+            out.writeUTF(table.getTagName(tagId));
+            writeVarLong(out, counts.getTagCount(tagId));
+        }
+
+        ArrayList<Integer> named = new ArrayList<Integer>();
+        for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+            if (table.getProtocolName(protocol) != null) {
+                named.add(protocol);
+            }
+        }
+        writeVarLong(out, named.size());
+        for (int protocol : named) {
+            writeVarLong(out, protocol);
+            out.writeUTF(table.getProtocolName(protocol));
+        }
+
+        AddressRules addressRules = counts.getAddressRules();
+        int addressTags = (addressRules == null) ? 0 : addressRules.getTagCount();
+        writeVarLong(out, addressTags);
+        for (int addressTagId = 0; addressTagId < addressTags; addressTagId++) {
+            out.writeUTF(addressRules.getTagName(addressTagId));
+        }
+
+        LongCountMap portProtocolCounts = counts.getPortProtocolCountMap();
+        writeVarLong(out, portProtocolCounts.size());
+        for (int i = 0; i < portProtocolCounts.size(); i++) {
+            long key = portProtocolCounts.keyAt(i);
+            writeVarLong(out, FlowLogCounts.protocolOf(key) & 0xFFFFFFFFL);
+            writeVarLong(out, FlowLogCounts.portOf(key) & 0xFFFFFFFFL);
+            writeVarLong(out, portProtocolCounts.countAt(i));
+        }
+
+        LongCountMap addressTagCounts = counts.getAddressTagCountMap();
+        writeVarLong(out, addressTagCounts.size());
+        for (int i = 0; i < addressTagCounts.size(); i++) {
+            long key = addressTagCounts.keyAt(i);
+            writeVarLong(out, key >>> 32);
+            writeVarLong(out, key & 0xFFFFFFFFL);
+            writeVarLong(out, addressTagCounts.countAt(i));
+        }
+
+        out.flush();
+        out.writeInt((int) checked.getChecksum().getValue());
+        out.close();
+    }
+
+    /**
+     * Reads one or more snapshot files and merges them, in the given order.
+     *
+     * @param snapshotFiles - Paths of the snapshot files
+     * @return the merged counts, named by a table of the union of their tags and protocols
+     * @throws IOException if a file cannot be read, is not a snapshot, or is corrupt
+     */
+    public static FlowLogCounts merge(List<String> snapshotFiles) throws IOException {
+        ArrayList<FlowLogCounts> snapshots = new ArrayList<FlowLogCounts>();
+        for (String snapshotFile : snapshotFiles) {
+            snapshots.add(read(snapshotFile));
+        }
+        return FlowLogCounts.combine(snapshots);
+    }
+
+    /**
+     * Reads a snapshot file.
+     *
+     * @param snapshotFile - Path of the snapshot file
+     * @return the counts, named by a table of the tags and protocols in the snapshot
+     * @throws IOException if the file cannot be read, is not a snapshot, or is corrupt
+     */
+    public static FlowLogCounts read(String snapshotFile) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile)), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a flow log snapshot: " + snapshotFile);
+            }
+            short version = in.readShort();
+            if (version < FIRST_VERSION || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + snapshotFile);
+            }
+
+            int tags = readCount(in);
+            String[] tagNames = new String[tags];
+            long[] tagCounts = new long[tags];
+            for (int i = 0; i < tags; i++) {
+                tagNames[i] = in.readUTF();
+                tagCounts[i] = readVarLong(in);
+            }
+
+            String[] protocolNames = new String[LookupTable.PROTOCOL_COUNT];
+            int protocols = readCount(in);
+            for (int i = 0; i < protocols; i++) {
+                long protocol = readVarLong(in);
+                if (protocol >= LookupTable.PROTOCOL_COUNT) {
+                    throw new IOException("Corrupt snapshot (protocol " + protocol + "): " + snapshotFile);
+                }
+                protocolNames[(int) protocol] = in.readUTF();
+            }
+
+            int addressTags = (version >= 2) ? readCount(in) : 0;
+            String[] addressTagNames = new String[addressTags];
+            for (int i = 0; i < addressTags; i++) {
+                addressTagNames[i] = in.readUTF();
+            }
+
+            FlowLogCounts counts;
+            try {
+                AddressRules addressRules = (addressTags == 0) ? null : AddressRules.ofNames(addressTagNames);
+                counts = new FlowLogCounts(LookupTable.ofNames(tagNames, protocolNames), 
+                        Collections.<FlowLogAggregation>emptyList(), addressRules);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt snapshot (" + e.getMessage() + "): " + snapshotFile);
+            }
+            for (int tagId = 0; tagId < tags; tagId++) {
+                counts.addTagCount(tagId, tagCounts[tagId]);
+            }
+
+            int combinations = readCount(in);
+            for (int i = 0; i < combinations; i++) {
+                int protocol = (int) readVarLong(in);
+                int dstPort = (int) readVarLong(in);
+                counts.addPortProtocolCount(protocol, dstPort, readVarLong(in));
+            }
+
+            int pairs = (version >= 2) ? readCount(in) : 0;
+            for (int i = 0; i < pairs; i++) {
+                long addressTagId = readVarLong(in);
+                long tagId = readVarLong(in);
+                if (addressTagId >= addressTags || tagId >= tags) {
+                    throw new IOException("Corrupt snapshot (address tag " + addressTagId + ", tag " + tagId + "): " + snapshotFile);
+                }
+                counts.addAddressTagCount((int) addressTagId, (int) tagId, readVarLong(in));
+            }
+
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected || in.read() != -1) {
+                throw new IOException("Corrupt snapshot (checksum mismatch): " + snapshotFile);
+            }
+            return counts;
+
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt snapshot (varint too long)");
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        long count = readVarLong(in);
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt snapshot (count " + count + ")");
+        }
+        return (int) count;
+    }
+}
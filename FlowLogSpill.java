@@ -0,0 +1,502 @@
+// File Name: FlowLogSpill.java
+// Author: Steven Pham
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted runs of aggregate groups spilled to disk, so that an exact aggregate over a high
+ * cardinality key (such as the 5-tuple) never holds more than a fixed number of groups in
+ * memory (see FlowLogAggregator).
+ *
+ * A run is a temporary file of (key, value) entries sorted by the bytes of their key, the
+ * rendered "key,key..." of a group. Keys are prefix compressed against the previous key:
+ *      int      magic "FLPR"
+ *      per entry: varint 1 + length of the prefix shared with the previous key, varint
+ *                 length of the rest, the rest of the key, varint value
+ *      byte     0, the end marker
+ * ("varint" = unsigned LEB128, as in FlowLogSnapshot.)
+ *
+ * The final values come from a k-way merge of the runs (and the groups still in memory):
+ * a heap of one cursor per run always yields the smallest key next, and the values of
+ * equal keys are combined with the aggregate's function. The merge streams, so it holds
+ * one entry per run however many groups there are, and the results are exact.
+ *
+ * Runs are merged ahead of time in tiers, which bounds the number of open files of the
+ * final merge: a new run is on level 0, and once FAN_IN runs are on the same level they
+ * are merged into one run on the next level. Each entry is rewritten once per level, i.e.
+ * about log_FAN_IN(number of runs) times, rather than every time the runs are merged, and
+ * there are at most FAN_IN - 1 runs per level. Should there ever be MAX_RUNS runs in all,
+ * they are merged into one.
+ *
+ * A spill owns the run files it wrote or took over with addRuns, and deletes them. With
+ * shareRuns it can also read the runs of another spill in place, e.g. to combine the
+ * counts of several lookup tables for one snapshot while they keep counting: those runs
+ * stay the other spill's, and are never deleted (or taken) by this one. Runs are not left
+ * to File.deleteOnExit, which would keep the path of every run ever spilled in memory
+ * until the JVM exits, so delete must be called once the results are written.
+ */
+public final class FlowLogSpill {
+
+    /**
+     * Receives the merged groups, in key order.
+     */
+    public interface Sink {
+        /**
+         * @param key - Buffer holding the key bytes, only valid during the call
+         * @param keyLength - Number of key bytes
+         * @param value - Value of the group
+         */
+        void accept(byte[] key, int keyLength, long value) throws IOException;
+    }
+
+    private static final int MAGIC = 0x464C5052; // "FLPR"
+    private static final int END = 0;
+    private static final int FAN_IN = 8; // Runs of one level that are merged into a run of the next
+    private static final int MAX_RUNS = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FlowLogAggregation.Function function;
+    private final File directory; // null for the default temporary directory
+    private final ArrayList<Run> runs = new ArrayList<Run>(); // Owned, deleted by this spill
+    private final ArrayList<Run> sharedRuns = new ArrayList<Run>(); // Owned by other spills, only read
+
+    /**
+     * @param function - Function that combines the values of equal keys
+     * @param directory - Directory of the run files, or null for the default temporary directory
+     */
+    public FlowLogSpill(FlowLogAggregation.Function function, String directory) {
+        this.function = function;
+        this.directory = (directory == null) ? null : new File(directory);
+    }
+
+    /**
+     * Sorts groups by key and writes them as a new run.
+     *
+     * @param keys - Key bytes of each group
+     * @param values - Value of each group
+     * @param count - Number of groups
+     * @throws IOException if the run cannot be written
+     */
+    public void addRun(byte[][] keys, long[] values, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        final Integer[] order = sortByKey(keys, count);
+        File run = newRunFile();
+        boolean written = false;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            byte[] previous = new byte[0];
+            for (int i = 0; i < count; i++) {
+                byte[] key = keys[order[i]];
+                writeEntry(out, previous, previous.length, key, key.length, values[order[i]]);
+                previous = key;
+            }
+            out.writeByte(END);
+            out.close();
+            written = true;
+        } finally {
+            if (!written) { // Never leave a partial run behind
+                out.close();
+                run.delete();
+            }
+        }
+        add(new Run(run, 0), runs);
+    }
+
+    /**
+     * Takes over the runs of another spill of the same aggregate, e.g. of another worker
+     * thread. The other spill must not be used afterwards.
+     *
+     * @param other - Spill whose runs are moved to this one
+     * @throws IOException if runs must be merged and cannot be
+     */
+    public void addRuns(FlowLogSpill other) throws IOException {
+        ArrayList<Run> otherRuns = new ArrayList<Run>(other.runs);
+        ArrayList<Run> otherSharedRuns = new ArrayList<Run>(other.sharedRuns);
+        other.runs.clear();
+        other.sharedRuns.clear();
+        for (Run run : otherRuns) {
+            add(run, runs);
+        }
+        for (Run run : otherSharedRuns) {
+            add(run, sharedRuns);
+        }
+    }
+
+    /**
+     * Reads the runs of another spill of the same aggregate in place, without taking them:
+     * the other spill keeps (and deletes) them, so it must keep them until this spill is
+     * no longer used.
+     *
+     * @param other - Spill whose runs are merged with this one's
+     * @throws IOException if runs must be merged and cannot be
+     */
+    public void shareRuns(FlowLogSpill other) throws IOException {
+        for (Run run : other.allRuns()) {
+            add(run, sharedRuns);
+        }
+    }
+
+    /**
+     * @return the number of runs on disk, including shared ones
+     */
+    public int getRunCount() {
+        return runs.size() + sharedRuns.size();
+    }
+
+    /**
+     * Merges every run with the groups still in memory, and passes each key with its
+     * combined value to a sink, in key order. The runs are kept, so the merge can be
+     * repeated (e.g. for every snapshot of a followed flow log).
+     *
+     * @param keys - Key bytes of each group in memory
+     * @param values - Value of each group in memory
+     * @param count - Number of groups in memory
+     * @param sink - Receives the merged groups
+     * @throws IOException if a run cannot be read, or the sink fails
+     */
+    public void merge(byte[][] keys, long[] values, int count, Sink sink) throws IOException {
+        ArrayList<Cursor> cursors = new ArrayList<Cursor>();
+        try {
+            for (Run run : allRuns()) {
+                cursors.add(new RunCursor(run.file));
+            }
+            cursors.add(new MemoryCursor(keys, values, sortByKey(keys, count), count));
+            merge(cursors, sink);
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes every run file this spill owns, and stops reading the shared ones.
+     */
+    public void delete() {
+        for (Run run : runs) {
+            run.file.delete();
+        }
+        runs.clear();
+        sharedRuns.clear();
+    }
+
+    /**
+     * Adds a run, and merges the runs of its level into one run of the next level once
+     * there are FAN_IN of them, and so on up the levels.
+     *
+     * @param run - Run to add
+     * @param list - runs if the run is owned, sharedRuns if it is read in place
+     */
+    private void add(Run run, ArrayList<Run> list) throws IOException {
+        list.add(run);
+        int level = run.level;
+        ArrayList<Run> sameLevel = runsOn(level);
+        while (sameLevel.size() >= FAN_IN) {
+            level++;
+            compact(sameLevel, level);
+            sameLevel = runsOn(level);
+        }
+
+        if (getRunCount() >= MAX_RUNS) {
+            int top = 0;
+            for (Run other : allRuns()) {
+                top = Math.max(top, other.level);
+            }
+            compact(allRuns(), top + 1);
+        }
+    }
+
+    private ArrayList<Run> runsOn(int level) {
+        ArrayList<Run> onLevel = new ArrayList<Run>();
+        for (Run run : allRuns()) {
+            if (run.level == level) {
+                onLevel.add(run);
+            }
+        }
+        return onLevel;
+    }
+
+    /**
+     * Merges some of the runs into one new owned run. Owned runs that were merged are
+     * deleted, and shared ones are left for their owner to delete.
+     *
+     * @param merging - Runs to merge
+     * @param level - Level of the new run
+     */
+    private void compact(List<Run> merging, int level) throws IOException {
+        File merged = newRunFile();
+        boolean written = false;
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), BUFFER_SIZE));
+        ArrayList<Cursor> cursors = new ArrayList<Cursor>();
+        try {
+            out.writeInt(MAGIC);
+            for (Run run : merging) {
+                cursors.add(new RunCursor(run.file));
+            }
+            merge(cursors, new Sink() {
+                private byte[] previous = new byte[256];
+                private int previousLength;
+
+                public void accept(byte[] key, int keyLength, long value) throws IOException {
+                    writeEntry(out, previous, previousLength, key, keyLength, value);
+                    if (previous.length < keyLength) {
+                        previous = new byte[Math.max(previous.length * 2, keyLength)];
+                    }
+                    System.arraycopy(key, 0, previous, 0, keyLength);
+                    previousLength = keyLength;
+                }
+            });
+            out.writeByte(END);
+            out.close();
+            written = true;
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+            if (!written) { // The runs are kept, and the partial merge is dropped
+                out.close();
+                merged.delete();
+            }
+        }
+        for (Run run : merging) {
+            if (runs.remove(run)) {
+                run.file.delete();
+            } else {
+                sharedRuns.remove(run);
+            }
+        }
+        runs.add(new Run(merged, level));
+    }
+
+    private void merge(List<Cursor> cursors, Sink sink) throws IOException {
+        PriorityQueue<Cursor> heap = new PriorityQueue<Cursor>(Math.max(cursors.size(), 1), new Comparator<Cursor>() {
+            public int compare(Cursor a, Cursor b) {
+                return compareKeys(a.key, a.keyLength, b.key, b.keyLength);
+            }
+        });
+        for (Cursor cursor : cursors) {
+            if (cursor.next()) {
+                heap.add(cursor);
+            }
+        }
+
+        byte[] key = new byte[256];
+        while (!heap.isEmpty()) {
+            Cursor smallest = heap.poll();
+            if (key.length < smallest.keyLength) {
+                key = new byte[Math.max(key.length * 2, smallest.keyLength)];
+            }
+            int keyLength = smallest.keyLength;
+            System.arraycopy(smallest.key, 0, key, 0, keyLength);
+            long value = smallest.value;
+            if (smallest.next()) {
+                heap.add(smallest);
+            }
+
+            // Every other cursor at the same key
+            while (!heap.isEmpty() && compareKeys(heap.peek().key, heap.peek().keyLength, key, keyLength) == 0) {
+                Cursor same = heap.poll();
+                value = combine(value, same.value);
+                if (same.next()) {
+                    heap.add(same);
+                }
+            }
+            sink.accept(key, keyLength, value);
+        }
+    }
+
+    private List<Run> allRuns() {
+        ArrayList<Run> all = new ArrayList<Run>(runs);
+        all.addAll(sharedRuns);
+        return all;
+    }
+
+    private long combine(long a, long b) {
+        switch (function) {
+            case MIN:
+                return Math.min(a, b);
+            case MAX:
+                return Math.max(a, b);
+            default: // COUNT and SUM
+                return a + b;
+        }
+    }
+
+    private File newRunFile() throws IOException {
+        return File.createTempFile("flowlog-spill-", ".run", directory);
+    }
+
+    private static void writeEntry(DataOutputStream out, byte[] previous, int previousLength, byte[] key, int keyLength, long value) throws IOException {
+        int shared = 0;
+        int limit = Math.min(previousLength, keyLength);
+        while (shared < limit && previous[shared] == key[shared]) {
+            shared++;
+        }
+        writeVarLong(out, shared + 1);
+        writeVarLong(out, keyLength - shared);
+        out.write(key, shared, keyLength - shared);
+        writeVarLong(out, value);
+    }
+
+    private static Integer[] sortByKey(final byte[][] keys, int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareKeys(keys[a], keys[a].length, keys[b], keys[b].length);
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Compares keys by their unsigned bytes, so that UTF-8 keys sort like their characters.
+     */
+    private static int compareKeys(byte[] a, int lengthA, byte[] b, int lengthB) {
+        int limit = Math.min(lengthA, lengthB);
+        for (int i = 0; i < limit; i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xFF) - (b[i] & 0xFF);
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in, int firstByte) throws IOException {
+        long value = 0;
+        int b = firstByte;
+        for (int shift = 0; shift < 64; shift += 7) {
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            b = in.readUnsignedByte();
+        }
+        throw new IOException("Corrupt spill run (varint too long)");
+    }
+
+    /**
+     * A run file, with the level of the tier it is on (0 for a run written from memory).
+     */
+    private static final class Run {
+        final File file;
+        final int level;
+
+        Run(File file, int level) {
+            this.file = file;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Current entry of a sorted source of groups.
+     */
+    private abstract static class Cursor {
+        byte[] key = new byte[256];
+        int keyLength;
+        long value;
+
+        /**
+         * Moves to the next entry.
+         * @return false once there are no more entries
+         */
+        abstract boolean next() throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    private static final class RunCursor extends Cursor {
+        private final File run;
+        private final DataInputStream in;
+
+        RunCursor(File run) throws IOException {
+            this.run = run;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not a spill run: " + run);
+            }
+        }
+
+        boolean next() throws IOException {
+            try {
+                int first = in.readUnsignedByte();
+                if (first == END) {
+                    return false;
+                }
+                int shared = (int) readVarLong(in, first) - 1;
+                int rest = (int) readVarLong(in, in.readUnsignedByte());
+                if (shared < 0 || shared > keyLength || rest < 0) {
+                    throw new IOException("Corrupt spill run: " + run);
+                }
+                if (key.length < shared + rest) {
+                    key = Arrays.copyOf(key, Math.max(key.length * 2, shared + rest));
+                }
+                in.readFully(key, shared, rest);
+                keyLength = shared + rest;
+                value = readVarLong(in, in.readUnsignedByte());
+                return true;
+            } catch (EOFException e) {
+                throw new IOException("Truncated spill run: " + run);
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class MemoryCursor extends Cursor {
+        private final byte[][] keys;
+        private final long[] values;
+        private final Integer[] order;
+        private final int count;
+        private int position;
+
+        MemoryCursor(byte[][] keys, long[] values, Integer[] order, int count) {
+            this.keys = keys;
+            this.values = values;
+            this.order = order;
+            this.count = count;
+        }
+
+        boolean next() {
+            if (position == count) {
+                return false;
+            }
+            key = keys[order[position]];
+            keyLength = key.length;
+            value = values[order[position]];
+            position++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+// File Name: FlowLogTokenizer.java
+// Author: Steven Pham
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a flow log into lines and space separated fields directly on raw bytes.
+ *
+ * Bytes are read into one reusable buffer. Lines are never turned into Strings:
+ * fields are located lazily (only up to the highest field that is asked for) and
+ * integers are parsed in place. Line and field splitting follow the same rules as
+ * BufferedReader.readLine() and String.split(" ").
+ *
+ * The bytes can come from a stream or from a (memory-mapped) ByteBuffer.
+ * A field position is only valid until the next call to nextLine().
+ */
+public final class FlowLogTokenizer implements Closeable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte SPACE = ' ';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private final InputStream in; // Either this or source is set
+    private ByteBuffer source;
+    private byte[] buffer;
+    private int position; // Start of the unread data in the buffer
+    private int limit; // End of the valid data in the buffer
+    private boolean endOfStream;
+    private boolean skipLineFeed; // Previous line ended with '\r', so a leading '\n' belongs to it
+    private boolean repeatLine; // Set by unreadLine()
+    private String name; // Name of the flow log, for messages
+
+    private long bufferOffset; // Stream offset of buffer[0]
+    private int lineStart;
+    private int lineEnd;
+
+    // Fields of the current line located so far
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private int fieldsFound;
+    private int scanPosition;
+
+    /**
+     * @param in - Stream to read the flow log from
+     */
+    public FlowLogTokenizer(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param in - Stream to read the flow log from
+     * @param bufferSize - Initial buffer size. The buffer grows if a single line does not fit.
+     */
+    public FlowLogTokenizer(InputStream in, int bufferSize) {
+        this.in = in;
+        this.source = null;
+        this.buffer = new byte[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * @param source - Buffer to read the flow log from, between its position and limit
+     * @param baseOffset - Offset of the buffer's position within the whole file, used for line offsets
+     */
+    public FlowLogTokenizer(ByteBuffer source, long baseOffset) {
+        this.in = null;
+        this.source = source;
+        this.buffer = new byte[Math.min(Math.max(source.remaining(), 16), DEFAULT_BUFFER_SIZE)];
+        this.bufferOffset = baseOffset;
+    }
+
+    /**
+     * Starts reading from a new buffer, reusing this tokenizer's own buffer.
+     * Any unread bytes of the previous source are discarded.
+     *
+     * @param source - Buffer to read the flow log from, between its position and limit
+     * @param baseOffset - Offset of the buffer's position within the whole file, used for line offsets
+     */
+    public void reset(ByteBuffer source, long baseOffset) {
+        if (in != null) {
+            throw new IllegalStateException("Tokenizer reads from a stream");
+        }
+        this.source = source;
+        this.bufferOffset = baseOffset;
+        position = 0;
+        limit = 0;
+        endOfStream = false;
+        skipLineFeed = false;
+        repeatLine = false;
+        startLine(0, 0);
+    }
+
+    /**
+     * Advances to the next line.
+     *
+     * @return false once the end of the stream has been reached
+     * @throws IOException if the underlying stream fails
+     */
+    public boolean nextLine() throws IOException {
+        if (repeatLine) {
+            repeatLine = false;
+            startLine(lineStart, lineEnd);
+            return true;
+        }
+        int scan = position;
+
+        while (true) {
+            if (skipLineFeed && scan < limit) {
+                skipLineFeed = false;
+                if (buffer[scan] == LF) {
+                    scan++;
+                    position = scan;
+                }
+            }
+
+            while (scan < limit) {
+                byte b = buffer[scan];
+                if (b == LF || b == CR) {
+                    startLine(position, scan);
+                    position = scan + 1;
+                    skipLineFeed = (b == CR);
+                    return true;
+                }
+                scan++;
+            }
+
+            if (endOfStream) {
+                if (position < limit) { // Last line without a terminator
+                    startLine(position, limit);
+                    position = limit;
+                    return true;
+                }
+                return false;
+            }
+
+            scan -= position;
+            fill();
+        }
+    }
+
+    /**
+     * Makes the next call to nextLine() return the current line again, e.g. after
+     * checking whether the first line is a header.
+     */
+    public void unreadLine() {
+        repeatLine = true;
+    }
+
+    /**
+     * Locates a field of the current line.
+     *
+     * @param field - Index of the field, starting at 0
+     * @return true if the line has that many fields
+     */
+    public boolean hasField(int field) {
+        while (fieldsFound <= field) {
+            if (scanPosition > lineEnd) {
+                return false;
+            }
+            int start = scanPosition;
+            int end = start;
+            while (end < lineEnd && buffer[end] != SPACE) {
+                end++;
+            }
+            addField(start, end);
+            scanPosition = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Parses a field of the current line as a non-negative integer, without creating a String.
+     *
+     * @param field - Index of the field, starting at 0
+     * @return the value, or -1 if the field is missing, empty, not a number or too large for an int
+     */
+    public int parseInt(int field) {
+        if (!hasField(field)) {
+            return -1;
+        }
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+        if (start == end || end - start > 10) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return (value > Integer.MAX_VALUE) ? -1 : (int) value;
+    }
+
+    /**
+     * Parses a field of the current line as a non-negative long, such as a byte count.
+     *
+     * @param field - Index of the field, starting at 0
+     * @return the value, or -1 if the field is missing, empty, not a number or has more than 18 digits
+     */
+    public long parseLong(int field) {
+        if (!hasField(field)) {
+            return -1;
+        }
+        int start = fieldStarts[field];
+        int end = fieldEnds[field];
+        if (start == end || end - start > 18) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @param field - Index of a field located with hasField
+     * @return the buffer index of the first byte of the field
+     */
+    public int getFieldStart(int field) {
+        return fieldStarts[field];
+    }
+
+    /**
+     * @param field - Index of a field located with hasField
+     * @return the buffer index just past the last byte of the field
+     */
+    public int getFieldEnd(int field) {
+        return fieldEnds[field];
+    }
+
+    /**
+     * @return the buffer holding the current line. Only valid until the next call to nextLine().
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the buffer index of the first byte of the current line
+     */
+    public int getLineStart() {
+        return lineStart;
+    }
+
+    /**
+     * @return the buffer index just past the last byte of the current line, excluding the terminator
+     */
+    public int getLineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * @param name - Name of the flow log being read (e.g. its path), used in messages
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the name of the flow log being read, or null if it was not named
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the offset of the current line from the start of the stream, in bytes
+     */
+    public long getLineOffset() {
+        return bufferOffset + lineStart;
+    }
+
+    /**
+     * @return the offset from the start of the stream of the first byte not yet returned
+     *         by nextLine(), so the difference of two calls is the number of bytes read
+     */
+    public long getOffset() {
+        return bufferOffset + (repeatLine ? lineStart : position);
+    }
+
+    /**
+     * Closes the underlying stream, if there is one.
+     */
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    private void startLine(int start, int end) {
+        lineStart = start;
+        lineEnd = end;
+        fieldsFound = 0;
+        scanPosition = start;
+    }
+
+    private void addField(int start, int end) {
+        if (fieldsFound == fieldStarts.length) {
+            int[] starts = new int[fieldsFound * 2];
+            int[] ends = new int[fieldsFound * 2];
+            System.arraycopy(fieldStarts, 0, starts, 0, fieldsFound);
+            System.arraycopy(fieldEnds, 0, ends, 0, fieldsFound);
+            fieldStarts = starts;
+            fieldEnds = ends;
+        }
+        fieldStarts[fieldsFound] = start;
+        fieldEnds[fieldsFound] = end;
+        fieldsFound++;
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer (growing it if a line fills it
+     * completely) and reads more data from the stream.
+     */
+    private void fill() throws IOException {
+        int remaining = limit - position;
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+            bufferOffset += position;
+        } else if (remaining == buffer.length) {
+            byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, remaining);
+            buffer = larger;
+        }
+        position = 0;
+        limit = remaining;
+
+        int read;
+        if (source != null) {
+            read = Math.min(source.remaining(), buffer.length - limit);
+            if (read == 0) {
+                read = -1;
+            } else {
+                source.get(buffer, limit, read);
+            }
+        } else {
+            read = in.read(buffer, limit, buffer.length - limit);
+        }
+        if (read < 0) {
+            endOfStream = true;
+        } else {
+            limit += read;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+// File Name: FlowLogWindows.java
+// Author: Steven Pham
+
+import java.util.ArrayList;
+
+/**
+ * Splits the records of a flow log into tumbling time windows (e.g. one per minute),
+ * by the "start" timestamp of each record, with separate counts for every window.
+ *
+ * Records do not have to arrive in time order. The watermark is the latest start time
+ * seen so far, and a window stays open until the watermark passes its end by more than
+ * the allowed lateness. A record for a window that is already closed is too late: it is
+ * not counted, only reported through getLateRecords().
+ *
+ * Only the windows that can still receive records are kept, in a small ring indexed by
+ * window number, so memory does not grow with the length of the flow log. As soon as a
+ * window closes its counts are handed to the Sink (e.g. to write them to a file) and
+ * its slot is reused.
+ *
+ * If the lookup table is reloaded while a window is open, the window keeps separate counts
+ * for each table (like FlowLogFollower) and combines them when it closes.
+ */
+public final class FlowLogWindows {
+
+    /**
+     * Receives the counts of each window when it closes, in window order.
+     */
+    public interface Sink {
+        /**
+         * @param windowStart - Start of the window, in epoch seconds (inclusive)
+         * @param windowEnd - End of the window, in epoch seconds (exclusive)
+         * @param counts - Counts of the records in the window
+         */
+        void windowClosed(long windowStart, long windowEnd, FlowLogCounts counts);
+    }
+
+    private static final int MAX_OPEN_WINDOWS = 1 << 16;
+
+    private final FlowLogParser parser;
+    private final long windowSeconds;
+    private final long latenessSeconds;
+    private final Sink sink;
+
+    // Ring of open windows, indexed by window number modulo its length
+    private final long[] windowStarts;
+    private final ArrayList<ArrayList<FlowLogCounts>> windowCounts; // Counts per lookup table, null if the slot is free
+    private int openWindows;
+    private long oldestOpenStart = Long.MAX_VALUE;
+
+    private long watermark = Long.MIN_VALUE; // Latest start time seen
+    private long lateRecords;
+    private long closedWindows;
+
+    /**
+     * @param parser - Parser whose aggregates each window computes
+     * @param windowSeconds - Length of each window, in seconds
+     * @param latenessSeconds - How long after its end a window still accepts records, in seconds
+     * @param sink - Receives each window as it closes
+     */
+    public FlowLogWindows(FlowLogParser parser, long windowSeconds, long latenessSeconds, Sink sink) {
+        if (windowSeconds <= 0 || latenessSeconds < 0) {
+            throw new IllegalArgumentException("Window length must be positive and lateness must not be negative");
+        }
+        if (latenessSeconds / windowSeconds > MAX_OPEN_WINDOWS - 2) {
+            throw new IllegalArgumentException("Lateness allows too many open windows: " + latenessSeconds + "s for " + windowSeconds + "s windows");
+        }
+        this.parser = parser;
+        this.windowSeconds = windowSeconds;
+        this.latenessSeconds = latenessSeconds;
+        this.sink = sink;
+
+        // At most this many windows end within the lateness bound of the watermark
+        int ringSize = (int) (latenessSeconds / windowSeconds + 2);
+        this.windowStarts = new long[ringSize];
+        this.windowCounts = new ArrayList<ArrayList<FlowLogCounts>>(ringSize);
+        for (int i = 0; i < ringSize; i++) {
+            windowCounts.add(null);
+        }
+    }
+
+    /**
+     * Finds the counts a record belongs to, opening its window if needed and closing the
+     * windows that the record moves the watermark past.
+     *
+     * @param start - Start time of the record, in epoch seconds
+     * @param table - Lookup table the record is tagged with
+     * @return the counts of the record's window, or null if the window already closed
+     */
+    public FlowLogCounts countsFor(long start, LookupTable table) {
+        if (start > watermark) {
+            watermark = start;
+            if (oldestOpenStart != Long.MAX_VALUE && isClosed(oldestOpenStart)) {
+                closeWindows(false);
+            }
+        }
+
+        long windowStart = start - Math.floorMod(start, windowSeconds);
+        if (isClosed(windowStart)) {
+            lateRecords++;
+            return null;
+        }
+
+        int slot = (int) Math.floorMod(windowStart / windowSeconds, (long) windowStarts.length);
+        ArrayList<FlowLogCounts> generations = windowCounts.get(slot);
+        if (generations == null) { // New window
+            generations = new ArrayList<FlowLogCounts>();
+            generations.add(parser.newCounts(table));
+            windowCounts.set(slot, generations);
+            windowStarts[slot] = windowStart;
+            openWindows++;
+            oldestOpenStart = Math.min(oldestOpenStart, windowStart);
+        }
+
+        FlowLogCounts counts = generations.get(generations.size() - 1);
+        if (counts.getTable() != table) { // Reloaded while the window was open
+            counts = parser.newCounts(table);
+            generations.add(counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Closes every open window, e.g. at the end of the flow log, in window order.
+     */
+    public void closeAll() {
+        closeWindows(true);
+    }
+
+    /**
+     * @return the number of records that arrived after their window had closed
+     */
+    public long getLateRecords() {
+        return lateRecords;
+    }
+
+    /**
+     * @return the number of windows handed to the sink so far
+     */
+    public long getClosedWindows() {
+        return closedWindows;
+    }
+
+    /**
+     * @return the number of windows that are currently open
+     */
+    public int getOpenWindows() {
+        return openWindows;
+    }
+
+    private boolean isClosed(long windowStart) {
+        return windowStart + windowSeconds + latenessSeconds <= watermark;
+    }
+
+    /**
+     * Hands the closed (or all) windows to the sink, oldest first, and frees their slots.
+     */
+    private void closeWindows(boolean all) {
+        while (openWindows > 0) {
+            int oldest = -1;
+            for (int slot = 0; slot < windowStarts.length; slot++) {
+                if (windowCounts.get(slot) != null && (oldest < 0 || windowStarts[slot] < windowStarts[oldest])) {
+                    oldest = slot;
+                }
+            }
+            if (!all && !isClosed(windowStarts[oldest])) {
+                oldestOpenStart = windowStarts[oldest];
+                return;
+            }
+
+            FlowLogCounts counts = FlowLogCounts.fold(windowCounts.get(oldest)); // The sink deletes the spilled runs
+            windowCounts.set(oldest, null);
+            openWindows--;
+            closedWindows++;
+            sink.windowClosed(windowStarts[oldest], windowStarts[oldest] + windowSeconds, counts);
+        }
+        oldestOpenStart = Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,267 @@
+// File Name: FlowRecord.java
+// Author: Steven Pham
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One record of a flow log, as passed to a Visitor by FlowLogParser.readRecords.
+ *
+ * A FlowRecord is a flyweight: the parser reuses one instance for every record it reads,
+ * and the instance is only a view over the bytes of the current line in the tokenizer's
+ * buffer. The protocol, destination port and tag are decoded once by the parser; every
+ * other accessor decodes its field in place when it is called, without creating Strings
+ * or other objects (except getField, which copies the field into a new String). A visitor
+ * that needs a value after visit() returns must copy it, as the record then moves on to
+ * the next line.
+ *
+ * Numeric accessors return -1 for a field that is missing from the format or the line,
+ * or is not a number (e.g. "-" in NODATA records). The protocol and destination port are
+ * always valid, since lines without them are skipped as malformed before any visitor
+ * sees them.
+ */
+public final class FlowRecord {
+
+    /**
+     * Receives the records of a flow log, one at a time.
+     */
+    public interface Visitor {
+        /**
+         * @param record - Current record, only valid during the call
+         * @throws IOException to stop reading
+         */
+        void visit(FlowRecord record) throws IOException;
+    }
+
+    private final FlowLogTokenizer tokenizer;
+    private final FlowLogFormat format;
+    private final LookupTable table;
+    private final AddressRules addressRules;
+    private final long[] address = new long[2]; // Scratch space of addressTagId
+
+    // Columns of the typed fields in the format, -1 if the format does not have them
+    private final int srcAddrColumn;
+    private final int dstAddrColumn;
+    private final int srcPortColumn;
+    private final int packetsColumn;
+    private final int bytesColumn;
+    private final int startColumn;
+    private final int endColumn;
+    private final int actionColumn;
+
+    // Decoded by the parser for each record
+    private int protocol;
+    private int dstPort;
+    private int tagId;
+
+    /**
+     * @param tokenizer - Tokenizer the records are read from
+     * @param format - Format of the records
+     * @param table - Lookup table the tags come from
+     * @param addressRules - Address rules of addressTagId, or null if none are used
+     * @throws IllegalArgumentException if address rules are used and the format lacks srcaddr or dstaddr
+     */
+    FlowRecord(FlowLogTokenizer tokenizer, FlowLogFormat format, LookupTable table, AddressRules addressRules) {
+        this.tokenizer = tokenizer;
+        this.format = format;
+        this.table = table;
+        this.addressRules = addressRules;
+        int[] addressColumns = (addressRules == null) 
+                ? new int[] { format.getColumn("srcaddr"), format.getColumn("dstaddr") }
+                : format.project("srcaddr", "dstaddr"); // Address tags need both fields
+        this.srcAddrColumn = addressColumns[0];
+        this.dstAddrColumn = addressColumns[1];
+        this.srcPortColumn = format.getColumn("srcport");
+        this.packetsColumn = format.getColumn("packets");
+        this.bytesColumn = format.getColumn("bytes");
+        this.startColumn = format.getColumn("start");
+        this.endColumn = format.getColumn("end");
+        this.actionColumn = format.getColumn("action");
+    }
+
+    /**
+     * Moves the record to the current line of the tokenizer.
+     */
+    void set(int protocol, int dstPort, int tagId) {
+        this.protocol = protocol;
+        this.dstPort = dstPort;
+        this.tagId = tagId;
+    }
+
+    /**
+     * @return the protocol number
+     */
+    public int protocol() {
+        return protocol;
+    }
+
+    /**
+     * @return the protocol keyword (e.g. "tcp"), or null if the protocol number has none
+     */
+    public String protocolName() {
+        return table.getProtocolName(protocol);
+    }
+
+    /**
+     * @return the destination port
+     */
+    public int dstPort() {
+        return dstPort;
+    }
+
+    /**
+     * @return the source port, or -1 if there is none
+     */
+    public int srcPort() {
+        return (srcPortColumn < 0) ? -1 : tokenizer.parseInt(srcPortColumn);
+    }
+
+    /**
+     * @return the tag id of the record in the lookup table (LookupTable.UNTAGGED if no row matches)
+     */
+    public int tagId() {
+        return tagId;
+    }
+
+    /**
+     * @return the name of the record's tag
+     */
+    public String tag() {
+        return table.getTagName(tagId);
+    }
+
+    /**
+     * @return the address tag id of the record (see AddressRules), or LookupTable.UNTAGGED
+     *         if no address rules are used
+     */
+    public int addressTagId() {
+        if (addressRules == null || srcAddrColumn < 0 || dstAddrColumn < 0) {
+            return LookupTable.UNTAGGED;
+        }
+        return addressRules.getTagId(tokenizer, srcAddrColumn, dstAddrColumn, address);
+    }
+
+    /**
+     * @return the number of packets, or -1 if there is none
+     */
+    public long packets() {
+        return getLong(packetsColumn);
+    }
+
+    /**
+     * @return the number of bytes, or -1 if there is none
+     */
+    public long bytes() {
+        return getLong(bytesColumn);
+    }
+
+    /**
+     * @return the start time in seconds since the epoch, or -1 if there is none
+     */
+    public long start() {
+        return getLong(startColumn);
+    }
+
+    /**
+     * @return the end time in seconds since the epoch, or -1 if there is none
+     */
+    public long end() {
+        return getLong(endColumn);
+    }
+
+    /**
+     * @return true if the action field is "ACCEPT"
+     */
+    public boolean isAccepted() {
+        return fieldEquals(actionColumn, "ACCEPT");
+    }
+
+    /**
+     * @return true if the action field is "REJECT"
+     */
+    public boolean isRejected() {
+        return fieldEquals(actionColumn, "REJECT");
+    }
+
+    /**
+     * @param column - Column of a numeric field, e.g. from getFormat().getColumn("tcp-flags")
+     * @return the value of the field, or -1 if there is none
+     */
+    public long getLong(int column) {
+        return (column < 0) ? -1 : tokenizer.parseLong(column);
+    }
+
+    /**
+     * Compares a field to a value, without creating a String.
+     *
+     * @param column - Column of the field
+     * @param value - ASCII value to compare to
+     * @return true if the field is exactly the value
+     */
+    public boolean fieldEquals(int column, String value) {
+        if (column < 0 || !tokenizer.hasField(column)) {
+            return false;
+        }
+        int start = tokenizer.getFieldStart(column);
+        if (tokenizer.getFieldEnd(column) - start != value.length()) {
+            return false;
+        }
+        byte[] buffer = tokenizer.getBuffer();
+        for (int i = 0; i < value.length(); i++) {
+            if (buffer[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies a field into a new String. Prefer the typed accessors in per-record code.
+     *
+     * @param column - Column of the field
+     * @return the field, or null if the format or the line does not have it
+     */
+    public String getField(int column) {
+        if (column < 0 || !tokenizer.hasField(column)) {
+            return null;
+        }
+        int start = tokenizer.getFieldStart(column);
+        return new String(tokenizer.getBuffer(), start, tokenizer.getFieldEnd(column) - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the line of the record, copied into a new String
+     */
+    public String getLine() {
+        return new String(tokenizer.getBuffer(), tokenizer.getLineStart(),
+                tokenizer.getLineEnd() - tokenizer.getLineStart(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the offset of the record's line from the start of the flow log, in bytes
+     */
+    public long getLineOffset() {
+        return tokenizer.getLineOffset();
+    }
+
+    /**
+     * @return the format of the records
+     */
+    public FlowLogFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the lookup table the tag ids refer to
+     */
+    public LookupTable getTable() {
+        return table;
+    }
+
+    /**
+     * @return the tokenizer positioned on the record's line, for code that reads the raw fields
+     */
+    FlowLogTokenizer getTokenizer() {
+        return tokenizer;
+    }
+}
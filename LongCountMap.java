@@ -0,0 +1,179 @@
+// File Name: LongCountMap.java
+// Author: Steven Pham
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from a primitive long key to a long count.
+ *
+ * Entries are stored densely in the order their keys were first added, and a separate
+ * linear-probing index points into them. Counting never boxes or allocates, except when
+ * the map grows, and iterating by entry index gives the first-seen order of the keys.
+ */
+public final class LongCountMap {
+
+    private static final int INITIAL_CAPACITY = 64; // Must be a power of two
+
+    private long[] keys;
+    private long[] counts;
+    private int size;
+
+    private int[] index; // Slot -> entry index + 1, 0 when the slot is empty
+    private int mask;
+
+    public LongCountMap() {
+        keys = new long[INITIAL_CAPACITY / 2];
+        counts = new long[INITIAL_CAPACITY / 2];
+        index = new int[INITIAL_CAPACITY];
+        mask = INITIAL_CAPACITY - 1;
+    }
+
+    /**
+     * Adds one to the count of a key.
+     *
+     * @param key - Key to count
+     */
+    public void increment(long key) {
+        add(key, 1);
+    }
+
+    /**
+     * Adds to the count of a key, creating the entry if the key is new.
+     *
+     * @param key - Key to count
+     * @param delta - Amount to add
+     */
+    public void add(long key, long delta) {
+        int entry = entryOf(key); // Before reading the field, since adding the key may grow the arrays
+        counts[entry] += delta;
+    }
+
+    /**
+     * Finds the entry of a key, creating it with a count of 0 if the key is new.
+     * Entry indexes never change, so they can also be used as dense ids of the keys.
+     *
+     * @param key - Key to find
+     * @return the entry index of the key
+     */
+    public int entryOf(long key) {
+        int slot = hash(key) & mask;
+        while (true) {
+            int entry = index[slot];
+            if (entry == 0) {
+                break;
+            }
+            if (keys[entry - 1] == key) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == keys.length) {
+            grow();
+            return entryOf(key);
+        }
+        keys[size] = key;
+        counts[size] = 0;
+        index[slot] = size + 1;
+        return size++;
+    }
+
+    /**
+     * @param key - Key to look up
+     * @return the count of the key, or 0 if it was never added
+     */
+    public long get(long key) {
+        int slot = hash(key) & mask;
+        while (true) {
+            int entry = index[slot];
+            if (entry == 0) {
+                return 0;
+            }
+            if (keys[entry - 1] == key) {
+                return counts[entry - 1];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the number of distinct keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param entry - Entry index, from 0 to size() - 1, in first-seen order
+     * @return the key of the entry
+     */
+    public long keyAt(int entry) {
+        return keys[entry];
+    }
+
+    /**
+     * @param entry - Entry index, from 0 to size() - 1, in first-seen order
+     * @return the count of the entry
+     */
+    public long countAt(int entry) {
+        return counts[entry];
+    }
+
+    /**
+     * Replaces the count of an entry, e.g. to keep a minimum or maximum instead of a sum.
+     *
+     * @param entry - Entry index, from 0 to size() - 1
+     * @param count - New count of the entry
+     */
+    public void setCountAt(int entry, long count) {
+        counts[entry] = count;
+    }
+
+    /**
+     * Adds every entry of another map to this one, in the other's first-seen order.
+     *
+     * @param other - Map to add
+     */
+    public void addAll(LongCountMap other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.keys[i], other.counts[i]);
+        }
+    }
+
+    /**
+     * Removes every entry, keeping the allocated capacity.
+     */
+    public void clear() {
+        Arrays.fill(index, 0);
+        size = 0;
+    }
+
+    /**
+     * Doubles the entry arrays and rebuilds the index at twice the entry capacity,
+     * which keeps the load factor of the index at or below one half.
+     */
+    private void grow() {
+        int capacity = keys.length * 2;
+        long[] newKeys = new long[capacity];
+        long[] newCounts = new long[capacity];
+        System.arraycopy(keys, 0, newKeys, 0, size);
+        System.arraycopy(counts, 0, newCounts, 0, size);
+        keys = newKeys;
+        counts = newCounts;
+
+        index = new int[capacity * 2];
+        mask = index.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = hash(keys[entry]) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = entry + 1;
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads packed keys over the high bits
+        return (int) (h ^ (h >>> 32));
+    }
+}
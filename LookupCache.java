@@ -0,0 +1,301 @@
+// File Name: LookupCache.java
+// Author: Steven Pham
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary cache of a compiled LookupTable, so that a run over a small flow log does not
+ * spend most of its time reading and compiling the protocol and lookup csv files.
+ *
+ * The cache is tied to the two csv files it was compiled from by their size, last
+ * modified time and CRC32. A cache that does not match both files (or is missing, foreign
+ * or corrupt) is simply not used, and is rebuilt from the csv files.
+ *
+ * Layout (big-endian, strings are an int byte length followed by UTF-8):
+ *      int      magic "FLPC"
+ *      short    format version
+ *      2 x      long size, long last modified millis, int CRC32 (protocol csv, then lookup csv)
+ *      int      number of tags, then per tag id: string (tag id 0 is "Untagged")
+ *      int      number of named protocols, then per protocol: int number, string keyword
+ *      int      number of distinct pages, then per page: 256 shorts of tag ids
+ *      int      number of distinct page directories, then per directory: 256 int page indexes
+ *      256 int  directory index of each protocol number
+ *      int      CRC32 of everything before it
+ *
+ * Pages and directories are written once however many protocols share them, so the
+ * cache is about as small as the table in memory, and loading it restores the sharing.
+ * The whole file is read with a single memory mapping.
+ */
+public final class LookupCache {
+
+    private static final int MAGIC = 0x464C5043; // "FLPC"
+    private static final short VERSION = 1;
+
+    private static final int PAGE_SIZE = 256;
+    private static final int PAGE_COUNT = LookupTable.PORT_COUNT / PAGE_SIZE;
+
+    private final long[] sources; // Size, last modified time and CRC32 of each csv file
+
+    private LookupCache(long[] sources) {
+        this.sources = sources;
+    }
+
+    /**
+     * Reads the size, last modified time and CRC32 of the csv files a table is compiled
+     * from. Do this before reading them, so that a file changed in between is caught by
+     * the next run.
+     *
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupFile - Path of the lookup table csv
+     * @return the cache for that version of the files
+     * @throws IOException if a file cannot be read
+     */
+    public static LookupCache forSources(String protocolFile, String lookupFile) throws IOException {
+        long[] sources = new long[6];
+        describe(Paths.get(protocolFile), sources, 0);
+        describe(Paths.get(lookupFile), sources, 3);
+        return new LookupCache(sources);
+    }
+
+    /**
+     * Loads the table of a cache file, if it was compiled from the same csv files.
+     *
+     * @param cacheFile - Path of the cache file
+     * @return the table, or null if the cache is missing, stale, foreign or corrupt
+     */
+    public LookupTable load(String cacheFile) {
+        Path path = Paths.get(cacheFile);
+        try {
+            if (!Files.isRegularFile(path) || Files.size(path) > Integer.MAX_VALUE) {
+                return null;
+            }
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return read(buffer);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (BufferUnderflowException e) { // Truncated
+            return null;
+        } catch (IllegalArgumentException e) { // Impossible lengths or indexes
+            return null;
+        }
+    }
+
+    /**
+     * Writes the table compiled from the csv files to a cache file. The file is written
+     * under a unique temporary name in the same directory and then moved over the old one,
+     * so a run that reads the cache at the same time sees either the old or the new cache,
+     * and runs that write it at the same time never write through the same file.
+     *
+     * @param cacheFile - Path of the cache file
+     * @param table - Table compiled from the csv files of this cache
+     * @throws IOException if the file cannot be written
+     */
+    public void write(String cacheFile, LookupTable table) throws IOException {
+        Path path = Paths.get(cacheFile).toAbsolutePath();
+        Path temporary = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        boolean written = false;
+        try {
+            writeTable(temporary, table);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written = true;
+        } finally {
+            if (!written) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    private void writeTable(Path temporary, LookupTable table) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary.toFile())), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            for (int i = 0; i < 6; i += 3) {
+                out.writeLong(sources[i]);
+                out.writeLong(sources[i + 1]);
+                out.writeInt((int) sources[i + 2]);
+            }
+
+            out.writeInt(table.getTagCount());
+            for (int tagId = 0; tagId < table.getTagCount(); tagId++) {
+                writeString(out, table.getTagName(tagId));
+            }
+
+            int named = 0;
+            for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+                if (table.getProtocolName(protocol) != null) {
+                    named++;
+                }
+            }
+            out.writeInt(named);
+            for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+                if (table.getProtocolName(protocol) != null) {
+                    out.writeInt(protocol);
+                    writeString(out, table.getProtocolName(protocol));
+                }
+            }
+
+            // Number the distinct directories and pages, by identity
+            IdentityHashMap<short[][], Integer> directoryIndexes = new IdentityHashMap<short[][], Integer>();
+            IdentityHashMap<short[], Integer> pageIndexes = new IdentityHashMap<short[], Integer>();
+            ArrayList<short[][]> directories = new ArrayList<short[][]>();
+            ArrayList<short[]> pages = new ArrayList<short[]>();
+            for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+                short[][] directory = table.getDirectory(protocol);
+                if (directoryIndexes.containsKey(directory)) {
+                    continue;
+                }
+                directoryIndexes.put(directory, directories.size());
+                directories.add(directory);
+                for (short[] page : directory) {
+                    if (!pageIndexes.containsKey(page)) {
+                        pageIndexes.put(page, pages.size());
+                        pages.add(page);
+                    }
+                }
+            }
+
+            out.writeInt(pages.size());
+            for (short[] page : pages) {
+                for (short tagId : page) {
+                    out.writeShort(tagId);
+                }
+            }
+            out.writeInt(directories.size());
+            for (short[][] directory : directories) {
+                for (short[] page : directory) {
+                    out.writeInt(pageIndexes.get(page));
+                }
+            }
+            for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+                out.writeInt(directoryIndexes.get(table.getDirectory(protocol)));
+            }
+
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+        } finally {
+            out.close();
+        }
+    }
+
+    private LookupTable read(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        ByteBuffer contents = buffer.duplicate();
+        contents.limit(buffer.limit() - 4);
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+            return null;
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+            return null;
+        }
+        for (int i = 0; i < 6; i += 3) {
+            if (buffer.getLong() != sources[i] || buffer.getLong() != sources[i + 1] || buffer.getInt() != (int) sources[i + 2]) {
+                return null; // Compiled from other versions of the csv files
+            }
+        }
+
+        int tags = readCount(buffer, 2);
+        String[] tagNames = new String[tags];
+        for (int i = 0; i < tags; i++) {
+            tagNames[i] = readString(buffer);
+        }
+
+        String[] protocolNames = new String[LookupTable.PROTOCOL_COUNT];
+        int named = readCount(buffer, 4);
+        for (int i = 0; i < named; i++) {
+            protocolNames[index(buffer.getInt(), LookupTable.PROTOCOL_COUNT)] = readString(buffer);
+        }
+
+        short[][] pages = new short[readCount(buffer, 2 * PAGE_SIZE)][];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = new short[PAGE_SIZE];
+            for (int port = 0; port < PAGE_SIZE; port++) {
+                pages[i][port] = buffer.getShort();
+                index(pages[i][port] & 0xFFFF, tags);
+            }
+        }
+        short[][][] directories = new short[readCount(buffer, 4 * PAGE_COUNT)][][];
+        for (int i = 0; i < directories.length; i++) {
+            directories[i] = new short[PAGE_COUNT][];
+            for (int page = 0; page < PAGE_COUNT; page++) {
+                directories[i][page] = pages[index(buffer.getInt(), pages.length)];
+            }
+        }
+        short[][][] protocolDirectories = new short[LookupTable.PROTOCOL_COUNT][][];
+        for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+            protocolDirectories[protocol] = directories[index(buffer.getInt(), directories.length)];
+        }
+
+        return LookupTable.ofDirectories(tagNames, protocolNames, protocolDirectories);
+    }
+
+    private static void describe(Path file, long[] sources, int offset) throws IOException {
+        byte[] contents = Files.readAllBytes(file);
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length);
+        sources[offset] = contents.length;
+        sources[offset + 1] = Files.getLastModifiedTime(file).toMillis();
+        sources[offset + 2] = (int) crc.getValue();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readCount(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a count of items of at least itemBytes each, rejecting counts the rest of the
+     * buffer cannot hold (so a corrupt count never allocates a huge array).
+     */
+    private static int readCount(ByteBuffer buffer, int itemBytes) {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * itemBytes > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    private static int index(int value, int limit) {
+        if (value < 0 || value >= limit) {
+            throw new IllegalArgumentException("Invalid index: " + value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,160 @@
+// File Name: LookupReloader.java
+// Author: Steven Pham
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a lookup table csv file and reloads it into a FlowLogParser whenever it changes,
+ * so the tags of a long-running follow can be changed without restarting it.
+ *
+ * The file is checked on a background thread every interval, by its modification time
+ * and size. Reading and compiling the new table happens on that thread too, and the new
+ * table is published atomically (see FlowLogParser.reloadLookup), so counting is never
+ * paused. A file that fails to load (e.g. caught half-written) leaves the current table
+ * in place and is tried again on its next change.
+ *
+ * The number of reloads and how long they took can be read from any thread.
+ */
+public final class LookupReloader implements Runnable {
+
+    private final FlowLogParser parser;
+    private final Path lookupFile;
+    private final long intervalMillis;
+
+    private Object lastModified; // Modification time and size of the loaded file
+    private long lastSize = -1;
+
+    private volatile long reloadCount;
+    private volatile long failedReloadCount;
+    private volatile long lastReloadNanos;
+    private volatile long totalReloadNanos;
+    private volatile boolean running = true;
+    private Thread thread;
+
+    /**
+     * @param parser - Parser whose lookup table was prepared from lookupFile
+     * @param lookupFile - Path of the lookup table csv file
+     * @param intervalSeconds - Seconds between checks of the file
+     */
+    public LookupReloader(FlowLogParser parser, String lookupFile, long intervalSeconds) {
+        this.parser = parser;
+        this.lookupFile = Paths.get(lookupFile);
+        this.intervalMillis = TimeUnit.SECONDS.toMillis(intervalSeconds);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(this.lookupFile, BasicFileAttributes.class);
+            lastModified = attributes.lastModifiedTime();
+            lastSize = attributes.size();
+        } catch (IOException e) { // Loaded as soon as it appears
+        }
+    }
+
+    /**
+     * Starts checking the file on a daemon thread.
+     */
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, "lookup-reloader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops checking the file. A reload in progress still completes.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Checks the file every interval until stopped.
+     */
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            reloadIfChanged();
+        }
+    }
+
+    /**
+     * Reloads the lookup table if the file changed since it was last loaded.
+     *
+     * @return true if a new table was published
+     */
+    public boolean reloadIfChanged() {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(lookupFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) { // Being replaced, try again on the next check
+            return false;
+        } catch (IOException e) {
+            System.out.println("A problem has occurred checking the lookup table: " + e);
+            return false;
+        }
+        if (attributes.lastModifiedTime().equals(lastModified) && attributes.size() == lastSize) {
+            return false;
+        }
+
+        // Remember the version being read, so a change during the read is picked up next time
+        lastModified = attributes.lastModifiedTime();
+        lastSize = attributes.size();
+
+        long start = System.nanoTime();
+        try {
+            LookupTable table = parser.reloadLookup(lookupFile.toString());
+            long elapsed = System.nanoTime() - start;
+            lastReloadNanos = elapsed;
+            totalReloadNanos += elapsed;
+            reloadCount++;
+            System.out.println("Lookup table reloaded (" + (table.getTagCount() - 1) + " tags) in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+            return true;
+
+        } catch (Exception e) {
+            failedReloadCount++;
+            System.out.println("A problem has occurred reloading the lookup mappings, keeping the current ones: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of successful reloads
+     */
+    public long getReloadCount() {
+        return reloadCount;
+    }
+
+    /**
+     * @return the number of reloads that failed and kept the current table
+     */
+    public long getFailedReloadCount() {
+        return failedReloadCount;
+    }
+
+    /**
+     * @return how long the last successful reload took to read, compile and publish, in nanoseconds
+     */
+    public long getLastReloadNanos() {
+        return lastReloadNanos;
+    }
+
+    /**
+     * @return how long all successful reloads took together, in nanoseconds
+     */
+    public long getTotalReloadNanos() {
+        return totalReloadNanos;
+    }
+}
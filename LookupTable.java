@@ -0,0 +1,376 @@
+// File Name: LookupTable.java
+// Author: Steven Pham
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Compiled, immutable form of the protocol table and the lookup table.
+ *
+ * The protocol number (0-255) and destination port (0-65535) of a record are resolved
+ * to a small integer tag id through a two-level page table:
+ *      protocol -> page directory -> page of 256 tag ids
+ *
+ * Pages that hold no mappings all share one empty page, so a table with 10000 mappings
+ * stays small while every lookup is a fixed number of array reads with no boxing,
+ * hashing or allocation. Tag id 0 is reserved for "Untagged".
+ *
+ * Port ranges and wildcards (see PortRange) are compiled into the same pages: a page that
+ * a range covers completely points at a shared page filled with the range's tag, so a
+ * wildcard costs one reference per page rather than one entry per port, and lookups are
+ * unchanged. Rules are written into the pages from the least to the most specific, so the
+ * most specific rule for a port wins:
+ *      exact port > port range (narrower first) > wildcard port
+ * and for rules on the same ports, a named protocol wins over the "*" protocol.
+ */
+public final class LookupTable {
+
+    public static final int UNTAGGED = 0;
+    public static final String UNTAGGED_NAME = "Untagged";
+
+    public static final int PROTOCOL_COUNT = 256;
+    public static final int PORT_COUNT = 65536;
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PAGE_COUNT = PORT_COUNT / PAGE_SIZE;
+
+    // Shared by every protocol/page that holds no mappings
+    private static final short[] EMPTY_PAGE = new short[PAGE_SIZE];
+    private static final short[][] EMPTY_DIRECTORY = emptyDirectory();
+
+    /**
+     * A lookup rule for a range of destination ports, such as "49152-65535,tcp,ephemeral"
+     * or the wildcard "*,udp,udp_other" (ports 0-65535). The protocol may also be the
+     * wildcard "*", which matches every protocol number.
+     */
+    public static final class PortRange {
+
+        public static final String ANY_PROTOCOL = "*";
+
+        private final String protocol;
+        private final int firstPort;
+        private final int lastPort;
+        private final String tag;
+
+        /**
+         * @param protocol - Protocol keyword, or ANY_PROTOCOL
+         * @param firstPort - First destination port of the range
+         * @param lastPort - Last destination port of the range (inclusive)
+         * @param tag - Tag of the ports in the range
+         */
+        public PortRange(String protocol, int firstPort, int lastPort, String tag) {
+            if (firstPort < 0 || lastPort >= PORT_COUNT || firstPort > lastPort) {
+                throw new IllegalArgumentException("Invalid port range: " + firstPort + "-" + lastPort);
+            }
+            this.protocol = protocol;
+            this.firstPort = firstPort;
+            this.lastPort = lastPort;
+            this.tag = tag;
+        }
+
+        /**
+         * @return the protocol keyword, or ANY_PROTOCOL
+         */
+        public String getProtocol() {
+            return protocol;
+        }
+
+        /**
+         * @return the first destination port of the range
+         */
+        public int getFirstPort() {
+            return firstPort;
+        }
+
+        /**
+         * @return the last destination port of the range (inclusive)
+         */
+        public int getLastPort() {
+            return lastPort;
+        }
+
+        /**
+         * @return the tag of the ports in the range
+         */
+        public String getTag() {
+            return tag;
+        }
+
+        private boolean matches(String keyword) {
+            return protocol.equals(ANY_PROTOCOL) || protocol.equals(keyword);
+        }
+    }
+
+    private final String[] protocolNames; // Protocol Number -> Keyword (null if unknown)
+    private final short[][][] directories; // Protocol Number -> (Port page -> tag ids)
+    private final String[] tagNames; // Tag id -> Tag
+
+    private LookupTable(String[] protocolNames, short[][][] directories, String[] tagNames) {
+        this.protocolNames = protocolNames;
+        this.directories = directories;
+        this.tagNames = tagNames;
+    }
+
+    /**
+     * Compiles the protocol and lookup HashMaps into a flat tag-index table.
+     *
+     * Tag ids are assigned in the iteration order of the lookup HashMap, so that the
+     * tags are reported in the same order as they always have been.
+     *
+     * @param protocolTable - HashMap containing protocol number to keyword mappings
+     * @param lookupMap - HashMap containing the lookup mappings (Keyword -> (Dest port, tag))
+     * @return the compiled table
+     */
+    public static LookupTable compile(HashMap<Integer, String> protocolTable,
+                                      HashMap<String, HashMap<Integer, String>> lookupMap) {
+        return compile(protocolTable, lookupMap, Collections.<PortRange>emptyList());
+    }
+
+    /**
+     * Compiles the protocol and lookup HashMaps, plus port range and wildcard rules, into a
+     * flat tag-index table. Exact ports of the lookup HashMap win over the ranges.
+     *
+     * Tag ids are assigned in the iteration order of the lookup HashMap, followed by the
+     * new tags of the ranges in their order.
+     *
+     * @param protocolTable - HashMap containing protocol number to keyword mappings
+     * @param lookupMap - HashMap containing the lookup mappings (Keyword -> (Dest port, tag))
+     * @param ranges - Port range and wildcard rules, in the order they were read
+     * @return the compiled table
+     */
+    public static LookupTable compile(HashMap<Integer, String> protocolTable,
+                                      HashMap<String, HashMap<Integer, String>> lookupMap, List<PortRange> ranges) {
+
+        // Tag dictionary, with "Untagged" always in slot 0
+        HashMap<String, Integer> tagIds = new HashMap<String, Integer>();
+        ArrayList<String> tagNames = new ArrayList<String>();
+        tagIds.put(UNTAGGED_NAME, UNTAGGED);
+        tagNames.add(UNTAGGED_NAME);
+        for (String protocol : lookupMap.keySet()) {
+            HashMap<Integer, String> ports = lookupMap.get(protocol);
+            for (Integer dstPort : ports.keySet()) {
+                tagIdOf(ports.get(dstPort), tagIds, tagNames);
+            }
+        }
+        for (PortRange range : ranges) {
+            tagIdOf(range.tag, tagIds, tagNames);
+        }
+
+        if (tagNames.size() > 0xFFFF) {
+            throw new IllegalArgumentException("Too many distinct tags: " + tagNames.size());
+        }
+
+        // Least specific first, so that more specific rules overwrite them: wider ranges
+        // first, and "*" before a named protocol for the same width. The sort is stable, so
+        // of two equal rules the later one wins.
+        ArrayList<PortRange> orderedRanges = new ArrayList<PortRange>(ranges);
+        Collections.sort(orderedRanges, new Comparator<PortRange>() {
+            public int compare(PortRange a, PortRange b) {
+                int widthA = a.lastPort - a.firstPort;
+                int widthB = b.lastPort - b.firstPort;
+                if (widthA != widthB) {
+                    return widthB - widthA;
+                }
+                return Boolean.compare(!a.protocol.equals(PortRange.ANY_PROTOCOL), !b.protocol.equals(PortRange.ANY_PROTOCOL));
+            }
+        });
+
+        // Keywords that have rules: those of the lookup HashMap and the ranges, or every
+        // keyword if a range applies to any protocol
+        LinkedHashSet<String> keywords = new LinkedHashSet<String>(lookupMap.keySet());
+        boolean anyProtocol = false;
+        for (PortRange range : orderedRanges) {
+            if (range.protocol.equals(PortRange.ANY_PROTOCOL)) {
+                anyProtocol = true;
+            } else {
+                keywords.add(range.protocol);
+            }
+        }
+        if (anyProtocol) {
+            keywords.addAll(protocolTable.values());
+        }
+
+        // Keyword -> compiled page directory (null stands for protocol numbers without a keyword)
+        HashMap<String, short[][]> keywordDirectories = new HashMap<String, short[][]>();
+        short[][] uniformPages = new short[tagNames.size()][]; // Tag id -> page of only that tag, shared
+        for (String protocol : keywords) {
+            keywordDirectories.put(protocol, compileDirectory(protocol, lookupMap.get(protocol), orderedRanges, tagIds, uniformPages));
+        }
+        short[][] unnamedDirectory = anyProtocol ? compileDirectory(null, null, orderedRanges, tagIds, uniformPages) : EMPTY_DIRECTORY;
+
+        // Every protocol number points at the directory of its keyword
+        String[] protocolNames = new String[PROTOCOL_COUNT];
+        short[][][] directories = new short[PROTOCOL_COUNT][][];
+        for (int protocol = 0; protocol < PROTOCOL_COUNT; protocol++) {
+            protocolNames[protocol] = protocolTable.get(protocol);
+            short[][] directory = (protocolNames[protocol] == null) ? unnamedDirectory : keywordDirectories.get(protocolNames[protocol]);
+            directories[protocol] = (directory == null) ? EMPTY_DIRECTORY : directory;
+        }
+
+        return new LookupTable(protocolNames, directories, tagNames.toArray(new String[0]));
+    }
+
+    /**
+     * Creates a table that only names tags and protocols, without any port mappings.
+     * Used for counts that were not read from a flow log, such as merged snapshots.
+     *
+     * @param tagNames - Tag id -> Tag, with UNTAGGED_NAME at index UNTAGGED
+     * @param protocolNames - Protocol Number -> Keyword (null if unknown), PROTOCOL_COUNT entries
+     * @return the table
+     */
+    public static LookupTable ofNames(String[] tagNames, String[] protocolNames) {
+        if (tagNames.length == 0 || !UNTAGGED_NAME.equals(tagNames[UNTAGGED]) || protocolNames.length != PROTOCOL_COUNT) {
+            throw new IllegalArgumentException("Tag names must start with " + UNTAGGED_NAME + " and there must be one name per protocol");
+        }
+        short[][][] directories = new short[PROTOCOL_COUNT][][];
+        for (int protocol = 0; protocol < PROTOCOL_COUNT; protocol++) {
+            directories[protocol] = EMPTY_DIRECTORY;
+        }
+        return new LookupTable(protocolNames.clone(), directories, tagNames.clone());
+    }
+
+    /**
+     * Rebuilds a compiled table from its parts, as written by LookupCache.
+     *
+     * @param tagNames - Tag id -> Tag, with UNTAGGED_NAME at index UNTAGGED
+     * @param protocolNames - Protocol Number -> Keyword (null if unknown), PROTOCOL_COUNT entries
+     * @param directories - Protocol Number -> (Port page -> tag ids), which may share pages
+     * @return the table
+     */
+    static LookupTable ofDirectories(String[] tagNames, String[] protocolNames, short[][][] directories) {
+        if (tagNames.length == 0 || !UNTAGGED_NAME.equals(tagNames[UNTAGGED]) || protocolNames.length != PROTOCOL_COUNT
+                || directories.length != PROTOCOL_COUNT) {
+            throw new IllegalArgumentException("Tag names must start with " + UNTAGGED_NAME + " and there must be one directory per protocol");
+        }
+        return new LookupTable(protocolNames, directories, tagNames);
+    }
+
+    /**
+     * Resolves a protocol number and destination port to a tag id.
+     * Values outside of the valid protocol/port ranges are simply untagged.
+     *
+     * @param protocol - Protocol number of the record
+     * @param dstPort - Destination port of the record
+     * @return the tag id, or UNTAGGED if there is no mapping
+     */
+    public int getTagId(int protocol, int dstPort) {
+        if ((protocol & ~(PROTOCOL_COUNT - 1)) != 0 || (dstPort & ~(PORT_COUNT - 1)) != 0) {
+            return UNTAGGED;
+        }
+        return directories[protocol][dstPort >>> PAGE_BITS][dstPort & PAGE_MASK] & 0xFFFF;
+    }
+
+    /**
+     * @param protocol - Protocol number
+     * @return the protocol keyword, or null if the number has no keyword
+     */
+    public String getProtocolName(int protocol) {
+        if ((protocol & ~(PROTOCOL_COUNT - 1)) != 0) {
+            return null;
+        }
+        return protocolNames[protocol];
+    }
+
+    /**
+     * @param tagId - Tag id returned by getTagId
+     * @return the tag name
+     */
+    public String getTagName(int tagId) {
+        return tagNames[tagId];
+    }
+
+    /**
+     * @return the number of tag ids, including UNTAGGED
+     */
+    public int getTagCount() {
+        return tagNames.length;
+    }
+
+    /**
+     * @param protocol - Protocol number, from 0 to PROTOCOL_COUNT - 1
+     * @return the page directory of the protocol, for LookupCache (not to be modified)
+     */
+    short[][] getDirectory(int protocol) {
+        return directories[protocol];
+    }
+
+    /**
+     * Builds the page directory of one protocol keyword: its ranges (already ordered from
+     * the least specific), then its exact ports.
+     */
+    private static short[][] compileDirectory(String protocol, HashMap<Integer, String> ports, List<PortRange> orderedRanges,
+                                              HashMap<String, Integer> tagIds, short[][] uniformPages) {
+        short[][] directory = emptyDirectory();
+        boolean[] ownPages = new boolean[PAGE_COUNT]; // Pages that may be written in place
+
+        for (PortRange range : orderedRanges) {
+            if (range.matches(protocol)) {
+                fillRange(directory, ownPages, range.firstPort, range.lastPort, tagIds.get(range.tag), uniformPages);
+            }
+        }
+
+        if (ports != null) {
+            for (Integer dstPort : ports.keySet()) {
+                if (dstPort < 0 || dstPort >= PORT_COUNT) { // Can never match a record
+                    continue;
+                }
+                setTagId(directory, ownPages, dstPort, tagIds.get(ports.get(dstPort)));
+            }
+        }
+        return directory;
+    }
+
+    private static void fillRange(short[][] directory, boolean[] ownPages, int firstPort, int lastPort, int tagId, short[][] uniformPages) {
+        int port = firstPort;
+        while (port <= lastPort) {
+            int page = port >>> PAGE_BITS;
+            int pageEnd = (page << PAGE_BITS) + PAGE_MASK;
+            if ((port & PAGE_MASK) == 0 && pageEnd <= lastPort) { // Whole page: share a page of only this tag
+                if (uniformPages[tagId] == null) {
+                    uniformPages[tagId] = new short[PAGE_SIZE];
+                    Arrays.fill(uniformPages[tagId], (short) tagId);
+                }
+                directory[page] = uniformPages[tagId];
+                ownPages[page] = false;
+                port = pageEnd + 1;
+            } else {
+                setTagId(directory, ownPages, port, tagId);
+                port++;
+            }
+        }
+    }
+
+    private static void setTagId(short[][] directory, boolean[] ownPages, int dstPort, int tagId) {
+        int page = dstPort >>> PAGE_BITS;
+        if (!ownPages[page]) { // Copy a shared page on first write
+            directory[page] = directory[page].clone();
+            ownPages[page] = true;
+        }
+        directory[page][dstPort & PAGE_MASK] = (short) tagId;
+    }
+
+    private static int tagIdOf(String tag, HashMap<String, Integer> tagIds, ArrayList<String> tagNames) {
+        Integer tagId = tagIds.get(tag);
+        if (tagId == null) {
+            tagId = tagNames.size();
+            tagIds.put(tag, tagId);
+            tagNames.add(tag);
+        }
+        return tagId;
+    }
+
+    private static short[][] emptyDirectory() {
+        short[][] directory = new short[PAGE_COUNT][];
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            directory[i] = EMPTY_PAGE;
+        }
+        return directory;
+    }
+}
@@ -0,0 +1,344 @@
+// File Name: SpaceSaving.java
+// Author: Steven Pham
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Space-Saving summary of the most frequent keys of a stream (the heavy hitters, such as
+ * the busiest address pairs), in a fixed amount of memory.
+ *
+ * At most capacity keys are monitored, each with a count and a label for the output. A
+ * key that is already monitored has its count increased. A new key takes the place of the
+ * monitored key with the smallest count, and inherits that count as its possible error.
+ * Keys are identified by a 64 bit fingerprint of their bytes, and the monitored keys are
+ * kept in a min-heap by count, so every update is a hash lookup plus a short sift.
+ *
+ * Error bounds, with N the total of all counts and K the capacity:
+ * - Every reported count is at least the true count, and at most N / K above it
+ *   (the exact bound for each key is reported by getError).
+ * - Every key whose true count is above N / K is guaranteed to be monitored.
+ * So the top-K list is exact for keys much more frequent than N / K, and a larger capacity
+ * makes the bound tighter.
+ *
+ * Summaries merge as in "Mergeable Summaries" (Agarwal et al.): a key missing from one
+ * summary is assumed to have that summary's smallest count, and the capacity largest
+ * results are kept. The merged summary keeps the same N / K guarantee.
+ */
+public final class SpaceSaving {
+
+    private static final int MAX_LABEL_LENGTH = 256;
+
+    private final int capacity;
+    private int size;
+    private long total; // N, the sum of every count added
+
+    private final long[] fingerprints; // Slot -> fingerprint of the key
+    private final long[] counts; // Slot -> count (an upper bound of the true count)
+    private final long[] errors; // Slot -> how much of the count may belong to evicted keys
+    private final byte[][] labels; // Slot -> bytes of the key, for the output
+    private final int[] labelLengths;
+
+    private final int[] heap; // Min-heap of slots by count
+    private final int[] heapPositions; // Slot -> position in the heap
+
+    private final int[] index; // Linear-probing table: fingerprint -> slot + 1, 0 when empty
+    private final int mask;
+
+    /**
+     * @param capacity - Number of keys to monitor (K)
+     */
+    public SpaceSaving(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Top-K capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.fingerprints = new long[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.labels = new byte[capacity][];
+        this.labelLengths = new int[capacity];
+        this.heap = new int[capacity];
+        this.heapPositions = new int[capacity];
+
+        int indexSize = Integer.highestOneBit(capacity * 2 - 1) * 2; // Power of two, at least twice the capacity
+        this.index = new int[indexSize];
+        this.mask = indexSize - 1;
+    }
+
+    /**
+     * Adds to the count of a key if it is monitored.
+     *
+     * @param fingerprint - Fingerprint of the key
+     * @param weight - Amount to add
+     * @return false if the key is not monitored, in which case offer must be called
+     */
+    public boolean increment(long fingerprint, long weight) {
+        int slot = find(fingerprint);
+        if (slot < 0) {
+            return false;
+        }
+        total += weight;
+        counts[slot] += weight;
+        siftDown(heapPositions[slot]);
+        return true;
+    }
+
+    /**
+     * Starts monitoring a key that is not monitored yet, replacing the key with the
+     * smallest count if the summary is full.
+     *
+     * @param fingerprint - Fingerprint of the key
+     * @param weight - Amount to add
+     * @param label - Buffer holding the bytes to report the key as
+     * @param labelLength - Number of bytes of the label (longer labels are cut off)
+     */
+    public void offer(long fingerprint, long weight, byte[] label, int labelLength) {
+        total += weight;
+        insert(fingerprint, weight, 0, label, labelLength);
+    }
+
+    /**
+     * Adds another summary to this one.
+     *
+     * @param other - Summary of another part of the stream
+     */
+    public void merge(SpaceSaving other) {
+        long missingHere = (size == capacity) ? counts[heap[0]] : 0;
+        long missingThere = (other.size == other.capacity) ? other.counts[other.heap[0]] : 0;
+
+        // Every key of either summary, with the counts of both
+        int combinedSize = size + other.size;
+        long[] newFingerprints = new long[combinedSize];
+        long[] newCounts = new long[combinedSize];
+        long[] newErrors = new long[combinedSize];
+        byte[][] newLabels = new byte[combinedSize][];
+        int[] newLabelLengths = new int[combinedSize];
+        int n = 0;
+
+        for (int slot = 0; slot < size; slot++) {
+            int otherSlot = other.find(fingerprints[slot]);
+            newFingerprints[n] = fingerprints[slot];
+            newCounts[n] = counts[slot] + ((otherSlot < 0) ? missingThere : other.counts[otherSlot]);
+            newErrors[n] = errors[slot] + ((otherSlot < 0) ? missingThere : other.errors[otherSlot]);
+            newLabels[n] = labels[slot];
+            newLabelLengths[n] = labelLengths[slot];
+            n++;
+        }
+        for (int slot = 0; slot < other.size; slot++) {
+            if (find(other.fingerprints[slot]) < 0) {
+                newFingerprints[n] = other.fingerprints[slot];
+                newCounts[n] = other.counts[slot] + missingHere;
+                newErrors[n] = other.errors[slot] + missingHere;
+                newLabels[n] = other.labels[slot];
+                newLabelLengths[n] = other.labelLengths[slot];
+                n++;
+            }
+        }
+
+        // Keep the largest counts
+        Integer[] order = sortByCount(newCounts, n);
+        long mergedTotal = total + other.total;
+        clear();
+        for (int i = 0; i < Math.min(n, capacity); i++) {
+            int j = order[i];
+            insert(newFingerprints[j], newCounts[j], newErrors[j], newLabels[j], newLabelLengths[j]);
+        }
+        total = mergedTotal;
+    }
+
+    /**
+     * @return the monitored keys, from the largest count to the smallest
+     */
+    public int[] slotsByCount() {
+        Integer[] order = sortByCount(counts, size);
+        int[] slots = new int[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = order[i];
+        }
+        return slots;
+    }
+
+    /**
+     * @param slot - Slot from slotsByCount
+     * @return the label of the key
+     */
+    public String getLabel(int slot) {
+        return new String(labels[slot], 0, labelLengths[slot], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param slot - Slot from slotsByCount
+     * @return the count of the key, which is at most getError above its true count
+     */
+    public long getCount(int slot) {
+        return counts[slot];
+    }
+
+    /**
+     * @param slot - Slot from slotsByCount
+     * @return the largest amount by which the count of the key may be too high
+     */
+    public long getError(int slot) {
+        return errors[slot];
+    }
+
+    /**
+     * @return the number of monitored keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the sum of every count added (N)
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the largest error of any count, N / K
+     */
+    public long getErrorBound() {
+        return total / capacity;
+    }
+
+    private void insert(long fingerprint, long count, long error, byte[] label, int labelLength) {
+        boolean full = (size == capacity);
+        int slot;
+        if (!full) {
+            slot = size++;
+            heap[slot] = slot;
+            heapPositions[slot] = slot;
+        } else { // Replace the key with the smallest count
+            slot = heap[0];
+            remove(fingerprints[slot]);
+            error += counts[slot];
+            count += counts[slot];
+        }
+
+        fingerprints[slot] = fingerprint;
+        counts[slot] = count;
+        errors[slot] = error;
+        int length = Math.min(labelLength, MAX_LABEL_LENGTH);
+        if (labels[slot] == null || labels[slot].length < length) {
+            labels[slot] = new byte[MAX_LABEL_LENGTH];
+        }
+        System.arraycopy(label, 0, labels[slot], 0, length);
+        labelLengths[slot] = length;
+        add(fingerprint, slot);
+        if (full) {
+            siftDown(heapPositions[slot]);
+        } else {
+            siftUp(heapPositions[slot]);
+        }
+    }
+
+    private void clear() {
+        size = 0;
+        total = 0;
+        Arrays.fill(index, 0);
+        Arrays.fill(labels, null);
+    }
+
+    private int find(long fingerprint) {
+        int position = hash(fingerprint) & mask;
+        while (index[position] != 0) {
+            int slot = index[position] - 1;
+            if (fingerprints[slot] == fingerprint) {
+                return slot;
+            }
+            position = (position + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void add(long fingerprint, int slot) {
+        int position = hash(fingerprint) & mask;
+        while (index[position] != 0) {
+            position = (position + 1) & mask;
+        }
+        index[position] = slot + 1;
+    }
+
+    /**
+     * Removes a fingerprint from the index, shifting back the entries after it so that
+     * no lookup stops early at the gap.
+     */
+    private void remove(long fingerprint) {
+        int position = hash(fingerprint) & mask;
+        while (fingerprints[index[position] - 1] != fingerprint) {
+            position = (position + 1) & mask;
+        }
+
+        int gap = position;
+        position = (position + 1) & mask;
+        while (index[position] != 0) {
+            int home = hash(fingerprints[index[position] - 1]) & mask;
+            // Move the entry into the gap if its home is not between the gap and its position
+            if (((position - home) & mask) >= ((position - gap) & mask)) {
+                index[gap] = index[position];
+                gap = position;
+            }
+            position = (position + 1) & mask;
+        }
+        index[gap] = 0;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (counts[heap[parent]] <= counts[heap[position]]) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < size && counts[heap[left]] < counts[heap[smallest]]) {
+                smallest = left;
+            }
+            if (right < size && counts[heap[right]] < counts[heap[smallest]]) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int slot = heap[a];
+        heap[a] = heap[b];
+        heap[b] = slot;
+        heapPositions[heap[a]] = a;
+        heapPositions[heap[b]] = b;
+    }
+
+    private static Integer[] sortByCount(final long[] values, int n) {
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(values[b], values[a]);
+            }
+        });
+        return order;
+    }
+
+    private static int hash(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+}
@@ -2,9 +2,26 @@
 // Author: Steven Pham
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 public class TestFlowLogParser {
 
@@ -158,10 +175,1788 @@ public class TestFlowLogParser {
         }
     }
 
+    /**
+     * Runs the compiled lookup table tests: getTagId must agree with the lookup HashMap for
+     * every protocol/port pair, including protocols without a keyword and the last port.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     */
+    public void testCompiledLookup(String protocolFile, String lookupTableFile) {
+        System.out.println("--- Beginning Compiled Lookup Table Tests ---");
+
+        FlowLogParser parser = new FlowLogParser();
+        parser.prepareProtocolMappings(protocolFile);
+        parser.prepareLookup(lookupTableFile);
+        compiledAgreesWithLookupMap(parser.getProtocolTable(), parser.getLookupMap(), parser.getCompiledLookup());
+        unknownProtocolUntagged(parser.getCompiledLookup());
+        lastPortTagged(parser.getProtocolTable());
+
+        System.out.println("--- Ending Compiled Lookup Table Tests ---\n");
+    }
+
+    /**
+     * Verifies that every protocol/port pair resolves to the tag of the lookup HashMap, or
+     * to Untagged if the HashMap has none, so every row of the csv is checked.
+     * 
+     * @param protocolTable - HashMap containing the protocol mappings
+     * @param lookupMap - HashMap containing the lookup mappings
+     * @param table - Table compiled from them
+     */
+    private void compiledAgreesWithLookupMap(HashMap<Integer, String> protocolTable, 
+            HashMap<String, HashMap<Integer, String>> lookupMap, LookupTable table) {
+        int rows = 0;
+        for (HashMap<Integer, String> ports : lookupMap.values()) {
+            rows += ports.size();
+        }
+        int tagged = 0;
+        for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+            HashMap<Integer, String> ports = lookupMap.get(protocolTable.get(protocol));
+            for (int dstPort = 0; dstPort < LookupTable.PORT_COUNT; dstPort++) {
+                String expected = (ports == null || !ports.containsKey(dstPort)) ? LookupTable.UNTAGGED_NAME : ports.get(dstPort);
+                String tag = table.getTagName(table.getTagId(protocol, dstPort));
+                if (!tag.equals(expected)) {
+                    System.out.println("(X) Test Failed: " + protocol + "/" + dstPort + " should be " + expected + ", got " + tag);
+                    return;
+                }
+                if (!expected.equals(LookupTable.UNTAGGED_NAME)) {
+                    tagged++;
+                }
+            }
+        }
+        if (tagged == rows && rows == 11) {
+            System.out.println("Test Passed: Every protocol/port pair resolves like the lookup map, with all " + rows + " rows tagged");
+        } else {
+            System.out.println("(X) Test Failed: Expected 11 tagged protocol/port pairs, one per row, got " + tagged + " of " + rows + " rows");
+        }
+    }
+
+    /**
+     * Verifies that protocols without a keyword, and numbers outside of the protocol and port
+     * ranges, are untagged.
+     * 
+     * @param table - Compiled lookup table
+     */
+    private void unknownProtocolUntagged(LookupTable table) {
+        if (table.getTagId(200, 25) == LookupTable.UNTAGGED && table.getTagId(LookupTable.PROTOCOL_COUNT, 25) == LookupTable.UNTAGGED
+                && table.getTagId(-1, 25) == LookupTable.UNTAGGED && table.getTagId(6, LookupTable.PORT_COUNT) == LookupTable.UNTAGGED
+                && table.getTagId(6, -1) == LookupTable.UNTAGGED && table.getProtocolName(200) == null) {
+            System.out.println("Test Passed: Unknown protocols and out of range protocols or ports are untagged");
+        } else {
+            System.out.println("(X) Test Failed: Unknown protocols and out of range protocols or ports should be untagged");
+        }
+    }
+
+    /**
+     * Verifies that port 65535, the last entry of the last page, is tagged without tagging its neighbour.
+     * 
+     * @param protocolTable - HashMap containing the protocol mappings
+     */
+    private void lastPortTagged(HashMap<Integer, String> protocolTable) {
+        HashMap<String, HashMap<Integer, String>> lookupMap = new HashMap<String, HashMap<Integer, String>>();
+        lookupMap.put("tcp", new HashMap<Integer, String>());
+        lookupMap.get("tcp").put(65535, "last_port");
+        LookupTable table = LookupTable.compile(protocolTable, lookupMap);
+        if (table.getTagName(table.getTagId(6, 65535)).equals("last_port") && table.getTagId(6, 65534) == LookupTable.UNTAGGED
+                && table.getTagId(17, 65535) == LookupTable.UNTAGGED) {
+            System.out.println("Test Passed: TCP port 65535 is tagged last_port, and port 65534 and UDP are untagged");
+        } else {
+            System.out.println("(X) Test Failed: Only TCP port 65535 should be tagged last_port");
+        }
+    }
+
+    /**
+     * Compiles a lookup table with port ranges and wildcards, and checks the precedence of
+     * its rules: exact port, then narrower range, then wider range, then wildcard.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param rangesFile - Path of the lookup table csv with ranges and wildcards
+     */
+    public void testLookupRanges(String protocolFile, String rangesFile) {
+        System.out.println("--- Beginning Lookup Range Tests ---");
+
+        FlowLogParser parser = new FlowLogParser();
+        parser.prepareProtocolMappings(protocolFile);
+        parser.prepareLookup(rangesFile);
+        LookupTable table = parser.getCompiledLookup();
+
+        expectTag(table, 6, 25, "sv_P1", "an exact port wins over every range");
+        expectTag(table, 6, 49153, "ephemeral_low", "a narrower range wins over a wider one");
+        expectTag(table, 6, 60000, "ephemeral", "a port range covers its ports");
+        expectTag(table, 17, 68, "sv_P2", "an exact port wins over a wildcard");
+        expectTag(table, 17, 5000, "udp_other", "a protocol's wildcard covers its other ports");
+        expectTag(table, 17, 443, "https", "a port of any protocol wins over a wildcard port");
+        expectTag(table, 1, 80, "other", "a wildcard of any protocol covers the rest");
+        expectTag(table, 200, 80, "other", "a wildcard of any protocol covers protocols without a keyword");
+
+        System.out.println("--- Ending Lookup Range Tests ---\n");
+    }
+
+    /**
+     * Verifies the tag of one protocol/port pair.
+     * 
+     * @param table - Compiled lookup table
+     * @param protocol - Protocol number
+     * @param dstPort - Destination port
+     * @param expectedTag - Tag it should resolve to
+     * @param rule - Rule being checked, for the message
+     */
+    private void expectTag(LookupTable table, int protocol, int dstPort, String expectedTag, String rule) {
+        String tag = table.getTagName(table.getTagId(protocol, dstPort));
+        if (tag.equals(expectedTag)) {
+            System.out.println("Test Passed: " + protocol + "/" + dstPort + " is " + expectedTag + ", " + rule);
+        } else {
+            System.out.println("(X) Test Failed: " + protocol + "/" + dstPort + " should be " + expectedTag + " (" + rule + "), got " + tag);
+        }
+    }
+
+    /**
+     * Runs the lookup cache tests: a cache is written on the first run and loaded on the
+     * second, it resolves every protocol/port like the table compiled from the csv files,
+     * and it is not used for other csv files.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of a lookup table csv
+     * @param rangesFile - Path of the lookup table csv with ranges and wildcards
+     * @param cacheFile - Path of the cache file to write
+     */
+    public void testLookupCache(String protocolFile, String lookupTableFile, String rangesFile, String cacheFile) {
+        System.out.println("--- Beginning Lookup Cache Tests ---");
+
+        try {
+            Files.deleteIfExists(Paths.get(cacheFile)); // Left over from an interrupted run
+            FlowLogParser compiled = new FlowLogParser();
+            compiled.prepareProtocolMappings(protocolFile);
+            compiled.prepareLookup(rangesFile);
+            LookupTable expected = compiled.getCompiledLookup();
+
+            boolean firstHit = new FlowLogParser().prepareCachedLookup(protocolFile, rangesFile, cacheFile);
+            FlowLogParser cached = new FlowLogParser();
+            boolean secondHit = cached.prepareCachedLookup(protocolFile, rangesFile, cacheFile);
+            if (!firstHit && secondHit) {
+                System.out.println("Test Passed: The lookup cache is written, then loaded");
+            } else {
+                System.out.println("(X) Test Failed: Expected a cache miss then a hit, got " + firstHit + " and " + secondHit);
+            }
+            sameTags(expected, cached.getCompiledLookup(), "The cached lookup table");
+
+            // The csv rows behind a cached table are still there when asked for, and recompiling keeps them
+            FlowLogParser recompiled = new FlowLogParser();
+            recompiled.prepareCachedLookup(protocolFile, rangesFile, cacheFile);
+            recompiled.prepareProtocolMappings(protocolFile);
+            sameTags(expected, recompiled.getCompiledLookup(), "A cached lookup table recompiled with new protocol mappings");
+            if (cached.getLookupMap().equals(compiled.getLookupMap()) && cached.getLookupRanges().size() == compiled.getLookupRanges().size()
+                    && !cached.getLookupMap().isEmpty()) {
+                System.out.println("Test Passed: The lookup map and ranges of a cached table match the csv");
+            } else {
+                System.out.println("(X) Test Failed: The lookup map and ranges of a cached table should match the csv, got " + cached.getLookupMap());
+            }
+
+            if (LookupCache.forSources(protocolFile, lookupTableFile).load(cacheFile) == null) {
+                System.out.println("Test Passed: The lookup cache of other csv files is not used");
+            } else {
+                System.out.println("(X) Test Failed: The lookup cache was loaded for other csv files");
+            }
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        deleteTestResultsFile(cacheFile);
+        System.out.println("--- Ending Lookup Cache Tests ---\n");
+    }
+
+    /**
+     * Verifies that two tables resolve every protocol/port pair to the same tag.
+     * 
+     * @param expected - Table compiled from the csv files
+     * @param actual - Table loaded from the cache
+     * @param description - What the actual table is, for the messages
+     */
+    private void sameTags(LookupTable expected, LookupTable actual, String description) {
+        for (int protocol = 0; protocol < LookupTable.PROTOCOL_COUNT; protocol++) {
+            for (int dstPort = 0; dstPort < LookupTable.PORT_COUNT; dstPort++) {
+                String expectedTag = expected.getTagName(expected.getTagId(protocol, dstPort));
+                String actualTag = actual.getTagName(actual.getTagId(protocol, dstPort));
+                if (!expectedTag.equals(actualTag)) {
+                    System.out.println("(X) Test Failed: " + description + " resolves " + protocol + "/" + dstPort + " to " + actualTag + ", should be " + expectedTag);
+                    return;
+                }
+            }
+        }
+        System.out.println("Test Passed: " + description + " resolves every protocol/port like the compiled one");
+    }
+
     // - - - End of protocol table tests - - -
 
 
 
+    // - - - Tokenizer tests - - -
+
+    /**
+     * Runs the tokenizer tests on small byte arrays, with a buffer small enough to be refilled and grown.
+     */
+    public void testTokenizer() {
+        System.out.println("--- Beginning Tokenizer Tests ---");
+        lineTerminators();
+        terminatorSplitByRefill();
+        lineLongerThanBuffer();
+        parseIntOverflow();
+        System.out.println("--- Ending Tokenizer Tests ---\n");
+    }
+
+    /**
+     * Verifies that lines end at "\r\n", a bare "\r" or "\n", like BufferedReader.readLine(),
+     * and that a final line without a terminator is still read.
+     */
+    private void lineTerminators() {
+        List<String> lines = tokenize("a b\r\nc\rd\n\r\ne", 16);
+        if (lines.equals(Arrays.asList("a b", "c", "d", "", "e"))) {
+            System.out.println("Test Passed: CRLF, bare CR and LF end lines, and the last line needs no terminator");
+        } else {
+            System.out.println("(X) Test Failed: Expected lines [a b, c, d, , e], got " + lines);
+        }
+    }
+
+    /**
+     * Verifies that a "\r\n" split between two reads of the stream ends only one line.
+     */
+    private void terminatorSplitByRefill() {
+        // The '\r' is the last byte of the first 16 byte read, and the '\n' the first of the next
+        List<String> lines = tokenize("0123456789abcde\r\nx\n", 16);
+        if (lines.equals(Arrays.asList("0123456789abcde", "x"))) {
+            System.out.println("Test Passed: A CRLF split across two reads ends a single line");
+        } else {
+            System.out.println("(X) Test Failed: Expected lines [0123456789abcde, x], got " + lines);
+        }
+    }
+
+    /**
+     * Verifies that a line longer than the buffer grows it, keeping the fields and line offsets right.
+     */
+    private void lineLongerThanBuffer() {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            longLine.append(i).append(' ');
+        }
+        longLine.append("12345");
+        String text = "1 2\n" + longLine + "\n7 8";
+        FlowLogTokenizer tokenizer = new FlowLogTokenizer(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)), 16);
+        try {
+            tokenizer.nextLine();
+            boolean longLineRead = tokenizer.nextLine() 
+                    && tokenizer.getLineEnd() - tokenizer.getLineStart() == longLine.length()
+                    && tokenizer.parseInt(0) == 0 && tokenizer.parseInt(39) == 39 && tokenizer.parseInt(40) == 12345
+                    && !tokenizer.hasField(41);
+            boolean lastLineRead = tokenizer.nextLine() && tokenizer.parseInt(1) == 8
+                    && tokenizer.getLineOffset() == 4 + longLine.length() + 1 && !tokenizer.nextLine();
+            if (longLineRead && lastLineRead && tokenizer.getBuffer().length > 16) {
+                System.out.println("Test Passed: A line longer than the buffer grows it, with the right fields and offsets");
+            } else {
+                System.out.println("(X) Test Failed: A line longer than the buffer was not read correctly");
+            }
+        } catch (IOException e) {
+            System.out.println("(X) Test Failed: Reading a line longer than the buffer failed: " + e);
+        }
+    }
+
+    /**
+     * Verifies that parseInt returns -1 for numbers too large for an int and for fields that are
+     * not numbers or are missing, while parseLong still reads the larger numbers.
+     */
+    private void parseIntOverflow() {
+        String text = "2147483647 2147483648 99999999999 12a -5  x";
+        FlowLogTokenizer tokenizer = new FlowLogTokenizer(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)), 16);
+        try {
+            tokenizer.nextLine();
+            int[] values = new int[8];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = tokenizer.parseInt(i);
+            }
+            int[] expected = {Integer.MAX_VALUE, -1, -1, -1, -1, -1, -1, -1};
+            if (Arrays.equals(values, expected) && tokenizer.parseLong(1) == 2147483648L && tokenizer.parseLong(2) == 99999999999L) {
+                System.out.println("Test Passed: parseInt returns -1 on overflow, non-numbers and missing fields");
+            } else {
+                System.out.println("(X) Test Failed: Expected parseInt values " + Arrays.toString(expected) + ", got " + Arrays.toString(values));
+            }
+        } catch (IOException e) {
+            System.out.println("(X) Test Failed: Reading the numbers failed: " + e);
+        }
+    }
+
+    /**
+     * @param text - Text to split into lines
+     * @param bufferSize - Initial buffer size of the tokenizer
+     * @return the lines read by a FlowLogTokenizer, or null if reading failed
+     */
+    private static List<String> tokenize(String text, int bufferSize) {
+        FlowLogTokenizer tokenizer = new FlowLogTokenizer(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)), bufferSize);
+        List<String> lines = new ArrayList<String>();
+        try {
+            while (tokenizer.nextLine()) {
+                lines.add(new String(tokenizer.getBuffer(), tokenizer.getLineStart(),
+                        tokenizer.getLineEnd() - tokenizer.getLineStart(), StandardCharsets.US_ASCII));
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return lines;
+    }
+
+    // - - - End of tokenizer tests - - -
+
+
+
+    // - - - Flow log format tests - - -
+
+    /**
+     * Runs the flow log format tests, for the default format and a custom field list.
+     */
+    public void testFlowLogFormat() {
+        System.out.println("--- Beginning Flow Log Format Tests ---");
+        defaultFormat();
+        customFormat();
+        headerLine();
+        System.out.println("--- Ending Flow Log Format Tests ---\n");
+    }
+
+    /**
+     * Verifies that a header line gives the format of a flow log, and that a first line that
+     * is not a usable header is read as a (malformed) record instead of stopping the read.
+     */
+    private void headerLine() {
+        String record = "2 123456789012 eni-0a1b2c3d 10.0.1.201 198.51.100.2 443 25 6 25 20000 1620140761 1620140821 ACCEPT OK\n";
+        try {
+            FlowLogParser parser = new FlowLogParser();
+            long withHeader = parser.readRecords(new ByteArrayInputStream(("version dstport protocol\n2 25 6\n")
+                    .getBytes(StandardCharsets.US_ASCII)), "header", new FlowRecord.Visitor() {
+                public void visit(FlowRecord flowRecord) {
+                }
+            });
+            long withGarbage = parser.readRecords(new ByteArrayInputStream(("Garbage first line\n" + record)
+                    .getBytes(StandardCharsets.US_ASCII)), "garbage", new FlowRecord.Visitor() {
+                public void visit(FlowRecord flowRecord) {
+                }
+            });
+            if (withHeader == 1 && withGarbage == 1 && parser.getMetrics().getMalformedLines() == 1) {
+                System.out.println("Test Passed: A header line sets the format, and a garbage first line is skipped as malformed");
+            } else {
+                System.out.println("(X) Test Failed: Expected 1 record of each flow log and 1 malformed line, got " + withHeader 
+                        + ", " + withGarbage + " and " + parser.getMetrics().getMalformedLines());
+            }
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: A garbage first line should not stop the read: " + e);
+        }
+    }
+
+    /**
+     * Verifies that the default (version 2) format has dstport and protocol at index 6 and 7.
+     */
+    private void defaultFormat() {
+        int[] plan = FlowLogFormat.DEFAULT.project("dstport", "protocol");
+        if (plan[0] == 6 && plan[1] == 7) {
+            System.out.println("Test Passed: Default format has dstport at 6 and protocol at 7");
+        } else {
+            System.out.println("(X) Test Failed: Default format should have dstport at 6 and protocol at 7");
+        }
+    }
+
+    /**
+     * Verifies that a custom "${field}" list is projected onto the right columns.
+     */
+    private void customFormat() {
+        FlowLogFormat format = FlowLogFormat.parse("${version} ${tcp-flags} ${protocol} ${flow-direction} ${dstport}");
+        int[] plan = format.project("dstport", "protocol");
+        if (plan[0] == 4 && plan[1] == 2 && format.getColumn("srcaddr") == -1) {
+            System.out.println("Test Passed: Custom format has dstport at 4, protocol at 2 and no srcaddr");
+        } else {
+            System.out.println("(X) Test Failed: Custom format should have dstport at 4, protocol at 2 and no srcaddr");
+        }
+    }
+
+    // - - - End of flow log format tests - - -
+
+
+
+    // - - - Aggregation tests - - -
+
+    /**
+     * Runs the extra aggregate tests over the sample flow log.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the sample flow log
+     */
+    public void testAggregation(String protocolFile, String lookupTableFile, String flowLogFile) {
+        System.out.println("--- Beginning Aggregation Tests ---");
+
+        try {
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+            parser.addAggregation(FlowLogAggregation.parse("count by action"));
+            parser.addAggregation(FlowLogAggregation.parse("SUM( bytes ) by tag"));
+            parser.addAggregation(FlowLogAggregation.parse("max(bytes) by interface-id"));
+            FlowLogAggregator[] aggregators = parser.countFlowLog(flowLogFile, 1).getAggregators();
+
+            countByAction(aggregators[0].getResults());
+            sumBytesByTag(aggregators[1]);
+            maxBytesByInterface(aggregators[2].getResults());
+            resultsInFirstSeenOrder(aggregators[2].getResults(), flowLogFile);
+            differentAggregationsRejected(parser);
+
+            // The same aggregates with at most 2 groups in memory, spilled to disk and merged back
+            FlowLogParser spilling = new FlowLogParser();
+            spilling.prepareProtocolMappings(protocolFile);
+            spilling.prepareLookup(lookupTableFile);
+            for (FlowLogAggregation aggregation : parser.getAggregations()) {
+                spilling.addAggregation(aggregation.withSpill(2, null));
+            }
+            spilledAggregatesMatch(aggregators, spilling.countFlowLog(flowLogFile, 2).getAggregators());
+            spillMergesInTiers(flowLogFile + ".spill");
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        System.out.println("--- Ending Aggregation Tests ---\n");
+    }
+
+    /**
+     * Verifies the ACCEPT/REJECT counts of the sample flow log.
+     * 
+     * @param results - Results of "count by action"
+     */
+    private void countByAction(HashMap<String, Long> results) {
+        if (results.size() == 2 && results.get("ACCEPT") == 12 && results.get("REJECT") == 2) {
+            System.out.println("Test Passed: 12 records are ACCEPT and 2 are REJECT");
+        } else {
+            System.out.println("(X) Test Failed: Expected 12 ACCEPT and 2 REJECT records, got " + results);
+        }
+    }
+
+    /**
+     * Verifies the bytes of the email tag, and that the aggregation is named like it was given.
+     * 
+     * @param aggregator - Aggregator of "sum(bytes) by tag"
+     */
+    private void sumBytesByTag(FlowLogAggregator aggregator) {
+        Long emailBytes = aggregator.getResults().get("email");
+        if (emailBytes != null && emailBytes == 10500 && aggregator.getHeader().equals("tag,sum(bytes)")) {
+            System.out.println("Test Passed: Records tagged email sum up to 10500 bytes");
+        } else {
+            System.out.println("(X) Test Failed: Records tagged email should sum up to 10500 bytes, got " + emailBytes);
+        }
+    }
+
+    /**
+     * Verifies the largest record of an interface that has several records.
+     * 
+     * @param results - Results of "max(bytes) by interface-id"
+     */
+    private void maxBytesByInterface(HashMap<String, Long> results) {
+        Long maxBytes = results.get("eni-1a2b3c4d");
+        if (maxBytes != null && maxBytes == 6000 && results.size() == 11) {
+            System.out.println("Test Passed: The largest record of eni-1a2b3c4d has 6000 bytes");
+        } else {
+            System.out.println("(X) Test Failed: The largest record of eni-1a2b3c4d should have 6000 bytes, got " + maxBytes);
+        }
+    }
+
+    /**
+     * Verifies that the groups of an aggregate in memory are rendered in the order they
+     * were first seen, rather than in hash order.
+     * 
+     * @param results - Results of "max(bytes) by interface-id"
+     * @param flowLogFile - Path of the sample flow log
+     */
+    private void resultsInFirstSeenOrder(HashMap<String, Long> results, String flowLogFile) throws IOException {
+        ArrayList<String> expected = new ArrayList<String>();
+        for (String line : Files.readAllLines(Paths.get(flowLogFile), StandardCharsets.US_ASCII)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length > 2 && !expected.contains(fields[2])) {
+                expected.add(fields[2]);
+            }
+        }
+        ArrayList<String> actual = new ArrayList<String>(results.keySet());
+        if (actual.equals(expected)) {
+            System.out.println("Test Passed: Aggregate groups are rendered in first-seen order");
+        } else {
+            System.out.println("(X) Test Failed: Expected aggregate groups in the order " + expected + ", got " + actual);
+        }
+    }
+
+    /**
+     * Verifies that counts with different extra aggregates are not combined, rather than
+     * combined without some of their aggregates.
+     * 
+     * @param parser - Parser with extra aggregates
+     */
+    private void differentAggregationsRejected(FlowLogParser parser) {
+        FlowLogCounts withAggregates = parser.newCounts(parser.getCompiledLookup());
+        FlowLogCounts withoutAggregates = new FlowLogCounts(parser.getCompiledLookup());
+        try {
+            FlowLogCounts.combine(Arrays.asList(withAggregates, withoutAggregates));
+            System.out.println("(X) Test Failed: Counts with different aggregations should not combine");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Test Passed: Counts with different aggregations are not combined");
+        }
+    }
+
+    /**
+     * Verifies that aggregates spilled to disk give the same results as in memory.
+     * 
+     * @param expected - Aggregators computed in memory
+     * @param spilled - Aggregators of the same aggregations, with a budget of 2 groups
+     */
+    private void spilledAggregatesMatch(FlowLogAggregator[] expected, FlowLogAggregator[] spilled) {
+        for (int i = 0; i < expected.length; i++) {
+            HashMap<String, Long> results = spilled[i].getResults();
+            if (spilled[i].getSpilledRuns() == 0 || spilled[i].getGroupCount() >= 2 || !results.equals(expected[i].getResults())) {
+                System.out.println("(X) Test Failed: Spilled \"" + spilled[i].getAggregation() + "\" should match " 
+                        + expected[i].getResults() + ", got " + results);
+                return;
+            }
+            spilled[i].deleteSpilled();
+        }
+        System.out.println("Test Passed: Aggregates spilled to disk and merged back are exact");
+    }
+
+    /**
+     * Verifies that spilled runs are merged in tiers of 8: after 200 runs there is one run
+     * per base-8 digit (200 = 3 * 64 + 1 * 8), whose merge still gives the exact sums, and
+     * every run file is deleted at the end.
+     * 
+     * @param spillDirectory - Directory for the runs, created and deleted by the test
+     */
+    private void spillMergesInTiers(String spillDirectory) throws IOException {
+        File directory = new File(spillDirectory);
+        Files.createDirectories(directory.toPath());
+        FlowLogSpill spill = new FlowLogSpill(FlowLogAggregation.Function.SUM, spillDirectory);
+        for (int run = 0; run < 200; run++) {
+            byte[][] keys = { ("shared-" + run % 3).getBytes(StandardCharsets.US_ASCII), ("own-" + run).getBytes(StandardCharsets.US_ASCII) };
+            spill.addRun(keys, new long[] { 1, run }, 2);
+        }
+        int runCount = spill.getRunCount();
+
+        final HashMap<String, Long> results = new HashMap<String, Long>();
+        spill.merge(new byte[0][], new long[0], 0, new FlowLogSpill.Sink() {
+            public void accept(byte[] key, int keyLength, long value) {
+                results.put(new String(key, 0, keyLength, StandardCharsets.US_ASCII), value);
+            }
+        });
+        spill.delete();
+        String[] leftover = directory.list();
+
+        boolean exact = results.size() == 203 && results.get("shared-0") == 67 && results.get("shared-2") == 66 && results.get("own-199") == 199;
+        if (runCount == 4 && exact && leftover != null && leftover.length == 0) {
+            System.out.println("Test Passed: Spilled runs are merged in tiers, exactly, and deleted");
+        } else {
+            System.out.println("(X) Test Failed: Expected 4 exact runs and none left, got " + runCount + " runs, " + results.size() 
+                    + " keys and " + Arrays.toString(leftover) + " left");
+        }
+        deleteTestResultsFile(spillDirectory);
+    }
+
+    // - - - End of aggregation tests - - -
+
+
+
+    // - - - Sketch tests - - -
+
+    /**
+     * Runs the tests of the approximate distinct count and top-K sketches, each filled in
+     * two halves that are merged, like the sketches of two worker threads.
+     */
+    public void testSketches() {
+        System.out.println("--- Beginning Sketch Tests ---");
+
+        HyperLogLog first = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        HyperLogLog second = new HyperLogLog(HyperLogLog.DEFAULT_PRECISION);
+        for (long value = 0; value < 100000; value++) {
+            long hash = scramble(value);
+            (value % 2 == 0 ? first : second).add(hash);
+            second.add(hash); // Values seen by both halves must only count once
+        }
+        first.merge(second);
+        distinctWithinError(first.estimate(), 100000);
+
+        // "a" 50 times and "b" 30 times, among 40 keys seen once, split over two summaries
+        SpaceSaving left = new SpaceSaving(5);
+        SpaceSaving right = new SpaceSaving(5);
+        for (int i = 0; i < 120; i++) {
+            String key = (i % 12 < 5) ? "a" : (i % 12 < 8) ? "b" : "key" + i;
+            byte[] label = key.getBytes(StandardCharsets.UTF_8);
+            SpaceSaving summary = (i < 60) ? left : right;
+            if (!summary.increment(scramble(key.hashCode()), 1)) {
+                summary.offer(scramble(key.hashCode()), 1, label, label.length);
+            }
+        }
+        left.merge(right);
+        heavyHittersFound(left);
+
+        System.out.println("--- Ending Sketch Tests ---\n");
+    }
+
+    /**
+     * Verifies that the estimate of a merged HyperLogLog is within 3 standard errors.
+     * 
+     * @param estimate - Estimated distinct values
+     * @param actual - Actual distinct values
+     */
+    private void distinctWithinError(long estimate, long actual) {
+        double error = Math.abs(estimate - actual) / (double) actual;
+        if (error <= 3 * HyperLogLog.standardError(HyperLogLog.DEFAULT_PRECISION)) {
+            System.out.println("Test Passed: Estimated " + estimate + " distinct values out of " + actual);
+        } else {
+            System.out.println("(X) Test Failed: Estimated " + estimate + " distinct values, expected about " + actual);
+        }
+    }
+
+    /**
+     * Verifies that the keys seen more than N / K times are the top two, with counts no
+     * lower than their true counts and at most N / K higher.
+     * 
+     * @param summary - Merged summary
+     */
+    private void heavyHittersFound(SpaceSaving summary) {
+        int[] slots = summary.slotsByCount();
+        long bound = summary.getErrorBound();
+        if (summary.getTotal() == 120 && slots.length == 5
+                && summary.getLabel(slots[0]).equals("a") && summary.getCount(slots[0]) >= 50 && summary.getCount(slots[0]) <= 50 + bound
+                && summary.getLabel(slots[1]).equals("b") && summary.getCount(slots[1]) >= 30 && summary.getCount(slots[1]) <= 30 + bound) {
+            System.out.println("Test Passed: The top two keys are a and b, within " + bound + " of their counts");
+        } else {
+            System.out.println("(X) Test Failed: Expected a and b to be the top two keys of the merged summary");
+        }
+    }
+
+    /**
+     * Mixes the bits of a number, to stand in for the hash of a value.
+     */
+    private static long scramble(long value) {
+        long z = value * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // - - - End of sketch tests - - -
+
+
+
+    // - - - Address rule tests - - -
+
+    /**
+     * Runs the address rule tests: longest-prefix matching of IPv6 blocks, and the address
+     * tags of the sample flow log.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param rulesFile - Path of the address rule csv
+     * @param flowLogFile - Path of the sample flow log
+     */
+    public void testAddressRules(String protocolFile, String lookupTableFile, String rulesFile, String flowLogFile) {
+        System.out.println("--- Beginning Address Rule Tests ---");
+
+        try {
+            long[] address = new long[2];
+            AddressTrie trie = new AddressTrie();
+            int length = AddressTrie.parseCidr("2001:db8::/32", address);
+            trie.put(address[0], address[1], length, 1);
+            length = AddressTrie.parseCidr("2001:db8:1::/48", address);
+            trie.put(address[0], address[1], length, 2);
+            longestPrefixWins(trie);
+
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+            parser.prepareAddressRules(rulesFile);
+            FlowLogCounts counts = parser.countFlowLog(flowLogFile, 1);
+            addressTagsOfSample(counts.getAddressTagCounts(parser.getAddressRules()));
+            addressRulesNeedAddresses(parser);
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        System.out.println("--- Ending Address Rule Tests ---\n");
+    }
+
+    /**
+     * Verifies that address rules reject a flow log format without address fields, with a
+     * clear message, instead of failing on the first record.
+     * 
+     * @param parser - Parser with address rules prepared
+     */
+    private void addressRulesNeedAddresses(FlowLogParser parser) {
+        FlowLogFormat format = parser.getFormat();
+        parser.setFormat(FlowLogFormat.parse("version dstport protocol srcport"));
+        try {
+            parser.readRecords(new ByteArrayInputStream("2 25 6 443\n".getBytes(StandardCharsets.US_ASCII)), "no addresses", 
+                    new FlowRecord.Visitor() {
+                public void visit(FlowRecord record) {
+                }
+            });
+            System.out.println("(X) Test Failed: Address rules should reject a format without srcaddr");
+        } catch (IllegalArgumentException e) {
+            if (e.getMessage().contains("no srcaddr field")) {
+                System.out.println("Test Passed: Address rules reject a format without srcaddr");
+            } else {
+                System.out.println("(X) Test Failed: Expected a missing srcaddr message, got " + e);
+            }
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: Expected a missing srcaddr message, got " + e);
+        } finally {
+            parser.setFormat(format);
+        }
+    }
+
+    /**
+     * Verifies that an address gets the value of the longest block that contains it.
+     * 
+     * @param trie - Trie of 2001:db8::/32 -> 1 and 2001:db8:1::/48 -> 2
+     */
+    private void longestPrefixWins(AddressTrie trie) {
+        int inner = lookup(trie, "2001:db8:1::5");
+        int outer = lookup(trie, "2001:db8:2::1");
+        int outside = lookup(trie, "2001:db9::1");
+        if (inner == 2 && outer == 1 && outside == AddressTrie.NO_VALUE) {
+            System.out.println("Test Passed: IPv6 addresses match their longest prefix");
+        } else {
+            System.out.println("(X) Test Failed: Expected IPv6 lookups 2, 1 and none, got " + inner + ", " + outer + " and " + outside);
+        }
+    }
+
+    /**
+     * Verifies the address tags of the sample flow log: a source rule is preferred, and a
+     * /24 inside a /8 takes the records of the /24.
+     * 
+     * @param results - Counts of "address tag,tag" pairs
+     */
+    private void addressTagsOfSample(HashMap<String, Long> results) {
+        HashMap<String, Long> perAddressTag = new HashMap<String, Long>();
+        for (String key : results.keySet()) {
+            String addressTag = key.substring(0, key.indexOf(','));
+            Long count = perAddressTag.get(addressTag);
+            perAddressTag.put(addressTag, (count == null) ? results.get(key) : count + results.get(key));
+        }
+
+        HashMap<String, Long> expected = new HashMap<String, Long>();
+        expected.put("office", 6L);
+        expected.put("internal", 2L);
+        expected.put("internal-db", 2L);
+        expected.put("scanner", 1L);
+        expected.put("Untagged", 3L);
+        if (perAddressTag.equals(expected)) {
+            System.out.println("Test Passed: Records are tagged by their source or destination subnet");
+        } else {
+            System.out.println("(X) Test Failed: Expected address tags " + expected + ", got " + perAddressTag);
+        }
+    }
+
+    private static int lookup(AddressTrie trie, String address) {
+        long[] parsed = new long[2];
+        byte[] bytes = address.getBytes(StandardCharsets.US_ASCII);
+        AddressTrie.parseAddress(bytes, 0, bytes.length, parsed);
+        return trie.lookup(parsed[0], parsed[1]);
+    }
+
+    // - - - End of address rule tests - - -
+
+
+
+    // - - - Filter tests - - -
+
+    /**
+     * Runs the filter tests: the number of sample records that pass some filters, and
+     * filters that must be rejected.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the sample flow log
+     */
+    public void testFilters(String protocolFile, String lookupTableFile, String flowLogFile) {
+        System.out.println("--- Beginning Filter Tests ---");
+
+        try {
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+
+            expectFiltered(parser, flowLogFile, "action = reject", 2);
+            expectFiltered(parser, flowLogFile, "dstport between 49153 and 49156 and not action = REJECT or dstport in (80, 443)", 5);
+            expectFiltered(parser, flowLogFile, "(start > 1620140700) and dstport != 49158", 5);
+            expectFiltered(parser, flowLogFile, "protocol = 17", 0);
+
+            expectInvalidFilter("dstport <");
+            expectInvalidFilter("bogus = 1");
+            expectInvalidFilter("action in (ACCEPT");
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        System.out.println("--- Ending Filter Tests ---\n");
+    }
+
+    /**
+     * Verifies the number of sample records counted with a filter.
+     * 
+     * @param parser - Parser with the protocol mappings and lookup table prepared
+     * @param flowLogFile - Path of the sample flow log
+     * @param expression - Filter expression
+     * @param expected - Number of records that pass the filter
+     */
+    private void expectFiltered(FlowLogParser parser, String flowLogFile, String expression, long expected) throws Exception {
+        parser.setFilter(FlowLogFilter.parse(expression));
+        long counted = 0;
+        for (long count : parser.countFlowLog(flowLogFile, 1).getTagCounts().values()) {
+            counted += count;
+        }
+        parser.setFilter(null);
+
+        if (counted == expected) {
+            System.out.println("Test Passed: Filter \"" + expression + "\" keeps " + expected + " records");
+        } else {
+            System.out.println("(X) Test Failed: Expected filter \"" + expression + "\" to keep " + expected + " records, got " + counted);
+        }
+    }
+
+    /**
+     * Verifies that a filter is rejected, when parsed or when bound to the default format.
+     * 
+     * @param expression - Invalid filter expression
+     */
+    private void expectInvalidFilter(String expression) {
+        try {
+            FlowLogFilter.parse(expression).bind(FlowLogFormat.DEFAULT);
+            System.out.println("(X) Test Failed: Expected filter \"" + expression + "\" to be rejected");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Test Passed: Filter \"" + expression + "\" is rejected");
+        }
+    }
+
+    // - - - End of filter tests - - -
+
+
+
+    // - - - Time window tests - - -
+
+    /**
+     * Runs the time window tests, with records that arrive out of order.
+     * 
+     * @param parser - Parser whose lookup table has been prepared
+     */
+    public void testTimeWindows(FlowLogParser parser) {
+        System.out.println("--- Beginning Time Window Tests ---");
+
+        final ArrayList<Long> closed = new ArrayList<Long>();
+        FlowLogWindows windows = new FlowLogWindows(parser, 60, 30, new FlowLogWindows.Sink() {
+            public void windowClosed(long windowStart, long windowEnd, FlowLogCounts counts) {
+                closed.add(windowStart);
+                closed.add(counts.getTagCount(LookupTable.UNTAGGED));
+            }
+        });
+        LookupTable table = parser.getCompiledLookup();
+
+        // 100, 110 and 89 belong to window 60, 130 and 145 to window 120, 200 to window 180
+        long[] starts = { 100, 130, 110, 145, 89, 200, 119 };
+        for (long start : starts) {
+            FlowLogCounts counts = windows.countsFor(start, table);
+            if (counts != null) {
+                counts.add(LookupTable.UNTAGGED, 6, 80);
+            }
+        }
+        windowsCloseInOrder(closed, windows);
+        windows.closeAll();
+        windowsFlushAtEnd(closed);
+
+        System.out.println("--- Ending Time Window Tests ---\n");
+    }
+
+    /**
+     * Verifies that a window closes once the watermark passes its end plus the lateness, and
+     * that a record for a window that closed is skipped.
+     * 
+     * @param closed - Start time and record count of every closed window
+     * @param windows - Windows after the records were added
+     */
+    private void windowsCloseInOrder(ArrayList<Long> closed, FlowLogWindows windows) {
+        // Watermark 200 closes window 60 (ends 120 + 30 lateness), so the record at 119 is late
+        if (closed.equals(Arrays.asList(60L, 3L)) && windows.getLateRecords() == 1 && windows.getOpenWindows() == 2) {
+            System.out.println("Test Passed: Window 60 closed with its out-of-order record, and 1 record was late");
+        } else {
+            System.out.println("(X) Test Failed: Expected window 60 to close with 3 records and 1 late record, got " + closed);
+        }
+    }
+
+    /**
+     * Verifies that the windows still open are closed, in order, at the end.
+     * 
+     * @param closed - Start time and record count of every closed window
+     */
+    private void windowsFlushAtEnd(ArrayList<Long> closed) {
+        if (closed.equals(Arrays.asList(60L, 3L, 120L, 2L, 180L, 1L))) {
+            System.out.println("Test Passed: Windows 120 and 180 closed at the end");
+        } else {
+            System.out.println("(X) Test Failed: Expected windows 120 and 180 to close at the end, got " + closed);
+        }
+    }
+
+    // - - - End of time window tests - - -
+
+
+
+    // - - - Follow tests - - -
+
+    /**
+     * Runs the follow tests: a growing flow log is read as it is written, an unfinished last
+     * line waits for the rest of it, and a rotated file is finished before the new one is read.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the flow log to write and follow
+     * @param outputFile - Path of the output file the follower rewrites
+     */
+    public void testFollow(String protocolFile, String lookupTableFile, String flowLogFile, String outputFile) {
+        System.out.println("--- Beginning Follow Tests ---");
+
+        String record = "2 123456789012 eni-0a1b2c3d 10.0.1.201 198.51.100.2 443 25 6 25 20000 1620140761 1620140821 ACCEPT OK\n";
+        Path log = Paths.get(flowLogFile);
+        Path rotated = Paths.get(flowLogFile + ".1");
+
+        try {
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+            FlowLogFollower follower = new FlowLogFollower(parser, flowLogFile, outputFile, 0, 1);
+
+            // Two records, and the start of a third one that is still being written
+            appendToFile(log, record + record + record.substring(0, 30));
+            follower.poll();
+            followedRecords(follower, 2, "An unfinished last line is not read yet");
+
+            appendToFile(log, record.substring(30) + record);
+            follower.poll();
+            followedRecords(follower, 4, "An unfinished line is read once it is complete");
+
+            // The old file ends without a line terminator, then is rotated away
+            appendToFile(log, record.trim());
+            follower.poll();
+            Files.move(log, rotated);
+            appendToFile(log, record);
+            follower.poll();
+            followedRecords(follower, 6, "A rotated file is finished before the new file is read");
+
+            follower.finish();
+            List<String> output = Files.readAllLines(Paths.get(outputFile), StandardCharsets.UTF_8);
+            if (output.contains("sv_P1,6") && !Files.exists(Paths.get(outputFile + ".tmp"))) {
+                System.out.println("Test Passed: The final snapshot is written in place of the output file");
+            } else {
+                System.out.println("(X) Test Failed: Expected sv_P1,6 in the final output, got " + output);
+            }
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        deleteTestResultsFile(flowLogFile);
+        deleteTestResultsFile(rotated.toString());
+        deleteTestResultsFile(outputFile);
+
+        followReloads(protocolFile, lookupTableFile, flowLogFile, outputFile, record);
+        followReloadsWithSpill(protocolFile, lookupTableFile, flowLogFile, outputFile);
+        System.out.println("--- Ending Follow Tests ---\n");
+    }
+
+    /**
+     * Verifies that an aggregate spilled to disk keeps every group across lookup reloads and
+     * snapshots, and that its runs are deleted when following stops.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the flow log to write and follow
+     * @param outputFile - Path of the output file the follower rewrites
+     */
+    private void followReloadsWithSpill(String protocolFile, String lookupTableFile, String flowLogFile, String outputFile) {
+        Path log = Paths.get(flowLogFile);
+        Path spillDirectory = Paths.get(flowLogFile + ".spill");
+        String mailLookupFile = flowLogFile + ".lookup.csv";
+
+        try {
+            Files.createDirectories(spillDirectory);
+            Files.write(Paths.get(mailLookupFile), "dstport,protocol,tag\n25,tcp,mail\n".getBytes(StandardCharsets.US_ASCII));
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+            parser.addAggregation(FlowLogAggregation.parse("count by srcport").withSpill(2, spillDirectory.toString()));
+            FlowLogFollower follower = new FlowLogFollower(parser, flowLogFile, outputFile, 0, 1);
+
+            // A snapshot after every poll, with reloads after source ports 2 and 5
+            String[] lookups = { null, mailLookupFile, null, null, lookupTableFile, null };
+            for (int srcport = 1; srcport <= 6; srcport++) {
+                appendToFile(log, "2 123456789012 eni-0a1b2c3d 10.0.1.201 198.51.100.2 " + srcport 
+                        + " 25 6 25 20000 1620140761 1620140821 ACCEPT OK\n");
+                if (lookups[srcport - 1] != null) {
+                    parser.reloadLookup(lookups[srcport - 1]);
+                }
+                follower.poll();
+            }
+
+            HashMap<String, Long> expected = new HashMap<String, Long>();
+            for (int srcport = 1; srcport <= 6; srcport++) {
+                expected.put(Integer.toString(srcport), 1L);
+            }
+            FlowLogAggregator combined = follower.getCounts().getAggregators()[0];
+            HashMap<String, Long> results = combined.getResults();
+            combined.deleteSpilled();
+            follower.finish();
+            String[] leftover = spillDirectory.toFile().list();
+
+            if (results.equals(expected) && leftover != null && leftover.length == 0) {
+                System.out.println("Test Passed: Spilled groups survive lookup reloads and snapshots, and are deleted at the end");
+            } else {
+                System.out.println("(X) Test Failed: Expected source ports 1 to 6 once each and no spilled runs left, got " + results 
+                        + " and " + Arrays.toString(leftover));
+            }
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        deleteTestResultsFile(flowLogFile);
+        deleteTestResultsFile(mailLookupFile);
+        deleteTestResultsFile(outputFile);
+        deleteTestResultsFile(spillDirectory.toString());
+    }
+
+    /**
+     * Verifies that records read before a lookup table reload keep the tags they were
+     * counted with, across several reloads.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the flow log to write and follow
+     * @param outputFile - Path of the output file the follower rewrites
+     * @param record - A record with dstport 25 and protocol tcp
+     */
+    private void followReloads(String protocolFile, String lookupTableFile, String flowLogFile, String outputFile, String record) {
+        Path log = Paths.get(flowLogFile);
+        String mailLookupFile = flowLogFile + ".lookup.csv";
+
+        try {
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+            FlowLogFollower follower = new FlowLogFollower(parser, flowLogFile, outputFile, 0, 0);
+            Files.write(Paths.get(mailLookupFile), "dstport,protocol,tag\n25,tcp,mail\n".getBytes(StandardCharsets.US_ASCII));
+
+            // 25/tcp is sv_P1, then mail, then sv_P1 again
+            appendToFile(log, record);
+            follower.poll();
+            parser.reloadLookup(mailLookupFile);
+            appendToFile(log, record + record);
+            follower.poll();
+            parser.reloadLookup(lookupTableFile);
+            appendToFile(log, record);
+            follower.poll();
+
+            HashMap<String, Long> tags = follower.getCounts().getTagCounts();
+            if (tags.get("sv_P1") == 2 && tags.get("mail") == 2) {
+                System.out.println("Test Passed: Records read before a lookup reload keep their old tags");
+            } else {
+                System.out.println("(X) Test Failed: Expected 2 sv_P1 and 2 mail records across reloads, got " + tags);
+            }
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        deleteTestResultsFile(flowLogFile);
+        deleteTestResultsFile(mailLookupFile);
+    }
+
+    /**
+     * Verifies the number of records a follower has counted so far.
+     * 
+     * @param follower - Follower after a poll
+     * @param expected - Expected number of records
+     * @param description - What the test checks
+     */
+    private void followedRecords(FlowLogFollower follower, long expected, String description) {
+        long records = 0;
+        for (long count : follower.getCounts().getTagCounts().values()) {
+            records += count;
+        }
+        if (records == expected) {
+            System.out.println("Test Passed: " + description);
+        } else {
+            System.out.println("(X) Test Failed: " + description + ", expected " + expected + " records, got " + records);
+        }
+    }
+
+    /**
+     * Appends text to a file, creating it if needed, like a process writing a flow log.
+     * 
+     * @param file - File to append to
+     * @param text - ASCII text to append
+     */
+    private static void appendToFile(Path file, String text) throws IOException {
+        Files.write(file, text.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // - - - End of follow tests - - -
+
+
+
+    // - - - Lookup reload tests - - -
+
+    /**
+     * Runs the lookup reload tests on a lookup table csv that is rewritten between checks:
+     * an unchanged file is not reloaded, a changed one is swapped in, and one that fails to
+     * load keeps the current table.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv to write
+     */
+    public void testLookupReloader(String protocolFile, String lookupTableFile) {
+        System.out.println("--- Beginning Lookup Reload Tests ---");
+
+        Path lookupTable = Paths.get(lookupTableFile);
+        try {
+            Files.write(lookupTable, "dstport,protocol,tag\n25,tcp,first\n".getBytes(StandardCharsets.US_ASCII));
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+            LookupReloader reloader = new LookupReloader(parser, lookupTableFile, 1);
+
+            LookupTable initial = parser.getCompiledLookup();
+            if (!reloader.reloadIfChanged() && reloader.getReloadCount() == 0 && parser.getCompiledLookup() == initial) {
+                System.out.println("Test Passed: An unchanged lookup table is not reloaded");
+            } else {
+                System.out.println("(X) Test Failed: An unchanged lookup table should not be reloaded");
+            }
+
+            Files.write(lookupTable, "dstport,protocol,tag\n25,tcp,second\n80,tcp,web\n".getBytes(StandardCharsets.US_ASCII));
+            boolean reloaded = reloader.reloadIfChanged();
+            LookupTable swapped = parser.getCompiledLookup();
+            if (reloaded && reloader.getReloadCount() == 1 && swapped != initial 
+                    && swapped.getTagName(swapped.getTagId(6, 25)).equals("second") && swapped.getTagName(swapped.getTagId(6, 80)).equals("web")) {
+                System.out.println("Test Passed: A changed lookup table is reloaded and swapped in");
+            } else {
+                System.out.println("(X) Test Failed: A changed lookup table should be swapped in, got " + reloader.getReloadCount() + " reloads");
+            }
+
+            Files.write(lookupTable, "dstport,protocol,tag\nhttp,tcp,broken\n".getBytes(StandardCharsets.US_ASCII));
+            if (!reloader.reloadIfChanged() && reloader.getReloadCount() == 1 && reloader.getFailedReloadCount() == 1
+                    && parser.getCompiledLookup() == swapped && parser.getLookupMap().get("tcp").get(25).equals("second")) {
+                System.out.println("Test Passed: A lookup table that fails to load keeps the current table");
+            } else {
+                System.out.println("(X) Test Failed: A lookup table that fails to load should keep the current table, got " 
+                        + reloader.getReloadCount() + " reloads and " + reloader.getFailedReloadCount() + " failures");
+            }
+
+        } catch (IOException e) {
+            System.out.println("(X) Test Failed: Writing the lookup table failed: " + e);
+        }
+
+        deleteTestResultsFile(lookupTableFile);
+        System.out.println("--- Ending Lookup Reload Tests ---\n");
+    }
+
+    // - - - End of lookup reload tests - - -
+
+
+
+    // - - - Malformed record tests - - -
+
+    /**
+     * Runs the malformed record tests: bad lines are skipped and written to the quarantine
+     * file with their byte offsets, and reading stops once the error budget is exceeded.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the flow log to write (a copy of a few sample lines and bad lines)
+     * @param quarantineFile - Path of the quarantine file to write
+     */
+    public void testMalformedRecords(String protocolFile, String lookupTableFile, String flowLogFile, String quarantineFile) {
+        System.out.println("--- Beginning Malformed Record Tests ---");
+
+        String good = "2 123456789012 eni-0a1b2c3d 10.0.1.201 198.51.100.2 443 25 6 25 20000 1620140761 1620140821 ACCEPT OK\n";
+        String noData = "2 123456789012 eni-1 - - - - - - - 1620140761 1620140821 - NODATA\n";
+        String truncated = "2 123456789012\n";
+        String keyword = "2 123456789012 eni-0a1b2c3d 10.0.1.201 198.51.100.2 443 25 tcp 25 20000 1620140761 1620140821 ACCEPT OK\n";
+        String log = good + noData + "\n" + truncated + good + keyword;
+
+        try {
+            Files.write(Paths.get(flowLogFile), log.getBytes(StandardCharsets.US_ASCII));
+
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+            FlowLogQuarantine quarantine = new FlowLogQuarantine(quarantineFile);
+            parser.setQuarantine(quarantine);
+            FlowLogCounts counts = parser.countFlowLog(flowLogFile, 1);
+            quarantine.close();
+
+            long counted = counts.getTagCounts().get("sv_P1");
+            if (counted == 2 && parser.getMetrics().getMalformedLines() == 3) {
+                System.out.println("Test Passed: Malformed lines are skipped and counted, and the rest is read");
+            } else {
+                System.out.println("(X) Test Failed: Expected 2 sv_P1 records and 3 malformed lines, got " + counted 
+                        + " and " + parser.getMetrics().getMalformedLines());
+            }
+
+            List<String> expected = Arrays.asList(
+                    flowLogFile + "\t" + good.length() + "\tinvalid protocol\t" + noData.trim(),
+                    flowLogFile + "\t" + (good.length() + noData.length() + 1) + "\tmissing protocol\t" + truncated.trim(),
+                    flowLogFile + "\t" + (log.length() - keyword.length()) + "\tinvalid protocol\t" + keyword.trim());
+            List<String> quarantined = Files.readAllLines(Paths.get(quarantineFile), StandardCharsets.UTF_8);
+            if (quarantined.equals(expected)) {
+                System.out.println("Test Passed: Malformed lines are quarantined with their byte offsets");
+            } else {
+                System.out.println("(X) Test Failed: Expected quarantined lines " + expected + ", got " + quarantined);
+            }
+
+            errorBudget(protocolFile, lookupTableFile, flowLogFile, 3, true);
+            errorBudget(protocolFile, lookupTableFile, flowLogFile, 2, false);
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        deleteTestResultsFile(flowLogFile);
+        deleteTestResultsFile(quarantineFile);
+        System.out.println("--- Ending Malformed Record Tests ---\n");
+    }
+
+    /**
+     * Verifies whether a flow log with 3 malformed lines is read within an error budget.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the flow log with 3 malformed lines
+     * @param budget - Number of malformed records allowed
+     * @param withinBudget - Whether the flow log should be read
+     */
+    private void errorBudget(String protocolFile, String lookupTableFile, String flowLogFile, long budget, boolean withinBudget) {
+        FlowLogParser parser = new FlowLogParser();
+        parser.prepareProtocolMappings(protocolFile);
+        parser.prepareLookup(lookupTableFile);
+        parser.setErrorBudget(budget);
+
+        boolean read;
+        try {
+            parser.countFlowLog(flowLogFile, 1);
+            read = true;
+        } catch (Exception e) {
+            read = false;
+        }
+
+        if (read == withinBudget) {
+            System.out.println("Test Passed: An error budget of " + budget + " " + (read ? "allows" : "stops at") + " 3 malformed lines");
+        } else {
+            System.out.println("(X) Test Failed: An error budget of " + budget + " should " + (withinBudget ? "allow" : "stop at") + " 3 malformed lines");
+        }
+    }
+
+    // - - - End of malformed record tests - - -
+
+
+
+    // - - - Record stream tests - - -
+
+    /**
+     * Runs the record stream tests: streaming a flow log to a visitor, from a stream or a
+     * channel, sees the same records as counting it, through one reused FlowRecord.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the flow log to stream
+     */
+    public void testRecordStream(String protocolFile, String lookupTableFile, String flowLogFile) {
+        System.out.println("--- Beginning Record Stream Tests ---");
+
+        try {
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+
+            // Expected values, from counting the flow log and from splitting its lines
+            HashMap<String, Long> expectedTags = new HashMap<String, Long>();
+            for (Map.Entry<String, Long> entry : parser.countFlowLog(flowLogFile, 1).getTagCounts().entrySet()) {
+                if (entry.getValue() > 0) {
+                    expectedTags.put(entry.getKey(), entry.getValue());
+                }
+            }
+            long expectedBytes = 0;
+            for (String line : Files.readAllLines(Paths.get(flowLogFile), StandardCharsets.US_ASCII)) {
+                expectedBytes += Long.parseLong(line.split(" ")[9]);
+            }
+
+            FileInputStream in = new FileInputStream(flowLogFile);
+            try {
+                streamedRecords(parser, in, null, flowLogFile, expectedTags, expectedBytes);
+            } finally {
+                in.close();
+            }
+            FileChannel channel = FileChannel.open(Paths.get(flowLogFile), StandardOpenOption.READ);
+            try {
+                streamedRecords(parser, null, channel, flowLogFile, expectedTags, expectedBytes);
+            } finally {
+                channel.close();
+            }
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        System.out.println("--- Ending Record Stream Tests ---\n");
+    }
+
+    /**
+     * Verifies the records a visitor is given when streaming a flow log.
+     * 
+     * @param parser - Parser with its lookup table prepared
+     * @param in - Stream of the flow log, or null to read the channel
+     * @param channel - Channel of the flow log, if in is null
+     * @param name - Name of the flow log
+     * @param expectedTags - Expected number of records of each tag that has any
+     * @param expectedBytes - Expected sum of the bytes field
+     */
+    private void streamedRecords(FlowLogParser parser, InputStream in, ReadableByteChannel channel, String name,
+                                 HashMap<String, Long> expectedTags, long expectedBytes) throws IOException {
+        final HashMap<String, Long> tags = new HashMap<String, Long>();
+        final long[] bytes = new long[1];
+        final ArrayList<FlowRecord> instances = new ArrayList<FlowRecord>();
+
+        FlowRecord.Visitor visitor = new FlowRecord.Visitor() {
+            public void visit(FlowRecord record) {
+                if (instances.isEmpty() || instances.get(0) != record) {
+                    instances.add(record);
+                }
+                Long count = tags.get(record.tag());
+                tags.put(record.tag(), (count == null) ? 1 : count + 1);
+                bytes[0] += record.bytes();
+            }
+        };
+        long records = (in != null) ? parser.readRecords(in, name, visitor) : parser.readRecords(channel, name, visitor);
+
+        String source = (in != null) ? "stream" : "channel";
+        if (records == 14 && tags.equals(expectedTags) && bytes[0] == expectedBytes && instances.size() == 1) {
+            System.out.println("Test Passed: Records streamed from a " + source + " match the counts, through one reused record");
+        } else {
+            System.out.println("(X) Test Failed: Records streamed from a " + source + " should be " + expectedTags + " with " 
+                    + expectedBytes + " bytes, got " + records + " records " + tags + " with " + bytes[0] + " bytes in " 
+                    + instances.size() + " record instances");
+        }
+    }
+
+    // - - - End of record stream tests - - -
+
+
+
+    // - - - Metrics tests - - -
+
+    /**
+     * Runs the metrics tests: the totals of a run, their JSON form, and metrics that move
+     * while a long flow log is still being read.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the sample flow log
+     */
+    public void testMetrics(String protocolFile, String lookupTableFile, String flowLogFile) {
+        System.out.println("--- Beginning Metrics Tests ---");
+
+        try {
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+            parser.countFlowLog(flowLogFile, 1);
+            metricTotals(parser.getMetrics(), Files.size(Paths.get(flowLogFile)));
+            liveMetrics(parser);
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        System.out.println("--- Ending Metrics Tests ---\n");
+    }
+
+    /**
+     * Verifies the metrics of a run over the sample flow log, and their JSON form.
+     * 
+     * @param metrics - Metrics after counting the sample flow log
+     * @param fileSize - Size of the sample flow log, in bytes
+     */
+    private void metricTotals(FlowLogMetrics metrics, long fileSize) {
+        String json = metrics.toJson();
+        if (metrics.getRecordsRead() == 14 && metrics.getBytesRead() == fileSize && metrics.getUntaggedRecords() == 8
+                && metrics.getMalformedLines() == 0 && json.contains("\"recordsRead\": 14,") 
+                && json.contains("\"bytesRead\": " + fileSize + ",") && json.contains("\"untaggedRatio\": 0.571429,")) {
+            System.out.println("Test Passed: Metrics and their JSON count 14 records, the file's bytes and 8 untagged records");
+        } else {
+            System.out.println("(X) Test Failed: Expected 14 records, " + fileSize + " bytes and 8 untagged records, got " + json);
+        }
+    }
+
+    /**
+     * Verifies that the records read so far show in the metrics before the flow log ends.
+     * 
+     * @param parser - Parser with its lookup table prepared
+     */
+    private void liveMetrics(final FlowLogParser parser) throws IOException {
+        final int lines = FlowLogMetrics.FLUSH_INTERVAL + 1000;
+        byte[] record = "2 123456789012 eni-0a1b2c3d 10.0.1.201 198.51.100.2 443 25 6 25 20000 1620140761 1620140821 ACCEPT OK\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] log = new byte[record.length * lines];
+        for (int i = 0; i < lines; i++) {
+            System.arraycopy(record, 0, log, i * record.length, record.length);
+        }
+
+        final long before = parser.getMetrics().getRecordsRead();
+        final long[] seenAtEnd = new long[1];
+        parser.readRecords(new ByteArrayInputStream(log), "live", new FlowRecord.Visitor() {
+            private int visited;
+
+            public void visit(FlowRecord flowRecord) {
+                if (++visited == lines) {
+                    seenAtEnd[0] = parser.getMetrics().getRecordsRead() - before;
+                }
+            }
+        });
+
+        long after = parser.getMetrics().getRecordsRead() - before;
+        if (seenAtEnd[0] >= FlowLogMetrics.FLUSH_INTERVAL - 1 && after == lines) {
+            System.out.println("Test Passed: Metrics show the records read before the end of a long flow log");
+        } else {
+            System.out.println("(X) Test Failed: Expected at least " + (FlowLogMetrics.FLUSH_INTERVAL - 1) + " records in the metrics "
+                    + "before the end and " + lines + " after, got " + seenAtEnd[0] + " and " + after);
+        }
+    }
+
+    // - - - End of metrics tests - - -
+
+
+
+    // - - - Flow log file tests - - -
+
+    /**
+     * Runs the flow log file tests: the sample flow log is split into a directory of seven
+     * files of two lines, one of them gzip compressed and one in a subdirectory, and reading
+     * the directory or a glob of it, sequentially or with more files than the threads count
+     * ahead, must give the same output as reading the sample flow log itself. A symbolic link
+     * back up the tree must be skipped, and a glob must not match below its own depth.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the sample flow log
+     * @param flowLogDirectory - Path of the directory to create the split flow logs in
+     */
+    public void testFlowLogFiles(String protocolFile, String lookupTableFile, String flowLogFile, String flowLogDirectory) {
+        System.out.println("--- Beginning Flow Log File Tests ---");
+
+        Path directory = Paths.get(flowLogDirectory);
+        Path subdirectory = directory.resolve("sub");
+        ArrayList<Path> files = new ArrayList<Path>();
+        Path loop = subdirectory.resolve("loop");
+        String outputFile = flowLogDirectory + "-output.txt";
+
+        try {
+            // part-1 is gzip compressed, and the last part is in a subdirectory (read last, as "sub" > "part")
+            List<String> lines = Files.readAllLines(Paths.get(flowLogFile), StandardCharsets.US_ASCII);
+            Files.createDirectories(subdirectory);
+            for (int part = 0; part * 2 < lines.size(); part++) {
+                List<String> partLines = lines.subList(part * 2, Math.min(part * 2 + 2, lines.size()));
+                boolean last = (part + 1) * 2 >= lines.size();
+                Path file = (last ? subdirectory : directory).resolve("part-" + part + (part == 1 ? ".log.gz" : ".log"));
+                files.add(file);
+                OutputStream out = Files.newOutputStream(file);
+                if (part == 1) {
+                    out = new GZIPOutputStream(out);
+                }
+                try {
+                    for (String line : partLines) {
+                        out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+            Files.createSymbolicLink(loop, directory.toAbsolutePath());
+
+            FlowLogParser parser = new FlowLogParser();
+            parser.prepareProtocolMappings(protocolFile);
+            parser.prepareLookup(lookupTableFile);
+            parser.readFlowLog(flowLogFile, outputFile);
+            String expected = new String(Files.readAllBytes(Paths.get(outputFile)), StandardCharsets.UTF_8);
+
+            sameOutput(parser, flowLogDirectory, 1, outputFile, expected, "A directory of flow logs, one of them gzip compressed,");
+            sameOutput(parser, flowLogDirectory, 2, outputFile, expected, "A directory of 7 flow logs read with 2 threads");
+            sameOutput(parser, flowLogDirectory + "/**", 3, outputFile, expected, "A glob of flow logs read with 3 threads");
+
+            List<Path> topLevel = FlowLogFiles.resolve(flowLogDirectory + "/*.log*");
+            if (topLevel.equals(files.subList(0, files.size() - 1))) {
+                System.out.println("Test Passed: A glob only matches files at its own depth");
+            } else {
+                System.out.println("(X) Test Failed: Expected the glob to match " + files.subList(0, files.size() - 1) + ", got " + topLevel);
+            }
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        for (Path file : files) {
+            deleteTestResultsFile(file.toString());
+        }
+        deleteTestResultsFile(loop.toString());
+        deleteTestResultsFile(subdirectory.toString());
+        deleteTestResultsFile(flowLogDirectory);
+        deleteTestResultsFile(outputFile);
+        System.out.println("--- Ending Flow Log File Tests ---\n");
+    }
+
+    /**
+     * Verifies that reading flow logs writes the expected output.
+     * 
+     * @param parser - Parser with the protocol and lookup tables prepared
+     * @param flowLogs - Flow log file, directory or glob pattern
+     * @param threads - Number of worker threads
+     * @param outputFile - Path of the output file to write
+     * @param expected - Expected content of the output file
+     * @param description - What is read, for the test message
+     */
+    private void sameOutput(FlowLogParser parser, String flowLogs, int threads, String outputFile, String expected, 
+                            String description) throws IOException {
+        parser.readFlowLog(flowLogs, outputFile, threads);
+        String actual = new String(Files.readAllBytes(Paths.get(outputFile)), StandardCharsets.UTF_8);
+        if (actual.equals(expected)) {
+            System.out.println("Test Passed: " + description + " gives the same output as one file");
+        } else {
+            System.out.println("(X) Test Failed: " + description + " should give the output\n" + expected + "\ngot\n" + actual);
+        }
+    }
+
+    // - - - End of flow log file tests - - -
+
+
+
+    // - - - Snapshot merge tests - - -
+
+    /**
+     * Runs the snapshot merge tests: snapshots counted with different lookup tables are
+     * combined by tag name, snapshots that name a protocol differently are rejected, and
+     * a merged snapshot keeps the address tag counts of its run.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv of the first snapshot
+     * @param otherLookupTableFile - Path of a different lookup table csv, for the second snapshot
+     * @param addressRulesFile - Path of the address rule csv
+     * @param flowLogFile - Path of the flow log both snapshots are counted from
+     * @param snapshotFile - Path of the snapshot files to write (with a suffix each)
+     */
+    public void testSnapshotMerge(String protocolFile, String lookupTableFile, String otherLookupTableFile, 
+                                  String addressRulesFile, String flowLogFile, String snapshotFile) {
+        System.out.println("--- Beginning Snapshot Merge Tests ---");
+
+        String first = snapshotFile + ".1";
+        String second = snapshotFile + ".2";
+        String renamed = snapshotFile + ".3";
+        String renamedProtocolFile = snapshotFile + ".protocols.csv";
+
+        try {
+            HashMap<String, Long> expected = new HashMap<String, Long>();
+            snapshotOf(protocolFile, lookupTableFile, flowLogFile, first, expected);
+            snapshotOf(protocolFile, otherLookupTableFile, flowLogFile, second, expected);
+
+            HashMap<String, Long> merged = FlowLogSnapshot.merge(Arrays.asList(first, second)).getTagCounts();
+            if (merged.equals(expected) && merged.get("sv_P1") == 3 && merged.get("ephemeral_low") == 6) {
+                System.out.println("Test Passed: Snapshots of different lookup tables are combined by tag name");
+            } else {
+                System.out.println("(X) Test Failed: Expected merged tag counts " + expected + ", got " + merged);
+            }
+
+            // The same flow log counted with protocol 6 named "tcpx" instead of "tcp"
+            Files.write(Paths.get(renamedProtocolFile), "Decimal,Keyword\n6,TCPX\n".getBytes(StandardCharsets.US_ASCII));
+            snapshotOf(renamedProtocolFile, lookupTableFile, flowLogFile, renamed, new HashMap<String, Long>());
+            try {
+                FlowLogSnapshot.merge(Arrays.asList(first, renamed));
+                System.out.println("(X) Test Failed: Snapshots that name protocol 6 differently should not merge");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Test Passed: Snapshots that name a protocol differently are rejected");
+            }
+
+            mergedAddressTags(protocolFile, lookupTableFile, addressRulesFile, flowLogFile, snapshotFile);
+            snapshotOptionRejected("--aggregate", "sum(bytes) by tag");
+            snapshotOptionRejected("--follow", null);
+            snapshotOptionRejected("--window", "60");
+
+        } catch (Exception e) {
+            System.out.println("(X) Test Failed: An unaccounted for problem has occurred" + e);
+        }
+
+        deleteTestResultsFile(first);
+        deleteTestResultsFile(second);
+        deleteTestResultsFile(renamed);
+        deleteTestResultsFile(renamedProtocolFile);
+        System.out.println("--- Ending Snapshot Merge Tests ---\n");
+    }
+
+    /**
+     * Verifies that the output merged from the snapshot of a run with address rules is the
+     * output of the run itself, Address Tag Counts included.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param addressRulesFile - Path of the address rule csv
+     * @param flowLogFile - Path of the flow log
+     * @param snapshotFile - Path of the snapshot file to write (with a suffix)
+     */
+    private void mergedAddressTags(String protocolFile, String lookupTableFile, String addressRulesFile, 
+                                   String flowLogFile, String snapshotFile) throws IOException {
+        String snapshot = snapshotFile + ".address";
+        String runOutput = snapshotFile + ".run.txt";
+        String mergedOutput = snapshotFile + ".merged.txt";
+
+        FlowLogParser parser = new FlowLogParser();
+        parser.prepareProtocolMappings(protocolFile);
+        parser.prepareLookup(lookupTableFile);
+        parser.prepareAddressRules(addressRulesFile);
+        parser.readFlowLog(flowLogFile, runOutput, 1, snapshot);
+        new FlowLogParser().mergeSnapshots(Arrays.asList(snapshot, snapshot), mergedOutput);
+
+        // Merging the snapshot with itself doubles every count of the run
+        String run = new String(Files.readAllBytes(Paths.get(runOutput)), StandardCharsets.UTF_8);
+        String merged = new String(Files.readAllBytes(Paths.get(mergedOutput)), StandardCharsets.UTF_8);
+        StringBuilder doubled = new StringBuilder();
+        for (String line : run.split("\n", -1)) {
+            int comma = line.lastIndexOf(',');
+            boolean counted = comma > 0 && line.substring(comma + 1).matches("[0-9]+");
+            doubled.append(counted ? line.substring(0, comma + 1) + 2 * Long.parseLong(line.substring(comma + 1)) : line);
+            doubled.append('\n');
+        }
+        doubled.setLength(doubled.length() - 1);
+        if (run.contains("Address Tag Counts:\nAddress Tag,Tag,Count\n") && run.contains("\noffice,email,2\n") && merged.equals(doubled.toString())) {
+            System.out.println("Test Passed: Merged snapshots keep the address tag counts");
+        } else {
+            System.out.println("(X) Test Failed: Expected the merged output\n" + doubled + "\ngot\n" + merged);
+        }
+
+        deleteTestResultsFile(snapshot);
+        deleteTestResultsFile(runOutput);
+        deleteTestResultsFile(mergedOutput);
+    }
+
+    /**
+     * Verifies that --snapshot is rejected together with an option whose results a
+     * snapshot cannot hold, rather than accepted and silently left out of it.
+     * 
+     * @param option - The other option
+     * @param value - Value of the other option, or null if it takes none
+     */
+    private void snapshotOptionRejected(String option, String value) {
+        ArrayList<String> args = new ArrayList<String>(Arrays.asList("--snapshot", "counts.snapshot", option));
+        if (value != null) {
+            args.add(value);
+        }
+        args.addAll(Arrays.asList("protocols.csv", "lookup.csv", "flow.log"));
+        try {
+            FlowLogOptions.parse(args.toArray(new String[0]));
+            System.out.println("(X) Test Failed: --snapshot should be rejected with " + option);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Test Passed: --snapshot is rejected with " + option);
+        }
+    }
+
+    /**
+     * Counts a flow log and writes its snapshot.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param lookupTableFile - Path of the lookup table csv
+     * @param flowLogFile - Path of the flow log
+     * @param snapshotFile - Path of the snapshot file to write
+     * @param tagCounts - Tag counts to add the counts of the flow log to, by name
+     */
+    private void snapshotOf(String protocolFile, String lookupTableFile, String flowLogFile, String snapshotFile,
+                            HashMap<String, Long> tagCounts) throws Exception {
+        FlowLogParser parser = new FlowLogParser();
+        parser.prepareProtocolMappings(protocolFile);
+        parser.prepareLookup(lookupTableFile);
+        FlowLogCounts counts = parser.countFlowLog(flowLogFile, 1);
+        FlowLogSnapshot.write(counts, snapshotFile);
+
+        HashMap<String, Long> counted = counts.getTagCounts();
+        for (String tag : counted.keySet()) {
+            Long count = tagCounts.get(tag);
+            tagCounts.put(tag, (count == null) ? counted.get(tag) : count + counted.get(tag));
+        }
+    }
+
+    // - - - End of snapshot merge tests - - -
+
+
+
+    // - - - Generator tests - - -
+
+    /**
+     * Runs the benchmark data generator tests: the same seed must write the same flow log and
+     * lookup table, so benchmark runs can be compared, and another seed a different flow log.
+     * 
+     * @param protocolFile - Path of the protocol mapping csv
+     * @param generatedPrefix - Prefix of the paths of the generated files
+     */
+    public void testGenerator(String protocolFile, String generatedPrefix) {
+        System.out.println("--- Beginning Generator Tests ---");
+
+        FlowLogParser parser = new FlowLogParser();
+        parser.prepareProtocolMappings(protocolFile);
+        try {
+            byte[][] first = generate(parser.getProtocolTable(), 7, generatedPrefix + "-1");
+            byte[][] second = generate(parser.getProtocolTable(), 7, generatedPrefix + "-2");
+            byte[][] other = generate(parser.getProtocolTable(), 8, generatedPrefix + "-3");
+            if (Arrays.equals(first[0], second[0]) && Arrays.equals(first[1], second[1]) && first[0].length >= 64 * 1024) {
+                System.out.println("Test Passed: The same seed generates the same flow log and lookup table");
+            } else {
+                System.out.println("(X) Test Failed: The same seed should generate the same flow log and lookup table");
+            }
+            if (!Arrays.equals(first[0], other[0])) {
+                System.out.println("Test Passed: Another seed generates a different flow log");
+            } else {
+                System.out.println("(X) Test Failed: Another seed should generate a different flow log");
+            }
+        } catch (IOException e) {
+            System.out.println("(X) Test Failed: Generating the flow logs failed: " + e);
+        }
+
+        System.out.println("--- Ending Generator Tests ---\n");
+    }
+
+    /**
+     * Generates a 64 KB flow log and its lookup table, and reads them back.
+     * 
+     * @param protocolTable - HashMap containing the protocol mappings
+     * @param seed - Seed of the generator
+     * @param prefix - Prefix of the paths of the generated files, which are deleted afterwards
+     * @return the bytes of the flow log and of the lookup table
+     */
+    private static byte[][] generate(HashMap<Integer, String> protocolTable, long seed, String prefix) throws IOException {
+        Path flowLog = Paths.get(prefix + ".txt");
+        Path lookupTable = Paths.get(prefix + ".csv");
+        try {
+            FlowLogGenerator generator = new FlowLogGenerator(protocolTable, seed);
+            generator.writeLookupTable(lookupTable.toString());
+            generator.writeFlowLog(flowLog.toString(), 64 * 1024);
+            return new byte[][] { Files.readAllBytes(flowLog), Files.readAllBytes(lookupTable) };
+        } finally {
+            Files.deleteIfExists(flowLog);
+            Files.deleteIfExists(lookupTable);
+        }
+    }
+
+    // - - - End of generator tests - - -
+
+
+
     // - - - Output of reading flow log test - - -
 
     /**
@@ -234,8 +2029,20 @@ public class TestFlowLogParser {
         // String paths to be used. The tests will only behave as intended with these paths.
         String protocolFile = "protocol-numbers-1.csv";
         String lookupTableFile = "Lookup_Tables/lookup-1.csv";
+        String addressRulesFile = "Lookup_Tables/address-rules-1.csv";
+        String lookupRangesFile = "Lookup_Tables/lookup-ranges-1.csv";
         String flowLogFile = "Logs/flow-log-data-1.txt";
+        String flowLogDirectory = "Logs";
         String outputFile = "test_results.txt";
+        String snapshotFile = "test_results.snapshot";
+        String lookupCacheFile = "test_results.cache";
+        String malformedFlowLogFile = "test_results_malformed.txt";
+        String quarantineFile = "test_results.quarantine";
+        String followedFlowLogFile = "test_results_followed.txt";
+        String followOutputFile = "test_results_follow_output.txt";
+        String splitFlowLogDirectory = "test_results_logs";
+        String generatedPrefix = "test_results_generated";
+        String reloadedLookupTableFile = "test_results_lookup.csv";
 
         // Protocol File parsing
         parser.prepareProtocolMappings(protocolFile);
@@ -244,12 +2051,76 @@ public class TestFlowLogParser {
         // Lookup Table parsing 
         parser.prepareLookup(lookupTableFile);
         tester.testPrepareLookup(parser.getLookupMap());
+        tester.testCompiledLookup(protocolFile, lookupTableFile);
+        tester.testLookupRanges(protocolFile, lookupRangesFile);
+        tester.testLookupCache(protocolFile, lookupTableFile, lookupRangesFile, lookupCacheFile);
+
+        // Tokenizing flow log lines
+        tester.testTokenizer();
+
+        // Flow log formats
+        tester.testFlowLogFormat();
+
+        // Time windows
+        tester.testTimeWindows(parser);
+
+        // Following a growing flow log
+        tester.testFollow(protocolFile, lookupTableFile, followedFlowLogFile, followOutputFile);
+        tester.testLookupReloader(protocolFile, reloadedLookupTableFile);
+
+        // Extra aggregates
+        tester.testAggregation(protocolFile, lookupTableFile, flowLogFile);
+
+        // Approximate aggregates
+        tester.testSketches();
+
+        // Address tags
+        tester.testAddressRules(protocolFile, lookupTableFile, addressRulesFile, flowLogFile);
+
+        // Filters
+        tester.testFilters(protocolFile, lookupTableFile, flowLogFile);
+
+        // Malformed records
+        tester.testMalformedRecords(protocolFile, lookupTableFile, malformedFlowLogFile, quarantineFile);
+
+        // Record streams
+        tester.testRecordStream(protocolFile, lookupTableFile, flowLogFile);
 
         // Flow Log parsing
         parser.readFlowLog(flowLogFile, outputFile);
         tester.testOutput(outputFile);
         tester.deleteTestResultsFile(outputFile);
 
+        // Parallel flow log parsing must give the same output as the sequential run
+        parser.readFlowLog(flowLogFile, outputFile, 4);
+        tester.testOutput(outputFile);
+        tester.deleteTestResultsFile(outputFile);
+
+        // Reading the directory of flow logs must give the same output as reading its only file
+        parser.readFlowLog(flowLogDirectory, outputFile, 2);
+        tester.testOutput(outputFile);
+        tester.deleteTestResultsFile(outputFile);
+
+        // Directories and globs of several flow logs
+        tester.testFlowLogFiles(protocolFile, lookupTableFile, flowLogFile, splitFlowLogDirectory);
+
+        // Benchmark data
+        tester.testGenerator(protocolFile, generatedPrefix);
+
+        // Runtime metrics
+        tester.testMetrics(protocolFile, lookupTableFile, flowLogFile);
+
+        // Merging snapshots of different lookup tables
+        tester.testSnapshotMerge(protocolFile, lookupTableFile, lookupRangesFile, addressRulesFile, flowLogFile, snapshotFile);
+
+        // Merging the snapshot of a run must give the same output as the run itself
+        parser.readFlowLog(flowLogFile, outputFile, 1, snapshotFile);
+        tester.deleteTestResultsFile(outputFile);
+        parser.mergeSnapshots(Arrays.asList(snapshotFile), outputFile);
+        tester.testOutput(outputFile);
+        tester.deleteTestResultsFile(outputFile);
+        tester.deleteTestResultsFile(snapshotFile);
+
     }
     
 }